@@ -50,6 +50,20 @@ tasks {
             archiveFileName.set("llm-extract-function.zip")
     }
 
+    test {
+        exclude("**/*Benchmark.class")
+    }
+
+    register<Test>("benchmark") {
+        description = "Runs the benchmarks, which are left out of the unit tests."
+        group = "verification"
+        testClassesDirs = sourceSets["test"].output.classesDirs
+        classpath = sourceSets["test"].runtimeClasspath
+        include("**/*Benchmark.class")
+        outputs.upToDateWhen { false }
+        testLogging.showStandardStreams = true
+    }
+
     patchPluginXml {
         version.set(properties("pluginVersion"))
         sinceBuild.set(properties("pluginSinceBuild"))
@@ -0,0 +1,272 @@
+package com.intellij.ml.llm.template.batch
+
+import com.intellij.ide.highlighter.JavaFileType
+import com.intellij.ml.llm.template.extractfunction.EFCandidate
+import com.intellij.ml.llm.template.models.GPTExtractFunctionRequestProvider
+import com.intellij.ml.llm.template.models.LLMBaseResponse
+import com.intellij.ml.llm.template.models.LLMCircuitOpenException
+import com.intellij.ml.llm.template.models.LLMRequestProvider
+import com.intellij.ml.llm.template.models.LLMRequestPriority
+import com.intellij.ml.llm.template.models.LLMResponseCache
+import com.intellij.ml.llm.template.models.openai.AuthorizationException
+import com.intellij.ml.llm.template.models.openai.OpenAiChatRequestBody
+import com.intellij.ml.llm.template.models.thenApplyCancellable
+import com.intellij.ml.llm.template.prompts.EXTRACT_FUNCTION_PROMPT_VERSION
+import com.intellij.ml.llm.template.prompts.fewShotExtractSuggestion
+import com.intellij.ml.llm.template.settings.LLMSettingsManager
+import com.intellij.ml.llm.template.utils.EFCandidateFactory
+import com.intellij.ml.llm.template.utils.PromptMinimizer
+import com.intellij.ml.llm.template.utils.PsiUtils
+import com.intellij.ml.llm.template.utils.addLineNumbersToCodeSnippet
+import com.intellij.ml.llm.template.utils.identifyExtractFunctionSuggestions
+import com.intellij.ml.llm.template.utils.filterExtractableCandidatesAsync
+import com.intellij.openapi.application.ReadAction
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.progress.ProcessCanceledException
+import com.intellij.openapi.progress.ProgressIndicator
+import com.intellij.openapi.project.DumbService
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.util.registry.Registry
+import com.intellij.openapi.vfs.VirtualFile
+import com.intellij.psi.PsiDocumentManager
+import com.intellij.psi.PsiFile
+import com.intellij.psi.PsiManager
+import com.intellij.psi.PsiMethod
+import com.intellij.psi.PsiNamedElement
+import com.intellij.psi.search.FileTypeIndex
+import com.intellij.psi.search.GlobalSearchScope
+import com.intellij.psi.util.PsiTreeUtil
+import com.intellij.util.concurrency.AppExecutorUtil
+import com.intellij.util.io.HttpRequests
+import org.jetbrains.kotlin.idea.KotlinFileType
+import org.jetbrains.kotlin.psi.KtNamedFunction
+import java.net.HttpURLConnection
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.Semaphore
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Runs extract function analysis over every Java method and Kotlin function in [scope].
+ *
+ * Functions are collected file by file and sent to the LLM with at most `maxConcurrentRequests` requests in flight;
+ * the next function is not collected until a slot is free, so memory stays bounded however large the scope is.
+ * Replies go through the same pipeline as the intention: [identifyExtractFunctionSuggestions],
+ * [EFCandidateFactory] and [filterExtractableCandidatesAsync], all of it off the EDT.
+ *
+ * @param apiBaseUrl the server to send the requests to, the one configured in the settings if not set.
+ * [LLMResponseCache] is not used when it is set, since its keys do not include the server.
+ */
+class BatchEFAnalyzer(
+    private val project: Project,
+    private val scope: GlobalSearchScope,
+    private val llmRequestProvider: LLMRequestProvider = GPTExtractFunctionRequestProvider,
+    private val maxConcurrentRequests: Int = LLMSettingsManager.getInstance().getBatchMaxConcurrentRequests(),
+    private val fileFilter: (VirtualFile) -> Boolean = { true },
+    private val functionNameFilter: (String) -> Boolean = { true },
+    private val apiBaseUrl: String? = null,
+) {
+    private val logger = Logger.getInstance("#com.intellij.ml.llm")
+    private val responseCache = if (apiBaseUrl == null) LLMResponseCache.getInstance() else null
+
+    // the LLM requests themselves, so that cancelling them takes them out of the governor queue
+    private val inFlightRequests = ConcurrentHashMap.newKeySet<CompletableFuture<*>>()
+    private val results = ConcurrentLinkedQueue<Pair<BatchEFFunction, List<EFCandidate>>>()
+    private val analyzedFunctions = AtomicInteger()
+    private val failedFunctions = AtomicInteger()
+    private val staleFunctions = AtomicInteger()
+
+    @Volatile
+    private var abortReason: Throwable? = null
+
+    fun run(indicator: ProgressIndicator): BatchEFReport {
+        val startTime = System.currentTimeMillis()
+        val permits = Semaphore(maxConcurrentRequests)
+        var cancelled = false
+        indicator.isIndeterminate = false
+
+        try {
+            val files = DumbService.getInstance(project).runReadActionInSmartMode<List<VirtualFile>> {
+                (FileTypeIndex.getFiles(JavaFileType.INSTANCE, scope) + FileTypeIndex.getFiles(KotlinFileType.INSTANCE, scope))
+                    .filter(fileFilter)
+            }
+            for ((index, file) in files.withIndex()) {
+                indicator.checkCanceled()
+                if (abortReason != null) break
+                indicator.fraction = index.toDouble() / files.size
+                indicator.text2 = file.presentableUrl
+
+                for (function in collectFunctions(file)) {
+                    acquire(permits, indicator)
+                    if (abortReason != null) {
+                        permits.release()
+                        break
+                    }
+                    val request = sendRequest(function)
+                    inFlightRequests.add(request)
+                    analyze(function, request).whenComplete { _, _ ->
+                        inFlightRequests.remove(request)
+                        permits.release()
+                    }
+                }
+            }
+            // all requests are done once every permit has been returned
+            if (abortReason == null) acquire(permits, indicator, maxConcurrentRequests)
+        } catch (e: ProcessCanceledException) {
+            cancelled = true
+        }
+        inFlightRequests.forEach { it.cancel(true) }
+        abortReason?.let { throw it }
+
+        return BatchEFReport(
+            scope = scope.displayName,
+            durationMillis = System.currentTimeMillis() - startTime,
+            cancelled = cancelled,
+            analyzedFunctions = analyzedFunctions.get(),
+            failedFunctions = failedFunctions.get(),
+            staleFunctions = staleFunctions.get(),
+            candidates = rankCandidates()
+        )
+    }
+
+    private fun acquire(permits: Semaphore, indicator: ProgressIndicator, count: Int = 1) {
+        while (!permits.tryAcquire(count, 100, TimeUnit.MILLISECONDS)) {
+            indicator.checkCanceled()
+        }
+    }
+
+    private fun collectFunctions(file: VirtualFile): List<BatchEFFunction> {
+        val relativeLineNumbers = Registry.`is`("llm.for.code.enable.relative.line.numbers")
+        val minimizer = if (PromptMinimizer.isEnabled()) PromptMinimizer() else null
+        return DumbService.getInstance(project).runReadActionInSmartMode<List<BatchEFFunction>> {
+            val psiFile = PsiManager.getInstance(project).findFile(file) ?: return@runReadActionInSmartMode emptyList()
+            val document = PsiDocumentManager.getInstance(project).getDocument(psiFile)
+                ?: return@runReadActionInSmartMode emptyList()
+
+            PsiTreeUtil.findChildrenOfAnyType(psiFile, PsiMethod::class.java, KtNamedFunction::class.java)
+                .filter { PsiUtils.getFunctionBlockOrNull(it) != null }
+                .filter { functionNameFilter((it as PsiNamedElement).name ?: "") }
+                .map { function ->
+                    val lineStart = document.getLineNumber(function.textRange.startOffset) + 1
+                    val promptLineStart = if (relativeLineNumbers) 1 else lineStart
+                    val codeSnippet = minimizer?.minimize(psiFile, function.textRange, promptLineStart)?.text
+                        ?: addLineNumbersToCodeSnippet(function.text, promptLineStart)
+                    BatchEFFunction(
+                        file = file,
+                        name = (function as PsiNamedElement).name ?: "",
+                        codeSnippet = codeSnippet,
+                        lineStart = lineStart,
+                        size = document.getLineNumber(function.textRange.endOffset) + 2 - lineStart,
+                        lineOffset = lineStart - promptLineStart,
+                        documentStamp = document.modificationStamp,
+                        cacheKey = LLMResponseCache.buildKey(
+                            codeSnippet, promptLineStart, llmRequestProvider.chatModel, EXTRACT_FUNCTION_PROMPT_VERSION
+                        )
+                    )
+                }
+        }
+    }
+
+    private fun analyze(function: BatchEFFunction, request: CompletableFuture<LLMBaseResponse?>): CompletableFuture<Unit> {
+        return request
+            .thenComposeAsync({ response ->
+                if (response == null) {
+                    failedFunctions.incrementAndGet()
+                    CompletableFuture.completedFuture(Unit)
+                } else {
+                    validate(function, response)
+                }
+            }, AppExecutorUtil.getAppExecutorService())
+            .exceptionally { throwable ->
+                failedFunctions.incrementAndGet()
+                val cause = throwable.cause ?: throwable
+                if (isFatal(cause)) abortReason = cause
+                logger.info("Batch extract function analysis failed for ${function.name} in ${function.file.path}", cause)
+            }
+    }
+
+    private fun sendRequest(function: BatchEFFunction): CompletableFuture<LLMBaseResponse?> {
+        responseCache?.get(function.cacheKey)?.let { return CompletableFuture.completedFuture(it) }
+
+        val request = llmRequestProvider.createChatGPTRequest(
+            OpenAiChatRequestBody(
+                model = llmRequestProvider.chatModel,
+                messages = fewShotExtractSuggestion(function.codeSnippet)
+            ),
+            apiBaseUrl
+        )
+        request.priority = LLMRequestPriority.BATCH
+        return request.sendAsync().thenApplyCancellable { response ->
+            response?.also { responseCache?.put(function.cacheKey, it) }
+        }
+    }
+
+    private fun validate(function: BatchEFFunction, response: LLMBaseResponse): CompletableFuture<Unit> {
+        analyzedFunctions.incrementAndGet()
+        val done = CompletableFuture.completedFuture(Unit)
+        val efSuggestions = identifyExtractFunctionSuggestions(response)
+        if (efSuggestions.isEmpty()) return done
+
+        val (psiFile, candidates) = ReadAction.compute<Pair<PsiFile, List<EFCandidate>>?, RuntimeException> {
+            if (project.isDisposed || !function.file.isValid) return@compute null
+            val psiFile = PsiManager.getInstance(project).findFile(function.file) ?: return@compute null
+            val document = PsiDocumentManager.getInstance(project).getDocument(psiFile) ?: return@compute null
+            if (document.modificationStamp != function.documentStamp) {
+                staleFunctions.incrementAndGet()
+                return@compute null
+            }
+            psiFile to EFCandidateFactory().buildCandidates(efSuggestions, document, psiFile, function.lineOffset).toList()
+        } ?: return done
+
+        return filterExtractableCandidatesAsync(candidates, psiFile).thenApply { extractableCandidates ->
+            if (extractableCandidates.isNotEmpty()) {
+                results.add(function to extractableCandidates)
+            }
+        }
+    }
+
+    /**
+     * Long candidates in long functions come first: they are the ones a refactoring sweep benefits from most.
+     */
+    private fun rankCandidates(): List<BatchEFReportEntry> {
+        return results
+            .flatMap { (function, candidates) -> candidates.map { function to it } }
+            .sortedWith(
+                compareByDescending<Pair<BatchEFFunction, EFCandidate>> { (function, _) -> function.size }
+                    .thenByDescending { (_, candidate) -> candidate.lineEnd - candidate.lineStart }
+            )
+            .mapIndexed { index, (function, candidate) ->
+                BatchEFReportEntry(
+                    rank = index + 1,
+                    filePath = function.file.path,
+                    hostFunctionName = function.name,
+                    hostFunctionLineStart = function.lineStart,
+                    hostFunctionSize = function.size,
+                    functionName = candidate.functionName,
+                    lineStart = candidate.lineStart,
+                    lineEnd = candidate.lineEnd
+                )
+            }
+    }
+
+    /**
+     * Failures that will repeat for every remaining function, so the analysis should stop.
+     */
+    private fun isFatal(throwable: Throwable): Boolean {
+        return throwable is AuthorizationException || throwable is LLMCircuitOpenException ||
+                (throwable is HttpRequests.HttpStatusException && throwable.statusCode == HttpURLConnection.HTTP_UNAUTHORIZED)
+    }
+
+    private data class BatchEFFunction(
+        val file: VirtualFile,
+        val name: String,
+        val codeSnippet: String,
+        val lineStart: Int,
+        val size: Int,
+        val lineOffset: Int,
+        val documentStamp: Long,
+        val cacheKey: String,
+    )
+}
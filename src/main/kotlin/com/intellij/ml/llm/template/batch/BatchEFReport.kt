@@ -0,0 +1,60 @@
+package com.intellij.ml.llm.template.batch
+
+import com.google.gson.GsonBuilder
+import com.google.gson.annotations.SerializedName
+import java.nio.file.Files
+import java.nio.file.Path
+
+data class BatchEFReport(
+    @SerializedName("scope")
+    var scope: String,
+
+    @SerializedName("durationMillis")
+    var durationMillis: Long,
+
+    @SerializedName("cancelled")
+    var cancelled: Boolean,
+
+    @SerializedName("analyzedFunctions")
+    var analyzedFunctions: Int,
+
+    @SerializedName("failedFunctions")
+    var failedFunctions: Int,
+
+    @SerializedName("staleFunctions")
+    var staleFunctions: Int,
+
+    @SerializedName("candidates")
+    var candidates: List<BatchEFReportEntry>,
+) {
+    fun writeTo(path: Path) {
+        Files.createDirectories(path.parent)
+        Files.writeString(path, GsonBuilder().setPrettyPrinting().create().toJson(this))
+    }
+}
+
+data class BatchEFReportEntry(
+    @SerializedName("rank")
+    var rank: Int,
+
+    @SerializedName("filePath")
+    var filePath: String,
+
+    @SerializedName("hostFunctionName")
+    var hostFunctionName: String,
+
+    @SerializedName("hostFunctionLineStart")
+    var hostFunctionLineStart: Int,
+
+    @SerializedName("hostFunctionSize")
+    var hostFunctionSize: Int,
+
+    @SerializedName("functionName")
+    var functionName: String,
+
+    @SerializedName("lineStart")
+    var lineStart: Int,
+
+    @SerializedName("lineEnd")
+    var lineEnd: Int,
+)
@@ -0,0 +1,102 @@
+package com.intellij.ml.llm.template.batch
+
+import com.intellij.ml.llm.template.LLMBundle
+import com.intellij.ml.llm.template.models.LLMCircuitOpenException
+import com.intellij.ml.llm.template.models.openai.AuthorizationException
+import com.intellij.ml.llm.template.showAuthorizationFailedNotification
+import com.intellij.ml.llm.template.showEFNotification
+import com.intellij.ml.llm.template.showUnauthorizedNotification
+import com.intellij.notification.NotificationType
+import com.intellij.openapi.actionSystem.ActionUpdateThread
+import com.intellij.openapi.actionSystem.AnAction
+import com.intellij.openapi.actionSystem.AnActionEvent
+import com.intellij.openapi.actionSystem.PlatformCoreDataKeys
+import com.intellij.openapi.application.PathManager
+import com.intellij.openapi.application.invokeLater
+import com.intellij.openapi.fileEditor.FileEditorManager
+import com.intellij.openapi.progress.ProgressIndicator
+import com.intellij.openapi.progress.ProgressManager
+import com.intellij.openapi.progress.Task
+import com.intellij.openapi.progress.impl.BackgroundableProcessIndicator
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.vfs.LocalFileSystem
+import com.intellij.psi.search.GlobalSearchScope
+import com.intellij.psi.search.GlobalSearchScopesCore
+import com.intellij.util.io.HttpRequests
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.text.SimpleDateFormat
+import java.util.*
+
+/**
+ * Runs [BatchEFAnalyzer] over the production sources of the selected module, or of the whole project,
+ * and opens the ranked report when the analysis is done.
+ */
+@Suppress("UnstableApiUsage")
+class BatchExtractFunctionAction : AnAction() {
+    companion object {
+        private const val REPORT_DIR_NAME = "ef_plugin_logs"
+    }
+
+    override fun getActionUpdateThread(): ActionUpdateThread = ActionUpdateThread.BGT
+
+    override fun update(e: AnActionEvent) {
+        e.presentation.isEnabledAndVisible = e.project != null
+    }
+
+    override fun actionPerformed(e: AnActionEvent) {
+        val project = e.project ?: return
+        val scope = e.getData(PlatformCoreDataKeys.MODULE)?.getModuleScope(false)
+            ?: GlobalSearchScopesCore.projectProductionScope(project)
+        runAnalysis(project, scope)
+    }
+
+    private fun runAnalysis(project: Project, scope: GlobalSearchScope) {
+        val task = object : Task.Backgroundable(
+            project, LLMBundle.message("batch.extract.function.background.process.title", scope.displayName), true
+        ) {
+            override fun run(indicator: ProgressIndicator) {
+                val report = try {
+                    BatchEFAnalyzer(project, scope).run(indicator)
+                } catch (e: AuthorizationException) {
+                    showUnauthorizedNotification(project)
+                    return
+                } catch (e: HttpRequests.HttpStatusException) {
+                    showAuthorizationFailedNotification(project)
+                    return
+                } catch (e: LLMCircuitOpenException) {
+                    showEFNotification(
+                        project,
+                        LLMBundle.message("batch.extract.function.stopped.message", e.message),
+                        NotificationType.WARNING
+                    )
+                    return
+                }
+
+                val reportPath = buildReportPath()
+                report.writeTo(reportPath)
+                invokeLater {
+                    showEFNotification(
+                        project,
+                        LLMBundle.message(
+                            "batch.extract.function.report.message",
+                            report.candidates.size,
+                            report.analyzedFunctions,
+                            reportPath.toString()
+                        ),
+                        NotificationType.INFORMATION
+                    )
+                    LocalFileSystem.getInstance().refreshAndFindFileByNioFile(reportPath)?.let {
+                        FileEditorManager.getInstance(project).openFile(it, true)
+                    }
+                }
+            }
+        }
+        ProgressManager.getInstance().runProcessWithProgressAsynchronously(task, BackgroundableProcessIndicator(task))
+    }
+
+    private fun buildReportPath(): Path {
+        val timestamp = SimpleDateFormat("yyyyMMdd-HHmmss").format(Date())
+        return Paths.get(PathManager.getLogPath(), REPORT_DIR_NAME, "ef_batch_report_$timestamp.json")
+    }
+}
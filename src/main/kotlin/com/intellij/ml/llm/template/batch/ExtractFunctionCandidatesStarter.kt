@@ -0,0 +1,134 @@
+package com.intellij.ml.llm.template.batch
+
+import com.google.gson.Gson
+import com.intellij.ide.impl.ProjectUtil
+import com.intellij.ml.llm.template.settings.LLMSettingsManager
+import com.intellij.openapi.application.ApplicationManager
+import com.intellij.openapi.application.ApplicationStarter
+import com.intellij.openapi.progress.EmptyProgressIndicator
+import com.intellij.openapi.project.DumbService
+import com.intellij.openapi.project.ProjectManager
+import com.intellij.openapi.vfs.VirtualFile
+import com.intellij.psi.search.GlobalSearchScopesCore
+import java.io.PrintStream
+import java.nio.file.FileSystems
+import java.nio.file.Files
+import java.nio.file.Path
+import kotlin.system.exitProcess
+
+/**
+ * Generates extract function candidates without a GUI, e.g. on a build agent:
+ *
+ * `idea extractFunctionCandidates <project path> [--files <glob>] [--functions <regex>] [--output <file>]
+ * [--endpoint <url>] [--concurrency <n>]`
+ *
+ * Candidates are written as JSON lines, one candidate per line, ranked like the report of [BatchExtractFunctionAction].
+ * `--endpoint` points the run at another OpenAI compatible server, such as a local stub, for reproducible runs,
+ * without changing the server configured in the settings.
+ */
+class ExtractFunctionCandidatesStarter : ApplicationStarter {
+    override val requiredModality: Int
+        get() = ApplicationStarter.NOT_IN_EDT
+
+    override fun main(args: List<String>) {
+        val exitCode = try {
+            run(StarterOptions.parse(args.drop(1)))
+        } catch (e: IllegalArgumentException) {
+            System.err.println(e.message)
+            System.err.println(StarterOptions.USAGE)
+            1
+        } catch (t: Throwable) {
+            t.printStackTrace()
+            1
+        }
+        exitProcess(exitCode)
+    }
+
+    private fun run(options: StarterOptions): Int {
+        val project = ProjectUtil.openOrImport(options.projectPath, null, false)
+            ?: throw IllegalArgumentException("Cannot open project ${options.projectPath}")
+        try {
+            DumbService.getInstance(project).waitForSmartMode()
+            val projectDir = options.projectPath
+            val fileMatcher = options.filesGlob?.let { FileSystems.getDefault().getPathMatcher("glob:$it") }
+            val functionRegex = options.functionsRegex?.toRegex()
+            val analyzer = BatchEFAnalyzer(
+                project = project,
+                scope = GlobalSearchScopesCore.projectProductionScope(project),
+                maxConcurrentRequests = options.concurrency
+                    ?: LLMSettingsManager.getInstance().getBatchMaxConcurrentRequests(),
+                fileFilter = { file -> fileMatcher == null || fileMatcher.matches(relativePath(projectDir, file)) },
+                functionNameFilter = { name -> functionRegex == null || functionRegex.matches(name) },
+                apiBaseUrl = options.endpoint
+            )
+            val report = analyzer.run(EmptyProgressIndicator())
+
+            writeCandidates(report, options.output)
+            System.err.println(
+                "Analyzed ${report.analyzedFunctions} functions in ${report.durationMillis} ms: " +
+                        "${report.candidates.size} candidates, ${report.failedFunctions} failed"
+            )
+            return if (report.failedFunctions == 0) 0 else 2
+        } finally {
+            ApplicationManager.getApplication().invokeAndWait {
+                ProjectManager.getInstance().closeAndDispose(project)
+            }
+        }
+    }
+
+    private fun relativePath(projectDir: Path, file: VirtualFile): Path {
+        val path = file.toNioPath()
+        return if (path.startsWith(projectDir)) projectDir.relativize(path) else path
+    }
+
+    private fun writeCandidates(report: BatchEFReport, output: Path?) {
+        val gson = Gson()
+        val printStream = output?.let {
+            output.parent?.let { Files.createDirectories(it) }
+            PrintStream(Files.newOutputStream(output), false, Charsets.UTF_8)
+        } ?: System.out
+        report.candidates.forEach { printStream.println(gson.toJson(it)) }
+        printStream.flush()
+        if (printStream !== System.out) printStream.close()
+    }
+
+    private data class StarterOptions(
+        val projectPath: Path,
+        val filesGlob: String? = null,
+        val functionsRegex: String? = null,
+        val output: Path? = null,
+        val endpoint: String? = null,
+        val concurrency: Int? = null,
+    ) {
+        companion object {
+            const val USAGE = "Usage: extractFunctionCandidates <project path> [--files <glob>] [--functions <regex>] " +
+                    "[--output <file>] [--endpoint <url>] [--concurrency <n>]"
+
+            fun parse(args: List<String>): StarterOptions {
+                val projectPath = args.firstOrNull()?.takeUnless { it.startsWith("--") }
+                    ?: throw IllegalArgumentException("Project path is not specified")
+                var options = StarterOptions(Path.of(projectPath).toAbsolutePath().normalize())
+
+                var index = 1
+                while (index < args.size) {
+                    val name = args[index]
+                    val value = args.getOrNull(index + 1) ?: throw IllegalArgumentException("Missing value of $name")
+                    options = when (name) {
+                        "--files" -> options.copy(filesGlob = value)
+                        "--functions" -> options.copy(functionsRegex = value)
+                        "--output" -> options.copy(output = Path.of(value).toAbsolutePath())
+                        "--endpoint" -> options.copy(endpoint = value)
+                        "--concurrency" -> options.copy(
+                            concurrency = value.toIntOrNull()?.takeIf { it > 0 }
+                                ?: throw IllegalArgumentException("Invalid concurrency: $value")
+                        )
+
+                        else -> throw IllegalArgumentException("Unknown option $name")
+                    }
+                    index += 2
+                }
+                return options
+            }
+        }
+    }
+}
@@ -29,6 +29,9 @@ data class EFCandidate(
     @SerializedName("type")
     lateinit var type: EfCandidateType
 
+    @SerializedName("votes")
+    var votes: Int = 1
+
     fun isValid(): Boolean {
         return type != EfCandidateType.INVALID
     }
@@ -15,5 +15,11 @@ data class EFSuggestion(
     var lineStart: Int,
 
     @SerializedName("line_end")
-    var lineEnd: Int
+    var lineEnd: Int,
+
+    /**
+     * Number of samples of the reply that suggested this range, see [com.intellij.ml.llm.template.utils.mergeEFSuggestions].
+     */
+    @SerializedName("votes")
+    var votes: Int = 1
 )
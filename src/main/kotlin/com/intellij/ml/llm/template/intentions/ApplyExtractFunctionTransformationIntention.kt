@@ -4,32 +4,50 @@ import com.intellij.codeInsight.intention.IntentionAction
 import com.intellij.codeInsight.unwrap.ScopeHighlighter
 import com.intellij.ml.llm.template.LLMBundle
 import com.intellij.ml.llm.template.extractfunction.EFCandidate
+import com.intellij.ml.llm.template.extractfunction.EFSuggestion
 import com.intellij.ml.llm.template.models.GPTExtractFunctionRequestProvider
+import com.intellij.ml.llm.template.models.HedgedResult
 import com.intellij.ml.llm.template.models.LLMBaseResponse
+import com.intellij.ml.llm.template.models.LLMResponseCache
+import com.intellij.ml.llm.template.models.LLMRetryStats
 import com.intellij.ml.llm.template.models.LLMRequestProvider
-import com.intellij.ml.llm.template.models.sendChatRequest
+import com.intellij.ml.llm.template.models.awaitResponse
+import com.intellij.ml.llm.template.models.openai.OpenAiChatMessage
+import com.intellij.ml.llm.template.models.sendChatRequestAsync
+import com.intellij.ml.llm.template.models.sendChatRequestStreamingAsync
+import com.intellij.ml.llm.template.models.sendHedgedAsync
+import com.intellij.ml.llm.template.models.thenApplyCancellable
+import com.intellij.ml.llm.template.prompts.EXTRACT_FUNCTION_PROMPT_VERSION
 import com.intellij.ml.llm.template.prompts.fewShotExtractSuggestion
+import com.intellij.ml.llm.template.settings.LLMSettingsManager
 import com.intellij.ml.llm.template.showEFNotification
 import com.intellij.ml.llm.template.telemetry.*
 import com.intellij.ml.llm.template.ui.ExtractFunctionPanel
 import com.intellij.ml.llm.template.utils.*
 import com.intellij.notification.NotificationType
+import com.intellij.openapi.application.ReadAction
 import com.intellij.openapi.application.invokeLater
 import com.intellij.openapi.diagnostic.Logger
 import com.intellij.openapi.editor.Editor
+import com.intellij.openapi.progress.EmptyProgressIndicator
+import com.intellij.openapi.progress.ProcessCanceledException
 import com.intellij.openapi.progress.ProgressIndicator
 import com.intellij.openapi.progress.ProgressManager
 import com.intellij.openapi.progress.Task
 import com.intellij.openapi.progress.impl.BackgroundableProcessIndicator
+import com.intellij.openapi.progress.util.ProgressIndicatorUtils
 import com.intellij.openapi.project.Project
 import com.intellij.openapi.ui.popup.JBPopupFactory
 import com.intellij.openapi.ui.popup.JBPopupListener
 import com.intellij.openapi.ui.popup.LightweightWindowEvent
+import com.intellij.openapi.util.registry.Registry
 import com.intellij.psi.PsiFile
 import com.intellij.ui.awt.RelativePoint
+import com.intellij.util.concurrency.AppExecutorUtil
 import org.jetbrains.kotlin.util.capitalizeDecapitalize.toLowerCaseAsciiOnly
 import java.awt.Point
 import java.awt.Rectangle
+import java.util.concurrent.CompletableFuture
 import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicReference
 
@@ -41,11 +59,16 @@ abstract class ApplyExtractFunctionTransformationIntention(
     private val logger = Logger.getInstance("#com.intellij.ml.llm")
     private val codeTransformer = CodeTransformer()
     private val telemetryDataManager = EFTelemetryDataManager()
+    private val telemetryDataObserver = TelemetryDataObserver { telemetryDataManager.onSessionWritten(it.id) }
     private var llmResponseTime = 0L
+    private var llmRetryStats = LLMRetryStats()
+
+    @Volatile
+    private var stageTimer = EFStageTimer()
 
     init {
         codeTransformer.addObserver(EFLoggerObserver(logger))
-        codeTransformer.addObserver(TelemetryDataObserver())
+        codeTransformer.addObserver(telemetryDataObserver)
     }
 
     override fun getFamilyName(): String = LLMBundle.message("intentions.apply.transformation.family.name")
@@ -60,12 +83,21 @@ abstract class ApplyExtractFunctionTransformationIntention(
         val namedElement = PsiUtils.getParentFunctionOrNull(editor, file.language)
         if (namedElement != null) {
             telemetryDataManager.newSession()
+            stageTimer = EFStageTimer()
             val codeSnippet = namedElement.text
 
             val textRange = namedElement.textRange
             selectionModel.setSelection(textRange.startOffset, textRange.endOffset)
             val startLineNumber = editor.document.getLineNumber(selectionModel.selectionStart) + 1
-            val withLineNumbers = addLineNumbersToCodeSnippet(codeSnippet, startLineNumber)
+            // with relative numbering the prompt does not depend on where the function is in the file
+            val promptStartLineNumber = if (Registry.`is`("llm.for.code.enable.relative.line.numbers")) 1 else startLineNumber
+            val lineOffset = startLineNumber - promptStartLineNumber
+            val windows = stageTimer.measure(EFPipelineStage.PROMPT_BUILD) {
+                FunctionChunker(
+                    LLMSettingsManager.getInstance().getPromptTokenBudget(),
+                    minimizer = if (PromptMinimizer.isEnabled()) PromptMinimizer() else null
+                ).split(namedElement, editor.document, promptStartLineNumber)
+            }
 
             telemetryDataManager.addHostFunctionTelemetryData(
                 EFTelemetryDataUtils.buildHostFunctionTelemetryData(
@@ -73,106 +105,533 @@ abstract class ApplyExtractFunctionTransformationIntention(
                     lineStart = startLineNumber,
                     bodyLineStart = PsiUtils.getFunctionBodyStartLine(namedElement),
                     language = file.language.id.toLowerCaseAsciiOnly()
-                )
+                ).apply {
+                    promptTokens = windows.sumOf { TokenEstimator.estimate(it.text) }
+                    promptTokensSaved = windows.sumOf { it.savedTokens }
+                }
             )
 
-            invokeLlm(withLineNumbers, project, editor, file)
+            val numberOfSamples = LLMSettingsManager.getInstance().getNumberOfSamples().coerceAtLeast(1)
+            if (windows.size > 1) {
+                invokeLlmInWindows(windows, numberOfSamples, lineOffset, project, editor, file)
+                return
+            }
+            val cacheKey = LLMResponseCache.buildKey(
+                windows.single().text, promptStartLineNumber, efLLMRequestProvider.chatModel,
+                EXTRACT_FUNCTION_PROMPT_VERSION, numberOfSamples
+            )
+            invokeLlm(windows.single().text, cacheKey, numberOfSamples, lineOffset, project, editor, file)
         }
     }
 
-    private fun invokeLlm(text: String, project: Project, editor: Editor, file: PsiFile) {
+    /**
+     * With several [numberOfSamples], one request asks for that many choices, and candidates are ranked by how many
+     * of them agree. Only a single sample of a request that is not hedged can be streamed.
+     */
+    private fun invokeLlm(
+        text: String,
+        cacheKey: String,
+        numberOfSamples: Int,
+        lineOffset: Int,
+        project: Project,
+        editor: Editor,
+        file: PsiFile
+    ) {
         logger.info("Invoking LLM with text: $text")
-        val messageList = fewShotExtractSuggestion(text)
+        val messageList = stageTimer.measure(EFPipelineStage.PROMPT_BUILD) { fewShotExtractSuggestion(text) }
+        val responseCache = LLMResponseCache.getInstance()
+        val hedging = LLMSettingsManager.getInstance().isHedgingEnabled()
+        val streaming = Registry.`is`("llm.for.code.enable.streaming") && numberOfSamples == 1 && !hedging
+        val retryStats = LLMRetryStats()
+        llmRetryStats = retryStats
 
         val task = object : Task.Backgroundable(
             project, LLMBundle.message("intentions.request.extract.function.background.process.title")
         ) {
             override fun run(indicator: ProgressIndicator) {
                 val now = System.nanoTime()
-                val response = sendChatRequest(
-                    project, messageList, efLLMRequestProvider.chatModel, efLLMRequestProvider
-                )
-                if (response != null) {
+                val cachedResponse = responseCache.get(cacheKey)
+                if (cachedResponse != null) {
+                    logger.info("Reusing cached LLM response")
+                } else if (streaming) {
+                    requestStreaming(messageList, cacheKey, lineOffset, project, editor, file, indicator, now, retryStats)
+                    return
+                } else if (hedging) {
+                    requestHedged(
+                        messageList, cacheKey, numberOfSamples, lineOffset, project, editor, file, indicator, retryStats
+                    )
+                    return
+                }
+                val response = cachedResponse ?: awaitResponse(
+                    sendChatRequestAsync(
+                        project, messageList, efLLMRequestProvider.chatModel, efLLMRequestProvider, numberOfSamples,
+                        retryStats = retryStats, timingListener = stageTimer
+                    ),
+                    indicator
+                )?.also { responseCache.put(cacheKey, it) }
+                    ?: return
+                val responseTime = System.nanoTime() - now
+
+                if (response.getSuggestions().isEmpty()) {
                     invokeLater {
-                        llmResponseTime = System.nanoTime() - now
-                        if (response.getSuggestions().isEmpty()) {
-                            showEFNotification(
-                                project,
-                                LLMBundle.message("notification.extract.function.with.llm.no.suggestions.message"),
-                                NotificationType.INFORMATION
-                            )
-                        } else {
-                            processLLMResponse(response, project, editor, file)
-                        }
+                        llmResponseTime = responseTime
+                        showEFNotification(
+                            project,
+                            LLMBundle.message("notification.extract.function.with.llm.no.suggestions.message"),
+                            NotificationType.INFORMATION
+                        )
                     }
+                    return
+                }
+
+                val result = computeCandidates(response, lineOffset, project, editor, file, indicator)
+                invokeLater {
+                    llmResponseTime = responseTime
+                    showCandidates(result, project, editor, file)
                 }
             }
         }
         ProgressManager.getInstance().runProcessWithProgressAsynchronously(task, BackgroundableProcessIndicator(task))
     }
 
-    private fun filterCandidates(
-        candidates: List<EFCandidate>,
-        candidatesApplicationTelemetryObserver: EFCandidatesApplicationTelemetryObserver,
+    /**
+     * Sends the windows of a function too long for one prompt in parallel, then builds and checks the candidates
+     * of all their suggestions together. Windows are cached on their own, so an edit only resends the windows it touches.
+     */
+    private fun invokeLlmInWindows(
+        windows: List<PromptWindow>,
+        numberOfSamples: Int,
+        lineOffset: Int,
+        project: Project,
         editor: Editor,
         file: PsiFile
-    ): List<EFCandidate> {
-        val filteredCandidates = candidates.filter {
-            isCandidateExtractable(
-                it, editor, file, listOf(EFLoggerObserver(logger), candidatesApplicationTelemetryObserver)
+    ) {
+        logger.info("Function is too long for one prompt, sending it in ${windows.size} windows")
+        val responseCache = LLMResponseCache.getInstance()
+        val retryStats = LLMRetryStats()
+        llmRetryStats = retryStats
+
+        val task = object : Task.Backgroundable(
+            project, LLMBundle.message("intentions.request.extract.function.background.process.title")
+        ) {
+            override fun run(indicator: ProgressIndicator) {
+                val now = System.nanoTime()
+                val futures = windows.map { window ->
+                    val cacheKey = LLMResponseCache.buildKey(
+                        window.text, window.lineStart, efLLMRequestProvider.chatModel,
+                        EXTRACT_FUNCTION_PROMPT_VERSION, numberOfSamples
+                    )
+                    responseCache.get(cacheKey)?.let { CompletableFuture.completedFuture<LLMBaseResponse?>(it) }
+                        ?: sendChatRequestAsync(
+                            project,
+                            stageTimer.measure(EFPipelineStage.PROMPT_BUILD) { fewShotExtractSuggestion(window.text) },
+                            efLLMRequestProvider.chatModel,
+                            efLLMRequestProvider,
+                            numberOfSamples,
+                            retryStats = retryStats,
+                            timingListener = stageTimer
+                        ).thenApplyCancellable { response -> response?.also { responseCache.put(cacheKey, it) } }
+                }
+                val responses = try {
+                    awaitResponse(CompletableFuture.allOf(*futures.toTypedArray()), indicator)
+                    futures.map { it.join() }
+                } catch (e: ProcessCanceledException) {
+                    futures.forEach { it.cancel(true) }
+                    throw e
+                }
+                if (responses.all { it == null }) return
+                val responseTime = System.nanoTime() - now
+
+                val efSuggestions = FunctionChunker.stitchSuggestions(
+                    windows.zip(responses).mapNotNull { (window, response) ->
+                        response?.let {
+                            window to stageTimer.measure(EFPipelineStage.SUGGESTION_PARSE) {
+                                identifyExtractFunctionSuggestions(it)
+                            }
+                        }
+                    }
+                )
+                val result = computeCandidates(efSuggestions, lineOffset, project, editor, file, indicator)
+                invokeLater {
+                    llmResponseTime = responseTime
+                    showCandidates(result, project, editor, file)
+                }
+            }
+        }
+        ProgressManager.getInstance().runProcessWithProgressAsynchronously(task, BackgroundableProcessIndicator(task))
+    }
+
+    /**
+     * Streams the LLM reply and shows the candidates popup as soon as the first extractable candidate is discovered.
+     * Candidates found later in the reply are appended to the open popup. The session is finished however the stream
+     * ends, so that its telemetry is sent even if the request fails or is cancelled.
+     */
+    private fun requestStreaming(
+        messageList: List<OpenAiChatMessage>,
+        cacheKey: String,
+        lineOffset: Int,
+        project: Project,
+        editor: Editor,
+        file: PsiFile,
+        indicator: ProgressIndicator,
+        startTime: Long,
+        retryStats: LLMRetryStats
+    ) {
+        val session = StreamedCandidatesSession(lineOffset, project, editor, file)
+        val parser = IncrementalEFSuggestionParser()
+        val stageTimer = stageTimer
+        val response = try {
+            awaitResponse(
+                sendChatRequestStreamingAsync(
+                    project, messageList, efLLMRequestProvider.chatModel, efLLMRequestProvider, retryStats, stageTimer
+                ) { delta ->
+                    val efSuggestions = stageTimer.measure(EFPipelineStage.SUGGESTION_PARSE) { parser.append(delta) }
+                    if (efSuggestions.isNotEmpty()) {
+                        invokeLater { session.addSuggestions(efSuggestions) }
+                    }
+                },
+                indicator
+            )
+        } catch (e: Throwable) {
+            invokeLater {
+                llmResponseTime = System.nanoTime() - startTime
+                session.finish(failed = true)
+            }
+            throw e
+        }
+        response?.let { LLMResponseCache.getInstance().put(cacheKey, it) }
+        invokeLater {
+            llmResponseTime = System.nanoTime() - startTime
+            session.finish(failed = response == null)
+        }
+    }
+
+    /**
+     * Asks the primary model and, if it has not produced extractable candidates within the hedge delay, the backup
+     * model or server as well. The candidates of whichever answers first with extractable ones are shown,
+     * and the other request is cancelled. Only responses of the primary model are cached.
+     */
+    private fun requestHedged(
+        messageList: List<OpenAiChatMessage>,
+        cacheKey: String,
+        numberOfSamples: Int,
+        lineOffset: Int,
+        project: Project,
+        editor: Editor,
+        file: PsiFile,
+        indicator: ProgressIndicator,
+        retryStats: LLMRetryStats
+    ) {
+        val settings = LLMSettingsManager.getInstance()
+        // each attempt is timed on its own, and only the times of the attempt whose candidates are shown count
+        val attemptTimers = List(2) { EFStageTimer(statistics = null, keepMeasurements = true) }
+        val primary = {
+            sendChatRequestAsync(
+                project, messageList, efLLMRequestProvider.chatModel, efLLMRequestProvider, numberOfSamples,
+                retryStats = retryStats, timingListener = attemptTimers[0]
+            ).thenApplyCancellable { response -> response?.also { LLMResponseCache.getInstance().put(cacheKey, it) } }
+        }
+        val backup = {
+            sendChatRequestAsync(
+                project,
+                messageList,
+                settings.getHedgeBackupModel().ifEmpty { efLLMRequestProvider.chatModel },
+                efLLMRequestProvider,
+                numberOfSamples,
+                settings.getHedgeBackupApiBaseUrl().ifEmpty { null },
+                retryStats,
+                attemptTimers[1]
             )
-        }.sortedByDescending { it.lineEnd - it.lineStart }
+        }
+        indicator.text = LLMBundle.message("intentions.extract.function.checking.candidates.text")
+        val hedgedResult = awaitResponse(
+            sendHedgedAsync(
+                listOf(primary, backup),
+                settings.getHedgeDelayMillis().toLong(),
+                { index, response ->
+                    computeCandidatesAsync(response, lineOffset, project, editor, file, attemptTimers[index])
+                },
+                { result -> result.filteredCandidates.isNotEmpty() }
+            ),
+            indicator
+        )
+        val result = hedgedResult.value ?: return
+        val responseTime = hedgedResult.responseTimes[hedgedResult.valueIndex] ?: 0L
+        stageTimer.recordAll(attemptTimers[hedgedResult.valueIndex])
+
+        invokeLater {
+            llmResponseTime = responseTime
+            showCandidates(result, project, editor, file, hedgedResult)
+        }
+    }
+
+    /**
+     * Runs [computeCandidates] on the application pool. Cancelling the returned future stops the computation.
+     */
+    private fun computeCandidatesAsync(
+        response: LLMBaseResponse,
+        lineOffset: Int,
+        project: Project,
+        editor: Editor,
+        file: PsiFile,
+        stageTimer: EFStageTimer
+    ): CompletableFuture<EFPipelineResult> {
+        val indicator = EmptyProgressIndicator()
+        val result = CompletableFuture.supplyAsync(
+            { computeCandidates(response, lineOffset, project, editor, file, indicator, stageTimer) },
+            AppExecutorUtil.getAppExecutorService()
+        )
+        result.whenComplete { _, _ -> if (result.isCancelled) indicator.cancel() }
+        return result
+    }
+
+    private inner class StreamedCandidatesSession(
+        private val lineOffset: Int,
+        private val project: Project,
+        private val editor: Editor,
+        private val file: PsiFile
+    ) {
+        private val candidatesApplicationTelemetryObserver = EFCandidatesApplicationTelemetryObserver()
+        private var numberOfSuggestions = 0
+        private var processingTime = 0L
+        private var efPanel: ExtractFunctionPanel? = null
+        private var pendingBatches = 0
+        private var finished = false
+        private var failed = false
+
+        fun addSuggestions(efSuggestions: List<EFSuggestion>) {
+            val now = System.nanoTime()
+            numberOfSuggestions += efSuggestions.size
+            pendingBatches++
+            buildCandidatesAsync(efSuggestions).thenCompose { candidates ->
+                filterCandidates(candidates, candidatesApplicationTelemetryObserver, file)
+            }.whenComplete { filteredCandidates, _ ->
+                invokeLater {
+                    pendingBatches--
+                    telemetryDataManager.addCandidatesTelemetryData(
+                        buildCandidatesTelemetryData(numberOfSuggestions, candidatesApplicationTelemetryObserver.getData())
+                    )
+                    processingTime += System.nanoTime() - now
+                    showCandidates(filteredCandidates ?: emptyList())
+                    if (finished && pendingBatches == 0) complete()
+                }
+            }
+        }
 
-        return filteredCandidates
+        private fun buildCandidatesAsync(efSuggestions: List<EFSuggestion>): CompletableFuture<List<EFCandidate>> {
+            val document = editor.document
+            val candidates = CompletableFuture<List<EFCandidate>>()
+            ReadAction.nonBlocking<List<EFCandidate>> {
+                stageTimer.measure(EFPipelineStage.BUILD_CANDIDATES) {
+                    EFCandidateFactory().buildCandidates(efSuggestions, document, file, lineOffset).toList()
+                }
+            }
+                .withDocumentsCommitted(project)
+                .expireWith(project)
+                .submit(AppExecutorUtil.getAppExecutorService())
+                .onSuccess { candidates.complete(it) }
+                .onError { candidates.completeExceptionally(it) }
+            return candidates
+        }
+
+        private fun showCandidates(filteredCandidates: List<EFCandidate>) {
+            if (filteredCandidates.isEmpty() || editor.isDisposed) return
+            val panel = efPanel
+            if (panel == null) {
+                efPanel = stageTimer.measure(EFPipelineStage.POPUP_SHOW) {
+                    showExtractFunctionPopup(project, editor, file, filteredCandidates, codeTransformer)
+                }
+            } else {
+                panel.addCandidates(filteredCandidates)
+            }
+        }
+
+        /**
+         * Ends the session once the stream has ended, [failed] if it did not complete. The failure has been reported
+         * already, so no notification about missing candidates is shown then.
+         */
+        fun finish(failed: Boolean = false) {
+            if (finished) return
+            finished = true
+            this.failed = failed
+            if (pendingBatches == 0) complete()
+        }
+
+        private fun complete() {
+            buildProcessingTimeTelemetryData(llmResponseTime, processingTime)
+            if (efPanel != null) return
+            if (failed) {
+                telemetryDataManager.addCandidatesTelemetryData(
+                    buildCandidatesTelemetryData(numberOfSuggestions, candidatesApplicationTelemetryObserver.getData())
+                )
+                sendTelemetryData()
+                return
+            }
+
+            val messageKey = if (numberOfSuggestions == 0) {
+                "notification.extract.function.with.llm.no.suggestions.message"
+            } else {
+                "notification.extract.function.with.llm.no.extractable.candidates.message"
+            }
+            showEFNotification(project, LLMBundle.message(messageKey), NotificationType.INFORMATION)
+            if (numberOfSuggestions == 0) {
+                telemetryDataManager.addCandidatesTelemetryData(buildCandidatesTelemetryData(0, emptyList()))
+            }
+            sendTelemetryData()
+        }
     }
 
-    private fun processLLMResponse(response: LLMBaseResponse, project: Project, editor: Editor, file: PsiFile) {
+    /**
+     * Checks the candidates off the EDT and completes with the extractable ones, those most samples agree on first,
+     * then longest first.
+     */
+    private fun filterCandidates(
+        candidates: List<EFCandidate>,
+        candidatesApplicationTelemetryObserver: EFCandidatesApplicationTelemetryObserver,
+        file: PsiFile,
+        stageTimer: EFStageTimer = this.stageTimer
+    ): CompletableFuture<List<EFCandidate>> {
+        val checkTimeObserver = object : Observer {
+            override fun update(notification: EFNotification) {
+                val payload = notification.payload as? EFCandidateApplicationPayload ?: return
+                stageTimer.record(EFPipelineStage.IS_CANDIDATE_EXTRACTABLE, payload.checkTime)
+            }
+        }
+        return filterExtractableCandidatesAsync(
+            candidates, file, listOf(EFLoggerObserver(logger), candidatesApplicationTelemetryObserver, checkTimeObserver)
+        )
+            .thenApply { filteredCandidates ->
+                filteredCandidates.sortedWith(
+                    compareByDescending<EFCandidate> { it.votes }.thenByDescending { it.lineEnd - it.lineStart }
+                )
+            }
+            .exceptionally { throwable ->
+                logger.warn("Failed to check extract function candidates", throwable)
+                emptyList()
+            }
+    }
+
+    /**
+     * Runs the whole post-LLM pipeline in the background: parsing the reply, building the candidates and checking
+     * which of them can be extracted. If the document changes in the meantime, the pipeline restarts on the new PSI,
+     * since the line numbers of the reply no longer point to the same code.
+     */
+    private fun computeCandidates(
+        response: LLMBaseResponse,
+        lineOffset: Int,
+        project: Project,
+        editor: Editor,
+        file: PsiFile,
+        indicator: ProgressIndicator,
+        stageTimer: EFStageTimer = this.stageTimer
+    ): EFPipelineResult {
         val now = System.nanoTime()
+        val efSuggestions = stageTimer.measure(EFPipelineStage.SUGGESTION_PARSE) {
+            identifyExtractFunctionSuggestions(response)
+        }
+        return computeCandidates(efSuggestions, lineOffset, project, editor, file, indicator, now, stageTimer)
+    }
+
+    private fun computeCandidates(
+        efSuggestions: List<EFSuggestion>,
+        lineOffset: Int,
+        project: Project,
+        editor: Editor,
+        file: PsiFile,
+        indicator: ProgressIndicator,
+        now: Long = System.nanoTime(),
+        stageTimer: EFStageTimer = this.stageTimer
+    ): EFPipelineResult {
+        indicator.text = LLMBundle.message("intentions.extract.function.checking.candidates.text")
+        val document = editor.document
+
+        while (true) {
+            val (documentStamp, candidates) = ReadAction.nonBlocking<Pair<Long, List<EFCandidate>>> {
+                document.modificationStamp to stageTimer.measure(EFPipelineStage.BUILD_CANDIDATES) {
+                    EFCandidateFactory().buildCandidates(efSuggestions, document, file, lineOffset).toList()
+                }
+            }
+                .withDocumentsCommitted(project)
+                .expireWith(project)
+                .wrapProgress(indicator)
+                .executeSynchronously()
 
-        val llmResponse = response.getSuggestions()[0]
-        val efSuggestionList = identifyExtractFunctionSuggestions(llmResponse.text)
-        val candidates = EFCandidateFactory().buildCandidates(efSuggestionList.suggestionList, editor, file).toList()
-        if (candidates.isEmpty()) {
+            val candidatesApplicationTelemetryObserver = EFCandidatesApplicationTelemetryObserver()
+            val filteredCandidatesFuture =
+                filterCandidates(candidates, candidatesApplicationTelemetryObserver, file, stageTimer)
+            val filteredCandidates = try {
+                ProgressIndicatorUtils.awaitWithCheckCanceled(filteredCandidatesFuture, indicator)
+            } catch (e: ProcessCanceledException) {
+                filteredCandidatesFuture.cancel(true)
+                throw e
+            }
+
+            if (document.modificationStamp == documentStamp) {
+                return EFPipelineResult(
+                    numberOfSuggestions = efSuggestions.size,
+                    candidates = candidates,
+                    filteredCandidates = filteredCandidates,
+                    applicationPayloads = candidatesApplicationTelemetryObserver.getData(),
+                    processingTime = System.nanoTime() - now
+                )
+            }
+            logger.info("Document changed while checking extract function candidates, restarting")
+        }
+    }
+
+    private fun showCandidates(
+        result: EFPipelineResult,
+        project: Project,
+        editor: Editor,
+        file: PsiFile,
+        hedgedResult: HedgedResult<*>? = null
+    ) {
+        if (result.candidates.isEmpty()) {
             showEFNotification(
                 project,
                 LLMBundle.message("notification.extract.function.with.llm.no.suggestions.message"),
                 NotificationType.INFORMATION
             )
             telemetryDataManager.addCandidatesTelemetryData(buildCandidatesTelemetryData(0, emptyList()))
-            buildProcessingTimeTelemetryData(llmResponseTime, System.nanoTime() - now)
+            buildProcessingTimeTelemetryData(llmResponseTime, result.processingTime, hedgedResult)
             sendTelemetryData()
-        } else {
-            val candidatesApplicationTelemetryObserver = EFCandidatesApplicationTelemetryObserver()
-            val filteredCandidates = filterCandidates(candidates, candidatesApplicationTelemetryObserver, editor, file)
+            return
+        }
 
-            telemetryDataManager.addCandidatesTelemetryData(
-                buildCandidatesTelemetryData(
-                    efSuggestionList.suggestionList.size,
-                    candidatesApplicationTelemetryObserver.getData()
-                )
-            )
-            buildProcessingTimeTelemetryData(llmResponseTime, System.nanoTime() - now)
+        telemetryDataManager.addCandidatesTelemetryData(
+            buildCandidatesTelemetryData(result.numberOfSuggestions, result.applicationPayloads)
+        )
+        buildProcessingTimeTelemetryData(llmResponseTime, result.processingTime, hedgedResult)
 
-            if (filteredCandidates.isEmpty()) {
-                showEFNotification(
-                    project,
-                    LLMBundle.message("notification.extract.function.with.llm.no.extractable.candidates.message"),
-                    NotificationType.INFORMATION
-                )
-                sendTelemetryData()
-            } else {
-                showExtractFunctionPopup(project, editor, file, filteredCandidates, codeTransformer)
+        if (result.filteredCandidates.isEmpty() || editor.isDisposed) {
+            showEFNotification(
+                project,
+                LLMBundle.message("notification.extract.function.with.llm.no.extractable.candidates.message"),
+                NotificationType.INFORMATION
+            )
+            sendTelemetryData()
+        } else {
+            stageTimer.measure(EFPipelineStage.POPUP_SHOW) {
+                showExtractFunctionPopup(project, editor, file, result.filteredCandidates, codeTransformer)
             }
         }
     }
 
+    private data class EFPipelineResult(
+        val numberOfSuggestions: Int,
+        val candidates: List<EFCandidate>,
+        val filteredCandidates: List<EFCandidate>,
+        val applicationPayloads: List<EFCandidateApplicationPayload>,
+        val processingTime: Long,
+    )
+
     private fun showExtractFunctionPopup(
         project: Project,
         editor: Editor,
         file: PsiFile,
         candidates: List<EFCandidate>,
         codeTransformer: CodeTransformer
-    ) {
+    ): ExtractFunctionPanel {
         val highlighter = AtomicReference(ScopeHighlighter(editor))
         val efPanel = ExtractFunctionPanel(
             project = project,
@@ -181,7 +640,8 @@ abstract class ApplyExtractFunctionTransformationIntention(
             candidates = candidates,
             codeTransformer = codeTransformer,
             highlighter = highlighter,
-            efTelemetryDataManager = telemetryDataManager
+            efTelemetryDataManager = telemetryDataManager,
+            stageTimer = stageTimer
         )
         val elapsedTimeTelemetryDataObserver = TelemetryElapsedTimeObserver()
         efPanel.addObserver(elapsedTimeTelemetryDataObserver)
@@ -206,7 +666,8 @@ abstract class ApplyExtractFunctionTransformationIntention(
                 )
                 buildElapsedTimeTelemetryData(elapsedTimeTelemetryDataObserver)
                 highlighter.getAndSet(null).dropHighlight()
-                sendTelemetryData()
+                // a chosen candidate is applied right after the popup closes, so its time is known only afterwards
+                invokeLater { sendTelemetryData() }
             }
 
             override fun beforeShown(event: LightweightWindowEvent) {
@@ -227,6 +688,7 @@ abstract class ApplyExtractFunctionTransformationIntention(
         val visibleRect: Rectangle = contentComponent.visibleRect
         val point = Point(visibleRect.x + visibleRect.width - 500, visibleRect.y)
         efPopup.show(RelativePoint(contentComponent, point))
+        return efPanel
     }
 
     abstract fun getInstruction(project: Project, editor: Editor): String?
@@ -236,11 +698,18 @@ abstract class ApplyExtractFunctionTransformationIntention(
     private fun sendTelemetryData() {
         val efTelemetryData = telemetryDataManager.getData()
         if (efTelemetryData != null) {
-            TelemetryDataObserver().update(EFNotification(efTelemetryData))
+            if (efTelemetryData.hasProcessingTime()) {
+                efTelemetryData.processingTime.stageTimes = stageTimer.buildTelemetryData()
+            }
+            telemetryDataObserver.update(EFNotification(efTelemetryData))
         }
     }
 
-    private fun buildProcessingTimeTelemetryData(llmResponseTime: Long, pluginProcessingTime: Long) {
+    private fun buildProcessingTimeTelemetryData(
+        llmResponseTime: Long,
+        pluginProcessingTime: Long,
+        hedgedResult: HedgedResult<*>? = null
+    ) {
         val llmResponseTimeMillis = TimeUnit.NANOSECONDS.toMillis(llmResponseTime)
         val pluginProcessingTimeMillis = TimeUnit.NANOSECONDS.toMillis(pluginProcessingTime)
         val efTelemetryData = telemetryDataManager.getData()
@@ -249,7 +718,17 @@ abstract class ApplyExtractFunctionTransformationIntention(
 
                 llmResponseTime = llmResponseTimeMillis,
                 pluginProcessingTime = pluginProcessingTimeMillis,
-                totalTime = llmResponseTimeMillis + pluginProcessingTimeMillis
+                totalTime = llmResponseTimeMillis + pluginProcessingTimeMillis,
+                hedged = hedgedResult != null && hedgedResult.attemptsSent > 1,
+                hedgeWinner = when (hedgedResult?.winner) {
+                    0 -> "primary"
+                    1 -> "backup"
+                    else -> null
+                },
+                primaryResponseTime = hedgedResult?.responseTimes?.get(0)?.let { TimeUnit.NANOSECONDS.toMillis(it) },
+                hedgeSendTime = hedgedResult?.sendTimes?.getOrNull(1)?.let { TimeUnit.NANOSECONDS.toMillis(it) },
+                retries = llmRetryStats.getRetries(),
+                backoffTime = llmRetryStats.getBackoffMillis()
             )
         }
     }
@@ -4,7 +4,8 @@ import com.intellij.codeInsight.intention.IntentionAction
 import com.intellij.ml.llm.template.LLMBundle
 import com.intellij.ml.llm.template.models.CodexRequestProvider
 import com.intellij.ml.llm.template.models.LLMRequestProvider
-import com.intellij.ml.llm.template.models.sendEditRequest
+import com.intellij.ml.llm.template.models.awaitResponse
+import com.intellij.ml.llm.template.models.sendEditRequestAsync
 import com.intellij.openapi.application.invokeLater
 import com.intellij.openapi.command.WriteCommandAction
 import com.intellij.openapi.diagnostic.Logger
@@ -79,11 +80,14 @@ abstract class ApplyTransformationIntention(
         val task =
             object : Task.Backgroundable(project, LLMBundle.message("intentions.request.background.process.title")) {
                 override fun run(indicator: ProgressIndicator) {
-                    val response = sendEditRequest(
-                        project,
-                        text,
-                        instruction,
-                        llmRequestProvider = llmRequestProvider,
+                    val response = awaitResponse(
+                        sendEditRequestAsync(
+                            project,
+                            text,
+                            instruction,
+                            llmRequestProvider = llmRequestProvider,
+                        ),
+                        indicator
                     )
                     if (response != null) {
                         response.getSuggestions().firstOrNull()?.let {
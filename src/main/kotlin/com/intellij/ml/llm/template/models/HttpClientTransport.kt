@@ -0,0 +1,255 @@
+package com.intellij.ml.llm.template.models
+
+import com.intellij.ml.llm.template.settings.LLMSettingsManager
+import com.intellij.openapi.Disposable
+import com.intellij.openapi.components.Service
+import com.intellij.openapi.components.service
+import com.intellij.util.ConcurrencyUtil
+import com.intellij.util.proxy.CommonProxy
+import java.io.IOException
+import java.net.HttpURLConnection
+import java.net.URI
+import java.net.http.HttpClient
+import java.net.http.HttpRequest
+import java.net.http.HttpResponse
+import java.nio.ByteBuffer
+import java.nio.charset.StandardCharsets
+import java.time.Duration
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Executors
+import java.util.concurrent.Flow
+import java.util.concurrent.ThreadPoolExecutor
+
+/**
+ * [LLMTransport] backed by a single, application-wide [HttpClient].
+ *
+ * The client negotiates HTTP/2 and keeps connections alive between requests, so consecutive calls to the
+ * OpenAI API skip the TCP and TLS handshakes. The client is rebuilt only when the connection settings change.
+ * All clients share one executor, resized to the pool size, so that the requests still running on a replaced client
+ * can complete; the executor is shut down only when the transport is disposed.
+ */
+@Service(Service.Level.APP)
+class HttpClientTransport : LLMTransport, Disposable {
+    companion object {
+        fun getInstance(): HttpClientTransport = service<HttpClientTransport>()
+    }
+
+    private data class ClientConfig(
+        val poolSize: Int,
+        val connectTimeoutMillis: Int,
+        val requestTimeoutMillis: Int,
+    )
+
+    private var config: ClientConfig? = null
+    private var client: HttpClient? = null
+    private var executor: ThreadPoolExecutor? = null
+
+    override fun post(url: String, headers: Map<String, String>, body: String): LLMTransportResponse {
+        val (httpClient, clientConfig) = acquireClient()
+        val clock = ExchangeClock()
+        try {
+            val response = httpClient.send(
+                buildRequest(url, headers, body, clientConfig, clock), clock.timed(HttpResponse.BodyHandlers.ofString())
+            )
+            return LLMTransportResponse(response.statusCode(), response.body(), response.headers().map(), clock.timings())
+        } catch (e: InterruptedException) {
+            Thread.currentThread().interrupt()
+            throw IOException("Request to $url was interrupted", e)
+        }
+    }
+
+    override fun postAsync(
+        url: String,
+        headers: Map<String, String>,
+        body: String
+    ): CompletableFuture<LLMTransportResponse> {
+        val (httpClient, clientConfig) = acquireClient()
+        val clock = ExchangeClock()
+        val exchange = httpClient.sendAsync(
+            buildRequest(url, headers, body, clientConfig, clock), clock.timed(HttpResponse.BodyHandlers.ofString())
+        )
+        return ExchangeFuture(exchange) { LLMTransportResponse(it.statusCode(), it.body(), it.headers().map(), clock.timings()) }
+    }
+
+    override fun postStreaming(
+        url: String,
+        headers: Map<String, String>,
+        body: String,
+        onLine: (String) -> Unit
+    ): CompletableFuture<LLMTransportResponse> {
+        val (httpClient, clientConfig) = acquireClient()
+        val clock = ExchangeClock()
+        val lineSubscriber = LineCallbackSubscriber(onLine)
+        val bodyHandler = HttpResponse.BodyHandler { responseInfo ->
+            if (responseInfo.statusCode() == HttpURLConnection.HTTP_OK) {
+                HttpResponse.BodySubscribers.fromLineSubscriber(lineSubscriber, { "" }, StandardCharsets.UTF_8, null)
+            } else {
+                HttpResponse.BodySubscribers.ofString(StandardCharsets.UTF_8)
+            }
+        }
+        val exchange = httpClient.sendAsync(buildRequest(url, headers, body, clientConfig, clock), clock.timed(bodyHandler))
+        return ExchangeFuture(exchange) {
+            lineSubscriber.failure?.let { failure -> throw failure }
+            LLMTransportResponse(it.statusCode(), it.body(), it.headers().map(), clock.timings())
+        }
+    }
+
+    /**
+     * Completes with the response of [exchange] once the exchange has ended. Cancelling it cancels [exchange] first,
+     * which makes [HttpClient] abort the exchange and close its connection, so a cancelled request, a stream
+     * included, stops downloading right away.
+     */
+    private class ExchangeFuture<T>(
+        private val exchange: CompletableFuture<HttpResponse<T>>,
+        transform: (HttpResponse<T>) -> LLMTransportResponse
+    ) : CompletableFuture<LLMTransportResponse>() {
+        init {
+            exchange.whenComplete { response, throwable ->
+                if (throwable != null) {
+                    completeExceptionally(throwable)
+                } else {
+                    try {
+                        complete(transform(response))
+                    } catch (e: Throwable) {
+                        completeExceptionally(e)
+                    }
+                }
+            }
+        }
+
+        override fun cancel(mayInterruptIfRunning: Boolean): Boolean {
+            val wasDone = isDone
+            // completes this future with the cancellation of the exchange, unless it has just completed on its own
+            exchange.cancel(true)
+            super.cancel(mayInterruptIfRunning)
+            return !wasDone && isCancelled
+        }
+    }
+
+    /**
+     * Times the phases of one exchange. [HttpClient] does not report when it is connected, but it subscribes to
+     * the request body only once the connection, TLS included, is ready to send it, so that moment stands in for it.
+     */
+    private class ExchangeClock {
+        private val start = System.nanoTime()
+
+        @Volatile
+        private var bodyRequested = start
+
+        @Volatile
+        private var headersReceived = start
+
+        fun publisher(body: String): HttpRequest.BodyPublisher {
+            val delegate = HttpRequest.BodyPublishers.ofString(body)
+            return object : HttpRequest.BodyPublisher by delegate {
+                override fun subscribe(subscriber: Flow.Subscriber<in ByteBuffer>) {
+                    bodyRequested = System.nanoTime()
+                    delegate.subscribe(subscriber)
+                }
+            }
+        }
+
+        fun <T> timed(handler: HttpResponse.BodyHandler<T>) = HttpResponse.BodyHandler { responseInfo ->
+            headersReceived = System.nanoTime()
+            handler.apply(responseInfo)
+        }
+
+        fun timings(): LLMTransportTimings {
+            val end = System.nanoTime()
+            val connected = bodyRequested
+            val headers = maxOf(headersReceived, connected)
+            return LLMTransportTimings(connected - start, headers - connected, end - headers)
+        }
+    }
+
+    /**
+     * Hands every line to [onLine] and keeps the [failure] of the stream, so that the exchange fails with it.
+     */
+    private class LineCallbackSubscriber(private val onLine: (String) -> Unit) : Flow.Subscriber<String> {
+        @Volatile
+        var failure: Throwable? = null
+            private set
+
+        override fun onSubscribe(subscription: Flow.Subscription) {
+            subscription.request(Long.MAX_VALUE)
+        }
+
+        override fun onNext(item: String) = onLine(item)
+
+        override fun onError(throwable: Throwable) {
+            failure = throwable
+        }
+
+        override fun onComplete() {}
+    }
+
+    private fun buildRequest(
+        url: String,
+        headers: Map<String, String>,
+        body: String,
+        clientConfig: ClientConfig,
+        clock: ExchangeClock
+    ): HttpRequest {
+        return HttpRequest.newBuilder(URI.create(url))
+            .timeout(Duration.ofMillis(clientConfig.requestTimeoutMillis.toLong()))
+            .header("Content-Type", "application/json")
+            .apply { headers.forEach { (name, value) -> header(name, value) } }
+            .POST(clock.publisher(body))
+            .build()
+    }
+
+    @Synchronized
+    private fun acquireClient(): Pair<HttpClient, ClientConfig> {
+        val settings = LLMSettingsManager.getInstance()
+        val newConfig = ClientConfig(
+            poolSize = settings.getConnectionPoolSize(),
+            connectTimeoutMillis = settings.getConnectTimeoutMillis(),
+            requestTimeoutMillis = settings.getRequestTimeoutMillis(),
+        )
+        val currentClient = client
+        if (currentClient != null && newConfig == config) {
+            return currentClient to newConfig
+        }
+
+        val sharedExecutor = resizeExecutor(newConfig.poolSize)
+        val newClient = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_2)
+            .connectTimeout(Duration.ofMillis(newConfig.connectTimeoutMillis.toLong()))
+            .proxy(CommonProxy.getInstance())
+            .executor(sharedExecutor)
+            .build()
+
+        client = newClient
+        config = newConfig
+        return newClient to newConfig
+    }
+
+    private fun resizeExecutor(poolSize: Int): ThreadPoolExecutor {
+        val currentExecutor = executor
+        if (currentExecutor == null) {
+            val newExecutor = Executors.newFixedThreadPool(
+                poolSize,
+                ConcurrencyUtil.newNamedThreadFactory("LLM HTTP client", true, Thread.NORM_PRIORITY)
+            ) as ThreadPoolExecutor
+            executor = newExecutor
+            return newExecutor
+        }
+        // the core size must never exceed the maximum size
+        if (poolSize > currentExecutor.maximumPoolSize) {
+            currentExecutor.maximumPoolSize = poolSize
+            currentExecutor.corePoolSize = poolSize
+        } else {
+            currentExecutor.corePoolSize = poolSize
+            currentExecutor.maximumPoolSize = poolSize
+        }
+        return currentExecutor
+    }
+
+    @Synchronized
+    override fun dispose() {
+        executor?.shutdown()
+        executor = null
+        client = null
+        config = null
+    }
+}
@@ -2,6 +2,8 @@ package com.intellij.ml.llm.template.models
 
 import com.intellij.ml.llm.template.models.openai.OpenAICompletionRequest
 import com.intellij.ml.llm.template.models.openai.OpenAIEditRequest
+import com.intellij.util.concurrency.AppExecutorUtil
+import java.util.concurrent.CompletableFuture
 
 data class LLMResponseChoice(val text: String, val finishReason: String?)
 
@@ -10,7 +12,39 @@ interface LLMBaseResponse {
 }
 
 abstract class LLMBaseRequest<Body>(val body: Body) {
+    /**
+     * Position of the request in the queue of [LLMRequestGovernor] while the rate limits hold it back.
+     */
+    var priority: LLMRequestPriority = LLMRequestPriority.INTERACTIVE
+
+    /**
+     * Receives the retries [LLMRequestGovernor] makes for this request.
+     */
+    var retryStats: LLMRetryStats = LLMRetryStats()
+
+    /**
+     * Receives how long the phases of the request took, for requests that measure them.
+     */
+    var timingListener: LLMRequestTimingListener? = null
+
     abstract fun sendSync(): LLMBaseResponse?
+
+    /**
+     * Sends the request without blocking the caller. Requests that have no non-blocking implementation
+     * fall back to running [sendSync] on the application pool.
+     */
+    open fun sendAsync(): CompletableFuture<LLMBaseResponse?> =
+        CompletableFuture.supplyAsync({ sendSync() }, AppExecutorUtil.getAppExecutorService())
+
+    /**
+     * Sends the request and reports the text of the first choice to [onDelta] piece by piece, as it is generated.
+     * Requests that cannot stream report the whole text at once when the response arrives.
+     */
+    open fun sendStreamingAsync(onDelta: (String) -> Unit): CompletableFuture<LLMBaseResponse?> =
+        sendAsync().thenApply { response ->
+            response?.getSuggestions()?.firstOrNull()?.let { onDelta(it.text) }
+            response
+        }
 }
 
 enum class LLMRequestType {
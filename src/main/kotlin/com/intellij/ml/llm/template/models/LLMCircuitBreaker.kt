@@ -0,0 +1,64 @@
+package com.intellij.ml.llm.template.models
+
+import java.io.IOException
+
+/**
+ * Stops sending requests to an endpoint that keeps failing, so that callers fail fast instead of waiting for timeouts
+ * and retries that cannot succeed.
+ *
+ * After [failureThreshold] consecutive transient failures the breaker opens and rejects requests for [cooldownMillis].
+ * Then a single trial request is let through: its success closes the breaker, its failure opens it again.
+ */
+class LLMCircuitBreaker(
+    private val failureThreshold: Int = 5,
+    private val cooldownMillis: Long = 30_000,
+) {
+    private enum class State { CLOSED, OPEN, HALF_OPEN }
+
+    private var state = State.CLOSED
+    private var consecutiveFailures = 0
+    private var changedAt = 0L
+
+    /**
+     * @return `true` if a new request may be sent
+     */
+    @Synchronized
+    fun tryAcquire(): Boolean {
+        val now = System.currentTimeMillis()
+        return when (state) {
+            State.CLOSED -> true
+            // a trial that never reports back, e.g. because it was cancelled, does not keep the breaker half open
+            State.OPEN, State.HALF_OPEN -> if (now - changedAt >= cooldownMillis) {
+                state = State.HALF_OPEN
+                changedAt = now
+                true
+            } else {
+                false
+            }
+        }
+    }
+
+    /**
+     * @return `true` unless the breaker is open, so that a request failing meanwhile should not be retried
+     */
+    @Synchronized
+    fun allowsRetry(): Boolean = state == State.CLOSED
+
+    @Synchronized
+    fun onSuccess() {
+        state = State.CLOSED
+        consecutiveFailures = 0
+    }
+
+    @Synchronized
+    fun onFailure() {
+        consecutiveFailures++
+        if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+            state = State.OPEN
+            changedAt = System.currentTimeMillis()
+        }
+    }
+}
+
+class LLMCircuitOpenException(endpoint: String) :
+    IOException("Requests to $endpoint are paused after repeated failures")
@@ -0,0 +1,349 @@
+package com.intellij.ml.llm.template.models
+
+import com.intellij.ml.llm.template.settings.LLMSettingsManager
+import com.intellij.ml.llm.template.utils.TokenEstimator
+import com.intellij.openapi.Disposable
+import com.intellij.openapi.components.Service
+import com.intellij.openapi.components.service
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.progress.ProgressManager
+import com.intellij.util.concurrency.AppExecutorUtil
+import java.net.URI
+import java.net.URISyntaxException
+import java.time.Duration
+import java.time.Instant
+import java.time.ZonedDateTime
+import java.time.format.DateTimeFormatter
+import java.time.format.DateTimeParseException
+import java.util.PriorityQueue
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ScheduledFuture
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import kotlin.math.ceil
+
+/**
+ * Order in which requests waiting in [LLMRequestGovernor] are sent: requests of an earlier priority go first.
+ */
+enum class LLMRequestPriority {
+    /** Requests the user is waiting for in the editor. */
+    INTERACTIVE,
+
+    /** Background requests, such as those of the batch analysis. */
+    BATCH
+}
+
+/**
+ * Keeps the requests of all open projects and batch runs within the rate limits of the OpenAI organization.
+ *
+ * Requests wait in a queue ordered by [LLMRequestPriority], then by arrival, until they fit into the requests per minute
+ * and tokens per minute buckets and fewer than the maximum number of requests are in flight.
+ *
+ * Transient failures, as classified by [LLMRetryPolicy], are retried within the retry limit and the deadline of the
+ * request. A response with status 429 pauses all requests for the time given by its `Retry-After` header before the
+ * request is sent again; other failures wait for an exponential backoff. Each endpoint has an [LLMCircuitBreaker],
+ * which rejects new requests while the endpoint keeps failing.
+ */
+@Service(Service.Level.APP)
+class LLMRequestGovernor : Disposable {
+    companion object {
+        const val HTTP_TOO_MANY_REQUESTS = 429
+
+        private const val DEFAULT_RETRY_AFTER_MILLIS = 1_000L
+        private const val MAX_RETRY_AFTER_MILLIS = 120_000L
+
+        /** Completion tokens assumed for each choice of a request that does not limit them. */
+        private const val DEFAULT_COMPLETION_TOKENS = 512
+
+        private val logger = Logger.getInstance(LLMRequestGovernor::class.java)
+
+        fun getInstance(): LLMRequestGovernor = service<LLMRequestGovernor>()
+
+        /**
+         * Estimates the tokens a request counts against the tokens per minute limit: its [payload] plus the completion
+         * tokens of every choice, which the API reserves up front.
+         */
+        fun estimateTokens(payload: String, maxTokens: Int?, numberOfChoices: Int?): Int {
+            return TokenEstimator.estimate(payload) +
+                    (maxTokens ?: DEFAULT_COMPLETION_TOKENS) * (numberOfChoices ?: 1).coerceAtLeast(1)
+        }
+
+        /**
+         * @return the delay in milliseconds given by a `Retry-After` header [value], either in seconds or as an HTTP date,
+         * or `null` if the value cannot be parsed
+         */
+        fun parseRetryAfterMillis(value: String?, now: Instant = Instant.now()): Long? {
+            val text = value?.trim()?.ifEmpty { null } ?: return null
+            text.toDoubleOrNull()?.let { seconds -> return (seconds * 1000).toLong().coerceAtLeast(0) }
+            return try {
+                val date = ZonedDateTime.parse(text, DateTimeFormatter.RFC_1123_DATE_TIME)
+                Duration.between(now, date.toInstant()).toMillis().coerceAtLeast(0)
+            } catch (e: DateTimeParseException) {
+                null
+            }
+        }
+
+        /**
+         * Waits for [future] on a thread that cannot block asynchronously, rethrowing the cause of a failure and
+         * cancelling the request when the current progress is cancelled.
+         */
+        fun <T> awaitSync(future: CompletableFuture<T>): T {
+            while (true) {
+                try {
+                    ProgressManager.checkCanceled()
+                    return future.get(50, TimeUnit.MILLISECONDS)
+                } catch (e: TimeoutException) {
+                    continue
+                } catch (e: ExecutionException) {
+                    throw e.cause ?: e
+                } catch (e: Throwable) {
+                    future.cancel(true)
+                    throw e
+                }
+            }
+        }
+    }
+
+    private class PendingRequest(
+        val priority: LLMRequestPriority,
+        val sequence: Long,
+        val tokens: Int,
+        val send: () -> CompletableFuture<LLMTransportResponse>,
+        val result: CompletableFuture<LLMTransportResponse>,
+        val deadline: Long,
+        val circuitBreaker: LLMCircuitBreaker,
+        val retryStats: LLMRetryStats,
+        val canRetry: () -> Boolean,
+    ) {
+        var attempts = 0
+        var running: CompletableFuture<LLMTransportResponse>? = null
+    }
+
+    /**
+     * Refills continuously at the configured rate per minute, up to one minute worth of capacity.
+     */
+    private class TokenBucket {
+        private var capacity = 0.0
+        private var available = 0.0
+        private var updatedAt = System.nanoTime()
+
+        fun refill(perMinute: Int, now: Long) {
+            val newCapacity = perMinute.toDouble()
+            if (newCapacity != capacity) {
+                available = if (capacity == 0.0) newCapacity else available.coerceAtMost(newCapacity)
+                capacity = newCapacity
+            }
+            available = (available + (now - updatedAt) * capacity / NANOS_PER_MINUTE).coerceAtMost(capacity)
+            updatedAt = now
+        }
+
+        /**
+         * A request larger than the whole bucket waits until the bucket is full and then leaves it in debt.
+         */
+        fun nanosUntilAvailable(amount: Int): Long {
+            val missing = minOf(amount.toDouble(), capacity) - available
+            return if (missing <= 0) 0 else ceil(missing * NANOS_PER_MINUTE / capacity).toLong()
+        }
+
+        fun take(amount: Int) {
+            available -= amount
+        }
+    }
+
+    private val circuitBreakers = ConcurrentHashMap<String, LLMCircuitBreaker>()
+    private val queue = PriorityQueue(compareBy<PendingRequest>({ it.priority }, { it.sequence }))
+    private val requestBucket = TokenBucket()
+    private val tokenBucket = TokenBucket()
+    private var nextSequence = 0L
+    private var inFlight = 0
+    private var pausedUntil = System.nanoTime()
+    private var wakeUp: ScheduledFuture<*>? = null
+    private var wakeUpTime = 0L
+
+    /**
+     * Sends the request started by [send] to [url] as soon as the limits allow it, and again after transient failures.
+     * Cancelling the returned future removes the request from the queue, or aborts its exchange if it is already
+     * running; the request keeps its in-flight slot until the future of the exchange has completed.
+     * The future fails with [LLMCircuitOpenException] right away while the endpoint of [url] keeps failing.
+     *
+     * @param estimatedTokens the tokens counted against the tokens per minute limit, see [estimateTokens]
+     * @param retryStats receives the retries of the request and the time spent waiting for them
+     * @param canRetry tells whether the request can still be sent again, e.g. not after part of a stream was consumed
+     */
+    fun execute(
+        priority: LLMRequestPriority,
+        estimatedTokens: Int,
+        url: String,
+        retryStats: LLMRetryStats = LLMRetryStats(),
+        canRetry: () -> Boolean = { true },
+        send: () -> CompletableFuture<LLMTransportResponse>
+    ): CompletableFuture<LLMTransportResponse> {
+        val endpoint = try {
+            URI(url).authority ?: url
+        } catch (e: URISyntaxException) {
+            url
+        }
+        val circuitBreaker = circuitBreakers.computeIfAbsent(endpoint) { LLMCircuitBreaker() }
+        if (!circuitBreaker.tryAcquire()) return CompletableFuture.failedFuture(LLMCircuitOpenException(endpoint))
+
+        val settings = LLMSettingsManager.getInstance()
+        val deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(settings.getRetryDeadlineMillis().toLong())
+        val result = CompletableFuture<LLMTransportResponse>()
+        val request = synchronized(this) {
+            PendingRequest(
+                priority, nextSequence++, estimatedTokens, send, result, deadline, circuitBreaker, retryStats, canRetry
+            ).also { queue.add(it) }
+        }
+        result.whenComplete { _, _ -> if (result.isCancelled) onCancelled(request) }
+        dispatch()
+        return result
+    }
+
+    /**
+     * Removes the cancelled [request] from the queue or aborts its exchange. The slot of a running request is freed
+     * by [onDone], which the transport calls only once the exchange has ended, so that requests still on the wire
+     * always count against the maximum number of requests in flight.
+     */
+    private fun onCancelled(request: PendingRequest) {
+        val running = synchronized(this) {
+            queue.remove(request)
+            request.running
+        }
+        running?.cancel(true)
+    }
+
+    private fun dispatch() {
+        val ready = mutableListOf<PendingRequest>()
+        synchronized(this) {
+            val settings = LLMSettingsManager.getInstance()
+            val now = System.nanoTime()
+            requestBucket.refill(settings.getRequestsPerMinute(), now)
+            tokenBucket.refill(settings.getTokensPerMinute(), now)
+
+            while (queue.isNotEmpty() && inFlight < settings.getMaxInFlightRequests()) {
+                val next = queue.peek()
+                val waitNanos = maxOf(
+                    pausedUntil - now,
+                    requestBucket.nanosUntilAvailable(1),
+                    tokenBucket.nanosUntilAvailable(next.tokens)
+                )
+                if (waitNanos > 0) {
+                    scheduleDispatch(now + waitNanos)
+                    break
+                }
+                queue.poll()
+                requestBucket.take(1)
+                tokenBucket.take(next.tokens)
+                inFlight++
+                ready.add(next)
+            }
+        }
+        ready.forEach { start(it) }
+    }
+
+    private fun scheduleDispatch(time: Long) {
+        val current = wakeUp
+        if (current != null && !current.isDone && wakeUpTime <= time) return
+        current?.cancel(false)
+        wakeUpTime = time
+        wakeUp = AppExecutorUtil.getAppScheduledExecutorService().schedule(
+            {
+                synchronized(this) { wakeUp = null }
+                dispatch()
+            },
+            time - System.nanoTime(),
+            TimeUnit.NANOSECONDS
+        )
+    }
+
+    private fun start(request: PendingRequest) {
+        request.attempts++
+        val future = try {
+            request.send()
+        } catch (e: Throwable) {
+            CompletableFuture.failedFuture(e)
+        }
+        synchronized(this) { request.running = future }
+        if (request.result.isCancelled) future.cancel(true)
+        future.whenComplete { response, throwable -> onDone(request, response, throwable) }
+    }
+
+    private fun onDone(request: PendingRequest, response: LLMTransportResponse?, throwable: Throwable?) {
+        val rateLimited = response?.statusCode == HTTP_TOO_MANY_REQUESTS
+        val failed = when {
+            response != null -> LLMRetryPolicy.isRetryableStatus(response.statusCode)
+            throwable != null -> LLMRetryPolicy.isRetryableFailure(throwable)
+            else -> false
+        }
+        // rate limiting says nothing about the health of the endpoint
+        if (failed && !rateLimited) {
+            request.circuitBreaker.onFailure()
+        } else if (response != null && !failed) {
+            request.circuitBreaker.onSuccess()
+        }
+
+        val delayMillis = when {
+            rateLimited -> (parseRetryAfterMillis(response!!.header("Retry-After")) ?: DEFAULT_RETRY_AFTER_MILLIS)
+                .coerceAtMost(MAX_RETRY_AFTER_MILLIS)
+
+            failed -> LLMRetryPolicy.backoffMillis(request.attempts)
+            else -> 0L
+        }
+        val retry = failed && shouldRetry(request, delayMillis)
+        synchronized(this) {
+            inFlight--
+            request.running = null
+            if (rateLimited) {
+                pausedUntil = maxOf(pausedUntil, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis))
+                logger.info("Rate limited by the LLM backend, pausing requests for $delayMillis ms")
+                // keeps its sequence number, so it is sent before the requests of its priority that came later
+                if (retry) queue.add(request)
+            }
+        }
+
+        if (retry) {
+            request.retryStats.onRetry(delayMillis)
+            logger.info("Retrying a request to the LLM backend in $delayMillis ms after attempt ${request.attempts} failed")
+            if (!rateLimited) {
+                AppExecutorUtil.getAppScheduledExecutorService().schedule(
+                    { requeue(request) }, delayMillis, TimeUnit.MILLISECONDS
+                )
+            }
+        } else if (throwable != null) {
+            request.result.completeExceptionally(throwable)
+        } else {
+            request.result.complete(response)
+        }
+        dispatch()
+    }
+
+    private fun shouldRetry(request: PendingRequest, delayMillis: Long): Boolean {
+        val settings = LLMSettingsManager.getInstance()
+        return request.attempts <= settings.getMaxRetries() &&
+                !request.result.isDone &&
+                request.canRetry() &&
+                request.circuitBreaker.allowsRetry() &&
+                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis) < request.deadline
+    }
+
+    private fun requeue(request: PendingRequest) {
+        synchronized(this) {
+            if (request.result.isDone) return
+            queue.add(request)
+        }
+        dispatch()
+    }
+
+    override fun dispose() {
+        val pending = synchronized(this) {
+            wakeUp?.cancel(false)
+            wakeUp = null
+            queue.toList().also { queue.clear() }
+        }
+        pending.forEach { it.result.cancel(false) }
+    }
+}
+
+private const val NANOS_PER_MINUTE = 60_000_000_000.0
@@ -63,8 +63,12 @@ open class LLMRequestProvider(
         return OpenAIEditRequest(body)
     }
 
+    /**
+     * @param apiBaseUrl the server to send the request to, the one configured in the settings if not set
+     */
     open fun createChatGPTRequest(
         body: OpenAiChatRequestBody,
+        apiBaseUrl: String? = null,
     ): LLMBaseRequest<*> {
         if (Registry.`is`("llm.for.code.enable.mock.requests")) {
             logger.info("Emulating request to the API to test response presentation")
@@ -72,10 +76,10 @@ open class LLMRequestProvider(
         }
 
         logger.info(
-            "Sending request to OpenAI API with model=$chatModel and messages=${body.messages}"
+            "Sending request to OpenAI API with model=${body.model} and messages=${body.messages}"
         )
 
-        return OpenAIChatRequest(body)
+        return OpenAIChatRequest(body, apiBaseUrl)
     }
 
 
@@ -144,16 +148,16 @@ class ExtractFunctionLLMRequestProvider(
     LLMRequestProvider(completionModel, editModel, chatModel) {
 
 
-    override fun createChatGPTRequest(body: OpenAiChatRequestBody): LLMBaseRequest<*> {
+    override fun createChatGPTRequest(body: OpenAiChatRequestBody, apiBaseUrl: String?): LLMBaseRequest<*> {
         if (Registry.`is`("llm.for.code.enable.mock.requests")) {
             logger.info("Emulating request to the API to test response presentation")
             return MockExtractFunctionRequest(mockReply)
         }
 
         logger.info(
-            "Sending request to OpenAI API with model=$chatModel and messages=${body.messages}"
+            "Sending request to OpenAI API with model=${body.model} and messages=${body.messages}"
         )
 
-        return OpenAIChatRequest(body)
+        return OpenAIChatRequest(body, apiBaseUrl)
     }
 }
\ No newline at end of file
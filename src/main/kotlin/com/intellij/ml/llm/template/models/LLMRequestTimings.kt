@@ -0,0 +1,40 @@
+package com.intellij.ml.llm.template.models
+
+/**
+ * Phases of an LLM request measured by the transport and the request itself.
+ */
+enum class LLMRequestStage {
+    /** From sending the request until the connection is ready for its body. */
+    CONNECT,
+
+    /** From the connection being ready until the response headers arrive. */
+    TIME_TO_FIRST_BYTE,
+
+    /** From the response headers until the whole body has arrived, the whole stream for streamed replies. */
+    BODY_DOWNLOAD,
+
+    /** Decoding the JSON of the response, or of all chunks of a streamed one. */
+    JSON_DECODE,
+}
+
+/**
+ * Receives how long the [LLMRequestStage]s of a request took, in nanoseconds.
+ */
+fun interface LLMRequestTimingListener {
+    fun onRequestStage(stage: LLMRequestStage, nanos: Long)
+}
+
+/**
+ * Network phases of one exchange, in nanoseconds, as seen by the transport.
+ */
+data class LLMTransportTimings(
+    val connect: Long,
+    val timeToFirstByte: Long,
+    val bodyDownload: Long,
+) {
+    fun reportTo(listener: LLMRequestTimingListener) {
+        listener.onRequestStage(LLMRequestStage.CONNECT, connect)
+        listener.onRequestStage(LLMRequestStage.TIME_TO_FIRST_BYTE, timeToFirstByte)
+        listener.onRequestStage(LLMRequestStage.BODY_DOWNLOAD, bodyDownload)
+    }
+}
@@ -0,0 +1,165 @@
+package com.intellij.ml.llm.template.models
+
+import com.google.gson.Gson
+import com.google.gson.JsonParseException
+import com.google.gson.reflect.TypeToken
+import com.intellij.ml.llm.template.settings.LLMSettingsManager
+import com.intellij.openapi.application.PathManager
+import com.intellij.openapi.components.Service
+import com.intellij.openapi.components.service
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.util.registry.Registry
+import com.intellij.util.io.DigestUtil
+import java.io.IOException
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.nio.file.attribute.FileTime
+import java.util.concurrent.TimeUnit
+import kotlin.io.path.extension
+import kotlin.io.path.listDirectoryEntries
+
+private const val CACHE_ENTRY_EXTENSION = "json"
+
+/**
+ * On-disk cache of LLM responses, stored under the IDE system directory so that it survives restarts.
+ *
+ * Every entry is a separate file named after the hash of its key. The modification time of the file doubles as
+ * the last access time: a hit touches the file, and [evict] drops entries that are too old and then the least
+ * recently used ones until the cache fits into the configured size.
+ *
+ * The cache is bypassed when `llm.for.code.enable.response.cache` is disabled, requests are emulated or they go to
+ * the stub server: the key does not include the server, so the fake replies must not be mixed with the real ones.
+ */
+@Service(Service.Level.APP)
+class LLMResponseCache(private val cacheDir: Path = Path.of(PathManager.getSystemPath(), "llm-for-code", "responses")) {
+    companion object {
+        fun getInstance(): LLMResponseCache = service<LLMResponseCache>()
+
+        /**
+         * Builds the key of a response to [codeSnippet], the code sent in the prompt, starting at [lineStart].
+         * It must be the code as sent, line numbers and minimization included, so that a reply is only reused
+         * for the same prompt.
+         * Line endings and trailing whitespace are ignored, since they change neither the prompt's meaning
+         * nor the line numbers the reply refers to. A reply with several samples is stored apart from a single one.
+         */
+        fun buildKey(codeSnippet: String, lineStart: Int, model: String, promptVersion: Int, numberOfSamples: Int = 1): String {
+            val normalizedSnippet = codeSnippet.lines().joinToString("\n") { it.trimEnd() }.trim()
+            val samples = if (numberOfSamples > 1) "n=$numberOfSamples\n" else ""
+            val key = "$promptVersion\n$model\n$samples$lineStart\n$normalizedSnippet"
+            return DigestUtil.sha256Hex(key.toByteArray(StandardCharsets.UTF_8))
+        }
+    }
+
+    private val logger = Logger.getInstance("#com.intellij.ml.llm.template.models")
+    private val gson = Gson()
+    private val choicesType = object : TypeToken<List<LLMResponseChoice>>() {}.type
+
+    fun isEnabled(): Boolean {
+        return Registry.`is`("llm.for.code.enable.response.cache", true) &&
+                !Registry.`is`("llm.for.code.enable.mock.requests", false) &&
+                !Registry.`is`("llm.for.code.enable.stub.server", false)
+    }
+
+    fun get(key: String): LLMBaseResponse? {
+        if (!isEnabled()) return null
+        val entry = entryPath(key)
+        try {
+            if (!Files.isRegularFile(entry)) return null
+            if (isExpired(entry, System.currentTimeMillis())) {
+                Files.deleteIfExists(entry)
+                return null
+            }
+            val choices: List<LLMResponseChoice> = gson.fromJson(Files.readString(entry), choicesType) ?: return null
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()))
+            return CachedLLMResponse(choices)
+        } catch (e: IOException) {
+            logger.warn("Failed to read cached LLM response $entry", e)
+        } catch (e: JsonParseException) {
+            logger.warn("Dropping corrupted cached LLM response $entry", e)
+            deleteEntry(entry)
+        }
+        return null
+    }
+
+    fun put(key: String, response: LLMBaseResponse) {
+        if (!isEnabled()) return
+        val choices = response.getSuggestions()
+        if (choices.isEmpty()) return
+        try {
+            Files.createDirectories(cacheDir)
+            val tempFile = Files.createTempFile(cacheDir, key, ".tmp")
+            Files.writeString(tempFile, gson.toJson(choices))
+            Files.move(tempFile, entryPath(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+            evict()
+        } catch (e: IOException) {
+            logger.warn("Failed to cache LLM response", e)
+        }
+    }
+
+    fun clear() {
+        listEntries().forEach { deleteEntry(it) }
+    }
+
+    /**
+     * Removes the entries older than the configured age, then the least recently used ones
+     * until the cache fits into the configured size.
+     */
+    @Synchronized
+    fun evict() {
+        val now = System.currentTimeMillis()
+        val maxSizeBytes = LLMSettingsManager.getInstance().getResponseCacheSizeMb().toLong() * 1024 * 1024
+        val entries = listEntries()
+            .mapNotNull { entry ->
+                try {
+                    if (isExpired(entry, now)) {
+                        Files.deleteIfExists(entry)
+                        null
+                    } else {
+                        Triple(entry, Files.getLastModifiedTime(entry).toMillis(), Files.size(entry))
+                    }
+                } catch (e: IOException) {
+                    null
+                }
+            }
+            .sortedByDescending { (_, lastAccess, _) -> lastAccess }
+
+        var totalSize = 0L
+        for ((entry, _, size) in entries) {
+            totalSize += size
+            if (totalSize > maxSizeBytes) {
+                deleteEntry(entry)
+            }
+        }
+    }
+
+    private fun isExpired(entry: Path, now: Long): Boolean {
+        val maxAgeMillis = TimeUnit.DAYS.toMillis(LLMSettingsManager.getInstance().getResponseCacheMaxAgeDays().toLong())
+        return now - Files.getLastModifiedTime(entry).toMillis() > maxAgeMillis
+    }
+
+    private fun listEntries(): List<Path> {
+        if (!Files.isDirectory(cacheDir)) return emptyList()
+        return try {
+            cacheDir.listDirectoryEntries().filter { it.extension == CACHE_ENTRY_EXTENSION }
+        } catch (e: IOException) {
+            logger.warn("Failed to list cached LLM responses", e)
+            emptyList()
+        }
+    }
+
+    private fun deleteEntry(entry: Path) {
+        try {
+            Files.deleteIfExists(entry)
+        } catch (e: IOException) {
+            logger.warn("Failed to delete cached LLM response $entry", e)
+        }
+    }
+
+    private fun entryPath(key: String): Path = cacheDir.resolve("$key.$CACHE_ENTRY_EXTENSION")
+}
+
+class CachedLLMResponse(private val choices: List<LLMResponseChoice>) : LLMBaseResponse {
+    override fun getSuggestions(): List<LLMResponseChoice> = choices
+}
@@ -0,0 +1,73 @@
+package com.intellij.ml.llm.template.models
+
+import java.io.EOFException
+import java.net.ConnectException
+import java.net.HttpURLConnection
+import java.net.SocketException
+import java.net.SocketTimeoutException
+import java.net.http.HttpTimeoutException
+import java.nio.channels.ClosedChannelException
+import java.util.concurrent.ThreadLocalRandom
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Decides which failed exchanges with the LLM backend are worth sending again and how long to wait before that.
+ *
+ * Rate limiting (429), server errors (5xx), timeouts and dropped connections are transient.
+ * Everything else, such as a rejected key or a malformed request, fails the same way when repeated.
+ */
+class LLMRetryPolicy {
+    companion object {
+        private const val BASE_BACKOFF_MILLIS = 500L
+        private const val MAX_BACKOFF_MILLIS = 30_000L
+
+        fun isRetryableStatus(statusCode: Int): Boolean {
+            return statusCode == LLMRequestGovernor.HTTP_TOO_MANY_REQUESTS ||
+                    statusCode >= HttpURLConnection.HTTP_INTERNAL_ERROR
+        }
+
+        /**
+         * @return `true` if [throwable] or one of its causes is a timeout or a dropped connection
+         */
+        fun isRetryableFailure(throwable: Throwable): Boolean {
+            var cause: Throwable? = throwable
+            while (cause != null) {
+                if (cause is HttpTimeoutException || cause is SocketTimeoutException || cause is ConnectException ||
+                    cause is SocketException || cause is EOFException || cause is ClosedChannelException
+                ) return true
+                cause = cause.cause?.takeIf { it !== cause }
+            }
+            return false
+        }
+
+        /**
+         * Exponential backoff with jitter: a random delay between half and all of a maximum that doubles with every
+         * attempt, so that clients failing together do not come back together.
+         *
+         * @param attempt the number of the attempt that failed, starting at 1
+         */
+        fun backoffMillis(attempt: Int): Long {
+            val maxDelay = (BASE_BACKOFF_MILLIS shl (attempt - 1).coerceIn(0, 16)).coerceAtMost(MAX_BACKOFF_MILLIS)
+            return ThreadLocalRandom.current().nextLong(maxDelay / 2, maxDelay + 1)
+        }
+    }
+}
+
+/**
+ * Retries of one request and the time it spent waiting between them, collected by [LLMRequestGovernor].
+ * One instance may be shared by several requests, e.g. the attempts of a hedged request, to sum them up.
+ */
+class LLMRetryStats {
+    private val retries = AtomicInteger()
+    private val backoffMillis = AtomicLong()
+
+    fun getRetries(): Int = retries.get()
+
+    fun getBackoffMillis(): Long = backoffMillis.get()
+
+    fun onRetry(delayMillis: Long) {
+        retries.incrementAndGet()
+        backoffMillis.addAndGet(delayMillis)
+    }
+}
@@ -0,0 +1,44 @@
+package com.intellij.ml.llm.template.models
+
+import java.util.concurrent.CompletableFuture
+
+/**
+ * Transport used by [LLMBaseRequest] implementations to exchange JSON payloads with the LLM backend.
+ * Implementations are expected to be shared between requests, so that connections can be reused.
+ *
+ * Cancelling a future returned by [postAsync] or [postStreaming] must abort its exchange, and the future must not
+ * complete before the exchange has ended: [LLMRequestGovernor] holds the in-flight slot of a request until then.
+ */
+interface LLMTransport {
+    fun post(url: String, headers: Map<String, String>, body: String): LLMTransportResponse
+
+    fun postAsync(url: String, headers: Map<String, String>, body: String): CompletableFuture<LLMTransportResponse>
+
+    /**
+     * Posts [body] and hands every line of a successful response to [onLine] as soon as it arrives.
+     * The body of the returned response is empty on success and holds the error payload otherwise.
+     */
+    fun postStreaming(
+        url: String,
+        headers: Map<String, String>,
+        body: String,
+        onLine: (String) -> Unit
+    ): CompletableFuture<LLMTransportResponse>
+}
+
+/**
+ * @param timings how long the network phases of the exchange took, if the transport measures them
+ */
+data class LLMTransportResponse(
+    val statusCode: Int,
+    val body: String,
+    val headers: Map<String, List<String>> = emptyMap(),
+    val timings: LLMTransportTimings? = null,
+) {
+    /**
+     * @return the first value of the header [name], matched ignoring case
+     */
+    fun header(name: String): String? {
+        return headers.entries.firstOrNull { it.key.equals(name, ignoreCase = true) }?.value?.firstOrNull()
+    }
+}
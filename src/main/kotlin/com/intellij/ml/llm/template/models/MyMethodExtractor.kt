@@ -5,6 +5,7 @@ import com.intellij.codeInsight.Nullability
 import com.intellij.codeInsight.highlighting.HighlightManager
 import com.intellij.ide.util.PropertiesComponent
 import com.intellij.java.refactoring.JavaRefactoringBundle
+import com.intellij.ml.llm.template.utils.EFAnalysisCache
 import com.intellij.openapi.application.ReadAction
 import com.intellij.openapi.application.WriteAction
 import com.intellij.openapi.command.CommandProcessor
@@ -75,12 +76,12 @@ class MyMethodExtractor (private val functionNameProvider: FunctionNameProvider?
     fun findAndSelectExtractOption(editor: Editor, file: PsiFile, range: TextRange): CompletableFuture<ExtractOptions>? {
         try {
             if (!CommonRefactoringUtil.checkReadOnlyStatus(file.project, file)) return null
-            val elements = ExtractSelector().suggestElementsToExtract(file, range)
-            if (elements.isEmpty()) {
-                throw ExtractException(RefactoringBundle.message("selected.block.should.represent.a.set.of.statements.or.an.expression"), file)
-            }
+            // reuses the analysis done when the candidate was validated, unless the file has changed since
             val allOptionsToExtract: List<ExtractOptions> = computeWithAnalyzeProgress<List<ExtractOptions>, ExtractException>(file.project) {
-                findAllOptionsToExtract(elements)
+                EFAnalysisCache.getJavaExtractOptions(file, range)
+            }
+            if (allOptionsToExtract.isEmpty()) {
+                throw ExtractException(RefactoringBundle.message("selected.block.should.represent.a.set.of.statements.or.an.expression"), file)
             }
             return selectOptionWithTargetClass(editor, allOptionsToExtract)
         }
@@ -11,10 +11,19 @@ import com.intellij.ml.llm.template.showAuthorizationFailedNotification
 import com.intellij.ml.llm.template.showRequestFailedNotification
 import com.intellij.ml.llm.template.showUnauthorizedNotification
 import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.progress.ProcessCanceledException
+import com.intellij.openapi.progress.ProgressIndicator
+import com.intellij.openapi.progress.util.ProgressIndicatorUtils
 import com.intellij.openapi.project.Project
+import com.intellij.util.concurrency.AppExecutorUtil
 import com.intellij.util.io.HttpRequests
 import java.io.IOException
 import java.net.HttpURLConnection
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
 
 private val logger = Logger.getInstance("#com.intellij.ml.llm.template.models")
 
@@ -27,20 +36,43 @@ fun sendEditRequest(
     numberOfSuggestions: Int? = null,
     llmRequestProvider: LLMRequestProvider = CodexRequestProvider,
 ): LLMBaseResponse? {
-    val settings = LLMSettingsManager.getInstance()
+    val request = createEditRequest(input, instruction, temperature, topP, numberOfSuggestions, llmRequestProvider)
+    return sendRequest(project, request)
+}
 
-    val request = llmRequestProvider.createEditRequest(
-        input = input,
-        instruction = instruction,
-        temperature = temperature ?: settings.getTemperature(),
-        topP = topP ?: settings.getTopP(),
-        numberOfSuggestions = numberOfSuggestions ?: settings.getNumberOfSamples()
-    )
+fun sendEditRequestAsync(
+    project: Project,
+    input: String,
+    instruction: String,
+    temperature: Double? = null,
+    topP: Double? = null,
+    numberOfSuggestions: Int? = null,
+    llmRequestProvider: LLMRequestProvider = CodexRequestProvider,
+): CompletableFuture<LLMBaseResponse?> {
+    val request = createEditRequest(input, instruction, temperature, topP, numberOfSuggestions, llmRequestProvider)
+    return sendRequestAsync(project, request)
+}
 
+fun sendCompletionRequest(
+    project: Project,
+    input: String,
+    suffix: String,
+    maxTokens: Int? = null,
+    temperature: Double? = null,
+    presencePenalty: Double? = null,
+    frequencyPenalty: Double? = null,
+    topP: Double? = null,
+    numberOfSuggestions: Int? = null,
+    llmRequestProvider: LLMRequestProvider = CodexRequestProvider,
+): LLMBaseResponse? {
+    val request = createCompletionRequest(
+        input, suffix, maxTokens, temperature, presencePenalty, frequencyPenalty, topP, numberOfSuggestions,
+        llmRequestProvider
+    )
     return sendRequest(project, request)
 }
 
-fun sendCompletionRequest(
+fun sendCompletionRequestAsync(
     project: Project,
     input: String,
     suffix: String,
@@ -51,8 +83,245 @@ fun sendCompletionRequest(
     topP: Double? = null,
     numberOfSuggestions: Int? = null,
     llmRequestProvider: LLMRequestProvider = CodexRequestProvider,
+): CompletableFuture<LLMBaseResponse?> {
+    val request = createCompletionRequest(
+        input, suffix, maxTokens, temperature, presencePenalty, frequencyPenalty, topP, numberOfSuggestions,
+        llmRequestProvider
+    )
+    return sendRequestAsync(project, request)
+}
+
+fun sendChatRequest(
+    project: Project,
+    messages: List<OpenAiChatMessage>,
+    model: String? = null,
+    llmRequestProvider: LLMRequestProvider = GPTRequestProvider
 ): LLMBaseResponse? {
-    val request = llmRequestProvider.createCompletionRequest(
+    val request = createChatRequest(messages, model, llmRequestProvider)
+    return sendRequest(project, request)
+}
+
+/**
+ * @param numberOfSuggestions how many choices the reply should hold; the API default of one when not set.
+ * @param apiBaseUrl the server to send the request to, the one configured in the settings if not set.
+ * @param retryStats receives the retries made for the request after transient failures.
+ * @param timingListener receives how long the phases of the request took.
+ */
+fun sendChatRequestAsync(
+    project: Project,
+    messages: List<OpenAiChatMessage>,
+    model: String? = null,
+    llmRequestProvider: LLMRequestProvider = GPTRequestProvider,
+    numberOfSuggestions: Int? = null,
+    apiBaseUrl: String? = null,
+    retryStats: LLMRetryStats? = null,
+    timingListener: LLMRequestTimingListener? = null
+): CompletableFuture<LLMBaseResponse?> {
+    val request = createChatRequest(messages, model, llmRequestProvider, numberOfSuggestions, apiBaseUrl)
+    retryStats?.let { request.retryStats = it }
+    request.timingListener = timingListener
+    return sendRequestAsync(project, request)
+}
+
+/**
+ * Like [sendChatRequestAsync], but [onDelta] receives the reply text of the first choice while it is being generated.
+ */
+fun sendChatRequestStreamingAsync(
+    project: Project,
+    messages: List<OpenAiChatMessage>,
+    model: String? = null,
+    llmRequestProvider: LLMRequestProvider = GPTRequestProvider,
+    retryStats: LLMRetryStats? = null,
+    timingListener: LLMRequestTimingListener? = null,
+    onDelta: (String) -> Unit
+): CompletableFuture<LLMBaseResponse?> {
+    val request = createChatRequest(messages, model, llmRequestProvider)
+    retryStats?.let { request.retryStats = it }
+    request.timingListener = timingListener
+    return handleRequestFailures(project, request.sendStreamingAsync(onDelta))
+}
+
+/**
+ * Outcome of [sendHedgedAsync]: the [value] of the attempt that won, or of the first attempt that produced one if none
+ * was accepted. [winner] is the index of the accepted attempt, or -1, and [valueIndex] the index of the attempt
+ * [value] comes from, or -1 without a value. [responseTimes] holds the time in nanoseconds
+ * from the start until each attempt's response, or `null` for attempts that were not sent, failed or were cancelled.
+ * [sendTimes] holds the time in nanoseconds from the start until each attempt was sent, or `null` if it was not.
+ */
+class HedgedResult<T>(
+    val value: T?,
+    val winner: Int,
+    val valueIndex: Int,
+    val attemptsSent: Int,
+    val responseTimes: List<Long?>,
+    val sendTimes: List<Long?>,
+)
+
+/**
+ * Sends the same request in several ways, e.g. to a primary and a backup model, to cut the latency of slow responses.
+ * The first of [attempts] is sent right away. The next one is sent when no accepted result has been produced within
+ * [hedgeDelayMillis] after the previous one, or immediately once every sent attempt has finished without one.
+ * Each response is turned into a value by [evaluate], which also gets the index of the attempt.
+ * The first value that [isAccepted] approves wins, and the other attempts are cancelled.
+ * Cancelling the returned future cancels all attempts.
+ */
+fun <T : Any> sendHedgedAsync(
+    attempts: List<() -> CompletableFuture<LLMBaseResponse?>>,
+    hedgeDelayMillis: Long,
+    evaluate: (Int, LLMBaseResponse) -> CompletableFuture<T>,
+    isAccepted: (T) -> Boolean,
+): CompletableFuture<HedgedResult<T>> {
+    return HedgedRequest(attempts, hedgeDelayMillis, evaluate, isAccepted).start()
+}
+
+private class HedgedRequest<T : Any>(
+    private val attempts: List<() -> CompletableFuture<LLMBaseResponse?>>,
+    private val hedgeDelayMillis: Long,
+    private val evaluate: (Int, LLMBaseResponse) -> CompletableFuture<T>,
+    private val isAccepted: (T) -> Boolean,
+) {
+    private val result = CompletableFuture<HedgedResult<T>>()
+    private val startTime = System.nanoTime()
+    private val running = mutableListOf<Future<*>>()
+    private val values = MutableList<T?>(attempts.size) { null }
+    private val responseTimes = MutableList<Long?>(attempts.size) { null }
+    private val sendTimes = MutableList<Long?>(attempts.size) { null }
+    private var sent = 0
+    private var finished = 0
+
+    fun start(): CompletableFuture<HedgedResult<T>> {
+        result.whenComplete { _, _ -> cancelRunning() }
+        sendNext()
+        return result
+    }
+
+    @Synchronized
+    private fun sendNext() {
+        if (result.isDone || sent == attempts.size) return
+        val index = sent++
+        sendTimes[index] = System.nanoTime() - startTime
+        if (sent < attempts.size) {
+            running.add(
+                AppExecutorUtil.getAppScheduledExecutorService()
+                    .schedule({ hedge(index) }, hedgeDelayMillis, TimeUnit.MILLISECONDS)
+            )
+        }
+
+        val request = attempts[index]()
+        running.add(request)
+        request.thenCompose { response ->
+            onResponse(index)
+            if (response == null) {
+                CompletableFuture.completedFuture(null)
+            } else {
+                evaluate(index, response).also { track(it) }
+            }
+        }.whenComplete { value, throwable ->
+            if (throwable != null && !result.isDone) logger.info("Hedged request attempt $index failed", throwable)
+            onAttemptDone(index, value)
+        }
+    }
+
+    @Synchronized
+    private fun hedge(previousIndex: Int) {
+        // the delay counts from the last attempt sent, which may have been sent early because the previous ones failed
+        if (sent == previousIndex + 1) sendNext()
+    }
+
+    @Synchronized
+    private fun onResponse(index: Int) {
+        responseTimes[index] = System.nanoTime() - startTime
+    }
+
+    @Synchronized
+    private fun track(future: Future<*>) {
+        if (result.isDone) future.cancel(true) else running.add(future)
+    }
+
+    @Synchronized
+    private fun onAttemptDone(index: Int, value: T?) {
+        if (result.isDone) return
+        finished++
+        if (value != null) {
+            values[index] = value
+            if (isAccepted(value)) {
+                result.complete(HedgedResult(value, index, index, sent, responseTimes.toList(), sendTimes.toList()))
+                return
+            }
+        }
+        if (finished < sent) return
+        if (sent < attempts.size) {
+            sendNext()
+        } else {
+            val valueIndex = values.indexOfFirst { it != null }
+            result.complete(
+                HedgedResult(
+                    values.getOrNull(valueIndex), -1, valueIndex, sent, responseTimes.toList(), sendTimes.toList()
+                )
+            )
+        }
+    }
+
+    private fun cancelRunning() {
+        val futures = synchronized(this) { running.toList() }
+        futures.forEach { it.cancel(true) }
+    }
+}
+
+/**
+ * Like [CompletableFuture.thenApply], but cancelling the returned future cancels this one too,
+ * so that a request given up by the caller leaves the queue of [LLMRequestGovernor] or stops running.
+ */
+fun <T, R> CompletableFuture<T>.thenApplyCancellable(transform: (T) -> R): CompletableFuture<R> {
+    val source = this
+    val result = thenApply(transform)
+    result.whenComplete { _, _ -> if (result.isCancelled) source.cancel(true) }
+    return result
+}
+
+/**
+ * Waits for [future] while keeping [indicator] responsive: cancelling the progress cancels the request.
+ */
+fun <T> awaitResponse(future: CompletableFuture<T>, indicator: ProgressIndicator): T {
+    try {
+        return ProgressIndicatorUtils.awaitWithCheckCanceled(future, indicator)
+    } catch (e: ProcessCanceledException) {
+        future.cancel(true)
+        throw e
+    }
+}
+
+private fun createEditRequest(
+    input: String,
+    instruction: String,
+    temperature: Double?,
+    topP: Double?,
+    numberOfSuggestions: Int?,
+    llmRequestProvider: LLMRequestProvider,
+): LLMBaseRequest<*> {
+    val settings = LLMSettingsManager.getInstance()
+
+    return llmRequestProvider.createEditRequest(
+        input = input,
+        instruction = instruction,
+        temperature = temperature ?: settings.getTemperature(),
+        topP = topP ?: settings.getTopP(),
+        numberOfSuggestions = numberOfSuggestions ?: settings.getNumberOfSamples()
+    )
+}
+
+private fun createCompletionRequest(
+    input: String,
+    suffix: String,
+    maxTokens: Int?,
+    temperature: Double?,
+    presencePenalty: Double?,
+    frequencyPenalty: Double?,
+    topP: Double?,
+    numberOfSuggestions: Int?,
+    llmRequestProvider: LLMRequestProvider,
+): LLMBaseRequest<*> {
+    return llmRequestProvider.createCompletionRequest(
         input = input,
         suffix = suffix,
         maxTokens = maxTokens,
@@ -63,45 +332,95 @@ fun sendCompletionRequest(
         frequencyPenalty = frequencyPenalty,
         logProbs = 1
     )
-
-    return sendRequest(project, request)
 }
 
-fun sendChatRequest(
-    project: Project,
+private fun createChatRequest(
     messages: List<OpenAiChatMessage>,
-    model: String? = null,
-    llmRequestProvider: LLMRequestProvider = GPTRequestProvider
-): LLMBaseResponse? {
-    val request = llmRequestProvider.createChatGPTRequest(
+    model: String?,
+    llmRequestProvider: LLMRequestProvider,
+    numberOfSuggestions: Int? = null,
+    apiBaseUrl: String? = null,
+): LLMBaseRequest<*> {
+    return llmRequestProvider.createChatGPTRequest(
         OpenAiChatRequestBody(
             model = model ?: llmRequestProvider.chatModel,
-            messages = messages
-        )
+            messages = messages,
+            numberOfSuggestions = numberOfSuggestions
+        ),
+        apiBaseUrl
     )
-    return sendRequest(project, request)
 }
 
 private fun sendRequest(project: Project, request: LLMBaseRequest<*>): LLMBaseResponse? {
     try {
         return request.sendSync()
-    } catch (e: AuthorizationException) {
-        showUnauthorizedNotification(project)
-    } catch (e: HttpRequests.HttpStatusException) {
-        when (e.statusCode) {
-            HttpURLConnection.HTTP_UNAUTHORIZED -> showAuthorizationFailedNotification(project)
-            else -> {
-                showRequestFailedNotification(
-                    project, LLMBundle.message("notification.request.failed.message", e.message ?: "")
-                )
-                logger.warn(e)
+    } catch (e: Exception) {
+        if (!notifyRequestFailure(project, e)) throw e
+    }
+    return null
+}
+
+/**
+ * Failures that [sendRequest] reports to the user are reported the same way here and complete the future with `null`.
+ * Cancelling the returned future cancels the underlying request.
+ */
+private fun sendRequestAsync(project: Project, request: LLMBaseRequest<*>): CompletableFuture<LLMBaseResponse?> {
+    return handleRequestFailures(project, request.sendAsync())
+}
+
+private fun handleRequestFailures(
+    project: Project,
+    requestFuture: CompletableFuture<LLMBaseResponse?>
+): CompletableFuture<LLMBaseResponse?> {
+    val result = requestFuture.handle<LLMBaseResponse?> { response, throwable ->
+        if (throwable != null) {
+            val cause = unwrapCompletionException(throwable)
+            if (!notifyRequestFailure(project, cause)) throw CompletionException(cause)
+            null
+        } else {
+            response
+        }
+    }
+    result.whenComplete { _, _ ->
+        if (result.isCancelled) requestFuture.cancel(true)
+    }
+    return result
+}
+
+private fun unwrapCompletionException(throwable: Throwable): Throwable {
+    var cause = throwable
+    while ((cause is CompletionException || cause is ExecutionException) && cause.cause != null) {
+        cause = cause.cause!!
+    }
+    return cause
+}
+
+/**
+ * @return `true` if the failure was reported to the user, `false` if it is unexpected and should be rethrown
+ */
+private fun notifyRequestFailure(project: Project, e: Throwable): Boolean {
+    when (e) {
+        is AuthorizationException -> showUnauthorizedNotification(project)
+        is HttpRequests.HttpStatusException -> {
+            when (e.statusCode) {
+                HttpURLConnection.HTTP_UNAUTHORIZED -> showAuthorizationFailedNotification(project)
+                else -> {
+                    showRequestFailedNotification(
+                        project, LLMBundle.message("notification.request.failed.message", e.message ?: "")
+                    )
+                    logger.warn(e)
+                }
             }
         }
-    } catch (e: IOException) {
-        showRequestFailedNotification(
-            project, LLMBundle.message("notification.request.failed.message", e.message ?: "")
-        )
-        logger.warn(e)
+
+        is IOException -> {
+            showRequestFailedNotification(
+                project, LLMBundle.message("notification.request.failed.message", e.message ?: "")
+            )
+            logger.warn(e)
+        }
+
+        else -> return false
     }
-    return null
-}
\ No newline at end of file
+    return true
+}
@@ -1,38 +1,123 @@
 package com.intellij.ml.llm.template.models.openai
 
 import com.google.gson.Gson
-import com.google.gson.GsonBuilder
+import com.google.gson.JsonParseException
+import com.intellij.ml.llm.template.models.HttpClientTransport
 import com.intellij.ml.llm.template.models.LLMBaseRequest
+import com.intellij.ml.llm.template.models.LLMBaseResponse
+import com.intellij.ml.llm.template.models.LLMRequestGovernor
+import com.intellij.ml.llm.template.models.LLMRequestStage
+import com.intellij.ml.llm.template.models.LLMResponseChoice
+import com.intellij.ml.llm.template.models.LLMTransport
+import com.intellij.ml.llm.template.models.LLMTransportResponse
+import com.intellij.ml.llm.template.models.stub.LLMStubServerManager
+import com.intellij.ml.llm.template.models.thenApplyCancellable
+import com.intellij.ml.llm.template.settings.LLMSettingsManager
 import com.intellij.openapi.diagnostic.Logger
 import com.intellij.util.io.HttpRequests
-import org.jetbrains.kotlin.idea.debugger.coroutine.util.logger
 import java.net.HttpURLConnection
+import java.util.concurrent.CompletableFuture
 
-open class OpenAIBaseRequest<Body>(path: String, body: Body) : LLMBaseRequest<Body>(body) {
-    private val url = "https://api.openai.com/v1/$path"
+private val gson = Gson()
+
+/**
+ * Requests to the OpenAI API. Every request goes through [LLMRequestGovernor], which keeps them within the rate limits.
+ *
+ * @param apiBaseUrl the server to send the request to, the one configured in the settings if not set.
+ * Both are overridden by the stub server of [LLMStubServerManager] when it is enabled.
+ */
+open class OpenAIBaseRequest<Body>(
+    path: String,
+    body: Body,
+    protected val transport: LLMTransport = HttpClientTransport.getInstance(),
+    apiBaseUrl: String? = null,
+) : LLMBaseRequest<Body>(body) {
+    private val stubBaseUrl = LLMStubServerManager.getInstance().getBaseUrlIfEnabled()
+    protected val url = "${stubBaseUrl ?: apiBaseUrl ?: LLMSettingsManager.getInstance().getApiBaseUrl()}/$path"
 
     override fun sendSync(): OpenAIChatResponse? {
+        val headers = buildHeaders()
+        val payload = gson.toJson(body)
+        val response = LLMRequestGovernor.awaitSync(governed(payload) { transport.postAsync(url, headers, payload) })
+        return parseResponse(response)
+    }
+
+    override fun sendAsync(): CompletableFuture<LLMBaseResponse?> {
+        val headers = try {
+            buildHeaders()
+        } catch (e: AuthorizationException) {
+            return CompletableFuture.failedFuture(e)
+        }
+        val payload = gson.toJson(body)
+        return governed(payload) { transport.postAsync(url, headers, payload) }
+            .thenApplyCancellable<LLMTransportResponse, LLMBaseResponse?> { parseResponse(it) }
+    }
+
+    /**
+     * Queues [send] in [LLMRequestGovernor] with the priority of the request and the tokens [payload] may use.
+     */
+    protected fun governed(
+        payload: String,
+        canRetry: () -> Boolean = { true },
+        send: () -> CompletableFuture<LLMTransportResponse>
+    ): CompletableFuture<LLMTransportResponse> {
+        val tokens = when (val requestBody = body) {
+            is OpenAiChatRequestBody -> LLMRequestGovernor.estimateTokens(
+                payload, requestBody.maxTokens, requestBody.numberOfSuggestions
+            )
+
+            is OpenAiCompletionRequestBody -> LLMRequestGovernor.estimateTokens(
+                payload, requestBody.maxTokens, requestBody.numberOfSuggestions
+            )
+
+            is OpenAiEditRequestBody -> LLMRequestGovernor.estimateTokens(
+                payload, null, requestBody.numberOfSuggestions
+            )
+
+            else -> LLMRequestGovernor.estimateTokens(payload, null, null)
+        }
+        return LLMRequestGovernor.getInstance().execute(priority, tokens, url, retryStats, canRetry, send)
+    }
+
+    protected fun buildHeaders(): Map<String, String> {
         val apiKey = CredentialsHolder.getInstance().getOpenAiApiKey()?.ifEmpty { null }
+            ?: stubBaseUrl?.let { "stub" }
             ?: throw AuthorizationException("OpenAI API Key is not provided")
-        val jsonBody = GsonBuilder().create().toJson(body)
-
-        return HttpRequests.post(url, "application/json")
-            .tuner {
-                it.setRequestProperty("Authorization", "Bearer $apiKey")
-                CredentialsHolder.getInstance().getOpenAiOrganization()?.let { organization ->
-                    it.setRequestProperty("OpenAI-Organization", organization)
-                }
-            }
-            .connect { request -> request.write(jsonBody)
-                val responseCode = (request.connection as HttpURLConnection).responseCode
-                if (responseCode == HttpURLConnection.HTTP_OK) {
-                    val response = request.readString()
-                    Logger.getInstance("#com.intellij.ml.llm").info("Raw response:\n${response}")
-                    Gson().fromJson(response, OpenAIChatResponse::class.java)
-                } else {
-                    null
-                }
-            }
+
+        val headers = mutableMapOf("Authorization" to "Bearer $apiKey")
+        CredentialsHolder.getInstance().getOpenAiOrganization()?.let { organization ->
+            headers["OpenAI-Organization"] = organization
+        }
+        return headers
+    }
+
+    private fun parseResponse(response: LLMTransportResponse): OpenAIChatResponse? {
+        reportTimings(response)
+        if (!isSuccessful(response)) return null
+        Logger.getInstance("#com.intellij.ml.llm").info("Raw response:\n${response.body}")
+        val decodeStart = System.nanoTime()
+        val chatResponse = gson.fromJson(response.body, OpenAIChatResponse::class.java)
+        timingListener?.onRequestStage(LLMRequestStage.JSON_DECODE, System.nanoTime() - decodeStart)
+        return chatResponse
+    }
+
+    protected fun reportTimings(response: LLMTransportResponse) {
+        val listener = timingListener ?: return
+        response.timings?.reportTo(listener)
+    }
+
+    /**
+     * @return `true` for a successful response, `false` for a failed one that should be reported as no response
+     */
+    protected fun isSuccessful(response: LLMTransportResponse): Boolean {
+        return when (response.statusCode) {
+            HttpURLConnection.HTTP_OK -> true
+            HttpURLConnection.HTTP_UNAUTHORIZED -> throw HttpRequests.HttpStatusException(
+                "Request failed with status code ${response.statusCode}", response.statusCode, url
+            )
+
+            else -> false
+        }
     }
 }
 
@@ -42,6 +127,80 @@ class OpenAIEditRequest(body: OpenAiEditRequestBody) :
 class OpenAICompletionRequest(body: OpenAiCompletionRequestBody) :
     OpenAIBaseRequest<OpenAiCompletionRequestBody>("completions", body)
 
-class OpenAIChatRequest(body: OpenAiChatRequestBody) :
-    OpenAIBaseRequest<OpenAiChatRequestBody>("chat/completions", body)
+class OpenAIChatRequest(body: OpenAiChatRequestBody, apiBaseUrl: String? = null) :
+    OpenAIBaseRequest<OpenAiChatRequestBody>("chat/completions", body, apiBaseUrl = apiBaseUrl) {
+
+    override fun sendStreamingAsync(onDelta: (String) -> Unit): CompletableFuture<LLMBaseResponse?> {
+        val headers = try {
+            buildHeaders()
+        } catch (e: AuthorizationException) {
+            return CompletableFuture.failedFuture(e)
+        }
+        body.stream = true
+        val accumulator = OpenAIChatStreamAccumulator(onDelta)
+        val payload = gson.toJson(body)
+        // a stream cut off midway cannot be resumed, and sending it again would repeat the pieces already reported
+        return governed(payload, { !accumulator.hasReceivedData() }) {
+            transport.postStreaming(url, headers, payload, accumulator::acceptLine)
+        }
+            .thenApplyCancellable<LLMTransportResponse, LLMBaseResponse?> { response ->
+                reportTimings(response)
+                if (!isSuccessful(response)) return@thenApplyCancellable null
+                timingListener?.onRequestStage(LLMRequestStage.JSON_DECODE, accumulator.getDecodeNanos())
+                accumulator.toResponse()
+            }
+    }
+}
+
+/**
+ * Collects the server-sent events of a streamed chat completion.
+ * Each event is a `data:` line holding a JSON chunk with the next piece of every choice; `data: [DONE]` ends the stream.
+ * A malformed chunk is logged and skipped rather than failing the whole stream.
+ */
+private class OpenAIChatStreamAccumulator(private val onDelta: (String) -> Unit) {
+    private val contents = sortedMapOf<Int, StringBuilder>()
+    private val finishReasons = mutableMapOf<Int, String?>()
+
+    @Volatile
+    private var receivedData = false
+
+    // time spent decoding the chunks, in nanoseconds; lines arrive one after another on the transport thread
+    private var decodeNanos = 0L
+
+    fun hasReceivedData(): Boolean = receivedData
+
+    fun getDecodeNanos(): Long = decodeNanos
+
+    fun acceptLine(line: String) {
+        if (!line.startsWith("data:")) return
+        receivedData = true
+        val data = line.removePrefix("data:").trim()
+        if (data.isEmpty() || data == "[DONE]") return
+
+        val decodeStart = System.nanoTime()
+        val chunk = try {
+            gson.fromJson(data, OpenAIChatStreamChunk::class.java)
+        } catch (e: JsonParseException) {
+            Logger.getInstance("#com.intellij.ml.llm").warn("Skipping malformed streamed chunk: $data", e)
+            null
+        } finally {
+            decodeNanos += System.nanoTime() - decodeStart
+        }
+        chunk?.choices?.forEach { choice ->
+            val content = choice.delta.content ?: ""
+            contents.getOrPut(choice.index) { StringBuilder() }.append(content)
+            choice.finishReason?.let { finishReasons[choice.index] = it }
+            if (choice.index == 0 && content.isNotEmpty()) {
+                onDelta(content)
+            }
+        }
+    }
+
+    fun toResponse(): OpenAIStreamedChatResponse {
+        Logger.getInstance("#com.intellij.ml.llm").info("Raw streamed response:\n${contents.values.joinToString("\n")}")
+        return OpenAIStreamedChatResponse(
+            contents.map { (index, content) -> LLMResponseChoice(content.toString(), finishReasons[index]) }
+        )
+    }
+}
 
@@ -43,6 +43,21 @@ data class OpenAIChatResponse (
     }
 }
 
+data class OpenAIChatStreamChunk(
+    @SerializedName("id")
+    val id: String,
+
+    @SerializedName("choices")
+    val choices: List<ResponseChatStreamChoice>,
+)
+
+/**
+ * Chat response assembled from the chunks of a streamed completion, which carry no usage data.
+ */
+class OpenAIStreamedChatResponse(private val choices: List<LLMResponseChoice>) : LLMBaseResponse {
+    override fun getSuggestions(): List<LLMResponseChoice> = choices
+}
+
 data class ResponseChatChoice(
     @SerializedName("index")
     val index: Long,
@@ -93,4 +108,23 @@ data class ResponseMessage (
 
     @SerializedName("content")
     val content: String
+)
+
+data class ResponseChatStreamChoice(
+    @SerializedName("index")
+    val index: Int,
+
+    @SerializedName("delta")
+    val delta: ResponseChatDelta,
+
+    @SerializedName("finish_reason")
+    val finishReason: String?
+)
+
+data class ResponseChatDelta(
+    @SerializedName("role")
+    val role: String?,
+
+    @SerializedName("content")
+    val content: String?
 )
\ No newline at end of file
@@ -0,0 +1,68 @@
+package com.intellij.ml.llm.template.models.stub
+
+import java.util.Random
+import kotlin.math.exp
+import kotlin.math.ln
+
+/**
+ * Behaviour of [LLMStubServer].
+ *
+ * @param latency time before the first byte of every response
+ * @param errorRate share of requests answered with a server error
+ * @param rateLimitRate share of requests answered with status 429 and a `Retry-After` of [retryAfterSeconds]
+ * @param streamChunkDelayMillis pause between the chunks of a streamed response
+ * @param replies replies of the assistant, served in turn
+ */
+data class LLMStubConfig(
+    val latency: LatencyDistribution = LatencyDistribution.Fixed(0),
+    val errorRate: Double = 0.0,
+    val rateLimitRate: Double = 0.0,
+    val retryAfterSeconds: Int = 1,
+    val streamChunkDelayMillis: Long = 20,
+    val replies: List<String> = listOf(DEFAULT_STUB_REPLY),
+)
+
+const val DEFAULT_STUB_REPLY = """[
+{"function_name": "extractedFunction", "line_start": 2, "line_end": 4}
+]"""
+
+/**
+ * Distribution of the response latency of [LLMStubServer], written as `fixed:<ms>`, `uniform:<min ms>:<max ms>`
+ * or `lognormal:<median ms>:<sigma>`. A log-normal distribution has the long tail of real LLM backends.
+ */
+sealed class LatencyDistribution {
+    abstract fun sampleMillis(random: Random): Long
+
+    data class Fixed(val millis: Long) : LatencyDistribution() {
+        override fun sampleMillis(random: Random): Long = millis
+    }
+
+    data class Uniform(val minMillis: Long, val maxMillis: Long) : LatencyDistribution() {
+        override fun sampleMillis(random: Random): Long {
+            return minMillis + (random.nextDouble() * (maxMillis - minMillis + 1)).toLong()
+        }
+    }
+
+    data class LogNormal(val medianMillis: Long, val sigma: Double) : LatencyDistribution() {
+        override fun sampleMillis(random: Random): Long {
+            return exp(ln(medianMillis.coerceAtLeast(1).toDouble()) + sigma * random.nextGaussian()).toLong()
+        }
+    }
+
+    companion object {
+        fun parse(spec: String): LatencyDistribution {
+            val parts = spec.trim().split(':')
+            val numbers = parts.drop(1).map {
+                it.trim().toDoubleOrNull() ?: throw IllegalArgumentException("Invalid latency distribution: $spec")
+            }
+            return when {
+                parts[0] == "fixed" && numbers.size == 1 -> Fixed(numbers[0].toLong())
+                parts[0] == "uniform" && numbers.size == 2 && numbers[0] <= numbers[1] ->
+                    Uniform(numbers[0].toLong(), numbers[1].toLong())
+
+                parts[0] == "lognormal" && numbers.size == 2 -> LogNormal(numbers[0].toLong(), numbers[1])
+                else -> throw IllegalArgumentException("Invalid latency distribution: $spec")
+            }
+        }
+    }
+}
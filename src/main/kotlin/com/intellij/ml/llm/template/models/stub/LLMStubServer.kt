@@ -0,0 +1,153 @@
+package com.intellij.ml.llm.template.models.stub
+
+import com.google.gson.Gson
+import com.google.gson.JsonObject
+import com.intellij.ml.llm.template.models.LLMRequestGovernor
+import com.intellij.ml.llm.template.models.openai.OpenAIChatResponse
+import com.intellij.ml.llm.template.models.openai.OpenAIChatStreamChunk
+import com.intellij.ml.llm.template.models.openai.ResponseChatChoice
+import com.intellij.ml.llm.template.models.openai.ResponseChatDelta
+import com.intellij.ml.llm.template.models.openai.ResponseChatStreamChoice
+import com.intellij.ml.llm.template.models.openai.ResponseMessage
+import com.intellij.ml.llm.template.models.openai.ResponseUsage
+import com.intellij.ml.llm.template.utils.TokenEstimator
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.util.ConcurrencyUtil
+import com.sun.net.httpserver.HttpExchange
+import com.sun.net.httpserver.HttpServer
+import java.io.Closeable
+import java.io.IOException
+import java.net.HttpURLConnection
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.nio.charset.StandardCharsets
+import java.util.Random
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * OpenAI compatible chat completions server on the loopback interface, for testing and benchmarking the real HTTP path
+ * without the network: `POST <baseUrl>/chat/completions` answers with the next of the configured replies,
+ * as a whole or streamed as server-sent events, after a latency drawn from the configured distribution.
+ * Server errors and rate limiting are injected at the configured rates.
+ *
+ * Each request is served on its own thread, so slow responses do not hold back the others.
+ */
+class LLMStubServer(val config: LLMStubConfig, port: Int = 0) : Closeable {
+    companion object {
+        private const val STREAM_CHUNK_LENGTH = 16
+
+        private val logger = Logger.getInstance(LLMStubServer::class.java)
+        private val gson = Gson()
+    }
+
+    private val random = Random()
+    private val nextReply = AtomicInteger()
+    private val nextId = AtomicLong()
+    private val executor: ExecutorService = Executors.newCachedThreadPool(
+        ConcurrencyUtil.newNamedThreadFactory("LLM stub server", true, Thread.NORM_PRIORITY)
+    )
+    private val server: HttpServer = HttpServer.create(InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0)
+
+    val baseUrl: String
+        get() = "http://${server.address.hostString}:${server.address.port}/v1"
+
+    init {
+        server.executor = executor
+        server.createContext("/v1/chat/completions") { exchange ->
+            try {
+                exchange.use { handle(it) }
+            } catch (e: IOException) {
+                // the client went away, e.g. because the request was cancelled
+                logger.debug(e)
+            }
+        }
+        server.start()
+    }
+
+    private fun handle(exchange: HttpExchange) {
+        if (exchange.requestMethod != "POST") {
+            exchange.sendResponseHeaders(HttpURLConnection.HTTP_BAD_METHOD, -1)
+            return
+        }
+        val request = gson.fromJson(String(exchange.requestBody.readAllBytes(), StandardCharsets.UTF_8), JsonObject::class.java)
+        Thread.sleep(config.latency.sampleMillis(random).coerceAtLeast(0))
+
+        val roll = synchronized(random) { random.nextDouble() }
+        when {
+            roll < config.rateLimitRate -> {
+                exchange.responseHeaders.add("Retry-After", config.retryAfterSeconds.toString())
+                sendError(exchange, LLMRequestGovernor.HTTP_TOO_MANY_REQUESTS, "rate_limit_exceeded")
+                return
+            }
+
+            roll < config.rateLimitRate + config.errorRate -> {
+                sendError(exchange, HttpURLConnection.HTTP_UNAVAILABLE, "server_error")
+                return
+            }
+        }
+
+        val id = "chatcmpl-stub-${nextId.incrementAndGet()}"
+        val model = request?.get("model")?.asString ?: "stub"
+        val numberOfChoices = request?.get("n")?.takeUnless { it.isJsonNull }?.asInt?.coerceAtLeast(1) ?: 1
+        val replies = List(numberOfChoices) { config.replies[Math.floorMod(nextReply.getAndIncrement(), config.replies.size)] }
+        if (request?.get("stream")?.takeUnless { it.isJsonNull }?.asBoolean == true) {
+            stream(exchange, id, replies)
+        } else {
+            val promptTokens = TokenEstimator.estimate(request?.get("messages")?.toString() ?: "").toLong()
+            val completionTokens = replies.sumOf { TokenEstimator.estimate(it) }.toLong()
+            val response = OpenAIChatResponse(
+                id = id,
+                type = "chat.completion",
+                created = System.currentTimeMillis() / 1000,
+                choices = replies.mapIndexed { index, reply ->
+                    ResponseChatChoice(index.toLong(), ResponseMessage("assistant", reply), "stop")
+                },
+                usage = ResponseUsage(promptTokens, completionTokens, promptTokens + completionTokens)
+            )
+            logger.debug("Stub reply to a request for $model")
+            sendJson(exchange, HttpURLConnection.HTTP_OK, gson.toJson(response))
+        }
+    }
+
+    private fun stream(exchange: HttpExchange, id: String, replies: List<String>) {
+        exchange.responseHeaders.add("Content-Type", "text/event-stream")
+        exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, 0)
+        val output = exchange.responseBody
+        val chunks = replies.map { it.chunked(STREAM_CHUNK_LENGTH) }
+        for (position in 0 until (chunks.maxOfOrNull { it.size } ?: 0)) {
+            val choices = chunks.mapIndexedNotNull { index, pieces ->
+                pieces.getOrNull(position)?.let { ResponseChatStreamChoice(index, ResponseChatDelta(null, it), null) }
+            }
+            output.write("data: ${gson.toJson(OpenAIChatStreamChunk(id, choices))}\n\n".toByteArray(StandardCharsets.UTF_8))
+            output.flush()
+            if (config.streamChunkDelayMillis > 0) Thread.sleep(config.streamChunkDelayMillis)
+        }
+        val finish = OpenAIChatStreamChunk(id, replies.indices.map { ResponseChatStreamChoice(it, ResponseChatDelta(null, null), "stop") })
+        output.write("data: ${gson.toJson(finish)}\n\ndata: [DONE]\n\n".toByteArray(StandardCharsets.UTF_8))
+    }
+
+    private fun sendError(exchange: HttpExchange, statusCode: Int, type: String) {
+        val error = JsonObject().apply {
+            add("error", JsonObject().apply {
+                addProperty("message", "Injected by the stub server")
+                addProperty("type", type)
+            })
+        }
+        sendJson(exchange, statusCode, gson.toJson(error))
+    }
+
+    private fun sendJson(exchange: HttpExchange, statusCode: Int, json: String) {
+        val bytes = json.toByteArray(StandardCharsets.UTF_8)
+        exchange.responseHeaders.add("Content-Type", "application/json")
+        exchange.sendResponseHeaders(statusCode, bytes.size.toLong())
+        exchange.responseBody.write(bytes)
+    }
+
+    override fun close() {
+        server.stop(0)
+        executor.shutdownNow()
+    }
+}
@@ -0,0 +1,110 @@
+package com.intellij.ml.llm.template.models.stub
+
+import com.intellij.openapi.Disposable
+import com.intellij.openapi.components.Service
+import com.intellij.openapi.components.service
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.util.registry.Registry
+import java.io.File
+
+/**
+ * Runs [LLMStubServer] while the `llm.for.code.enable.stub.server` registry key is set, so that the plugin can be
+ * load tested against it. The server is configured by the other `llm.for.code.stub.server.*` keys and restarted
+ * when they change. Replies are read from the files in the fixtures directory, in the order of their names;
+ * the files are checked for changes at most once a second, so that requests do not wait for the disk.
+ */
+@Service(Service.Level.APP)
+class LLMStubServerManager : Disposable {
+    companion object {
+        private val logger = Logger.getInstance(LLMStubServerManager::class.java)
+
+        private const val FIXTURES_CHECK_INTERVAL_MS = 1_000L
+
+        // the fixtures directory comes first
+        private val REGISTRY_KEYS = listOf(
+            "llm.for.code.stub.server.fixtures",
+            "llm.for.code.stub.server.latency",
+            "llm.for.code.stub.server.error.rate",
+            "llm.for.code.stub.server.rate.limit.rate",
+            "llm.for.code.stub.server.stream.chunk.delay.ms",
+        )
+
+        fun getInstance() = service<LLMStubServerManager>()
+    }
+
+    /**
+     * What the stub server configuration is read from: the registry values and the name, size and modification
+     * time of every fixture file. The configuration is only read again when it changes.
+     */
+    private data class ConfigSource(val registryValues: List<String>, val fixtures: List<Triple<String, Long, Long>>)
+
+    private var server: LLMStubServer? = null
+    private var configSource: ConfigSource? = null
+    private var fixturesCheckTime = 0L
+
+    /**
+     * @return the base URL of the stub server, started if needed, or null if the stub server is disabled
+     */
+    @Synchronized
+    fun getBaseUrlIfEnabled(): String? {
+        if (!Registry.`is`("llm.for.code.enable.stub.server", false)) {
+            stop()
+            return null
+        }
+        val source = readConfigSource()
+        if (server == null || source != configSource) {
+            stop()
+            val config = readConfig(source)
+            server = LLMStubServer(config).also { logger.info("LLM stub server started at ${it.baseUrl} with $config") }
+            configSource = source
+        }
+        return server?.baseUrl
+    }
+
+    private fun readConfigSource(): ConfigSource {
+        val registryValues = REGISTRY_KEYS.map { Registry.stringValue(it) }
+        val previous = configSource
+        val now = System.currentTimeMillis()
+        // the registry is read on every request, the fixture files only now and then
+        if (previous != null && previous.registryValues == registryValues &&
+            now - fixturesCheckTime < FIXTURES_CHECK_INTERVAL_MS
+        ) {
+            return previous
+        }
+        fixturesCheckTime = now
+        val fixtures = listFixtures(registryValues[0]).map { Triple(it.name, it.length(), it.lastModified()) }
+        return ConfigSource(registryValues, fixtures)
+    }
+
+    private fun listFixtures(directory: String): List<File> {
+        if (directory.isBlank()) return emptyList()
+        return File(directory).listFiles()?.filter { it.isFile }?.sortedBy { it.name } ?: emptyList()
+    }
+
+    private fun readConfig(source: ConfigSource): LLMStubConfig {
+        val replies = listFixtures(source.registryValues[0]).map { it.readText() }.ifEmpty { null }
+        val latencySpec = source.registryValues[1]
+        val latency = try {
+            LatencyDistribution.parse(latencySpec)
+        } catch (e: IllegalArgumentException) {
+            logger.warn("Invalid llm.for.code.stub.server.latency '$latencySpec', using the default latency", e)
+            LLMStubConfig().latency
+        }
+        return LLMStubConfig(
+            latency = latency,
+            errorRate = Registry.doubleValue("llm.for.code.stub.server.error.rate"),
+            rateLimitRate = Registry.doubleValue("llm.for.code.stub.server.rate.limit.rate"),
+            streamChunkDelayMillis = Registry.intValue("llm.for.code.stub.server.stream.chunk.delay.ms").toLong(),
+            replies = replies ?: listOf(DEFAULT_STUB_REPLY),
+        )
+    }
+
+    @Synchronized
+    private fun stop() {
+        server?.close()
+        server = null
+        configSource = null
+    }
+
+    override fun dispose() = stop()
+}
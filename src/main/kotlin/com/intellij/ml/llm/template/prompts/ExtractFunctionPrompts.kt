@@ -2,6 +2,12 @@ package com.intellij.ml.llm.template.prompts
 
 import com.intellij.ml.llm.template.models.openai.OpenAiChatMessage
 
+/**
+ * Version of the [fewShotExtractSuggestion] prompt. Bump it whenever the prompt changes,
+ * so that cached responses to the previous prompt are no longer used.
+ */
+const val EXTRACT_FUNCTION_PROMPT_VERSION = 2
+
 fun fewShotExtractSuggestion(methodCode: String) = mutableListOf(
     OpenAiChatMessage(
         "system",
@@ -25,6 +25,11 @@ class LLMConfigurable : BoundConfigurable(LLMBundle.message("settings.configurab
                     settings::getOpenAiOrganization, settings::setOpenAiOrganization
                 )
             }
+            row(LLMBundle.message("settings.configurable.openai.api.base.url.label")) {
+                textField().bindText(
+                    settings::getApiBaseUrl, settings::setApiBaseUrl
+                )
+            }
         }
     }
 }
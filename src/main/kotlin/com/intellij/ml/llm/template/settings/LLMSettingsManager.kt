@@ -42,6 +42,12 @@ class LLMSettingsManager : PersistentStateComponent<LLMSettings> {
 
     fun useOpenAiCompletion() = state.useOpenAi
 
+    fun getApiBaseUrl(): String = state.openAi.apiBaseUrl ?: DEFAULT_OPENAI_API_BASE_URL
+
+    fun setApiBaseUrl(url: String) {
+        state.openAi.apiBaseUrl = url.trim().trimEnd('/').ifEmpty { DEFAULT_OPENAI_API_BASE_URL }
+    }
+
     fun getTemperature(): Double = state.openAi.temperature.toDouble()
 
     fun setTemperature(temperature: Double) {
@@ -74,6 +80,56 @@ class LLMSettingsManager : PersistentStateComponent<LLMSettings> {
 
     fun getSuffixLength(): Int = state.openAi.suffixLength
 
+    fun getConnectionPoolSize(): Int = state.openAi.connectionPoolSize
+
+    fun getConnectTimeoutMillis(): Int = state.openAi.connectTimeoutMillis
+
+    fun getRequestTimeoutMillis(): Int = state.openAi.requestTimeoutMillis
+
+    fun getResponseCacheSizeMb(): Int = state.openAi.responseCacheSizeMb
+
+    fun getResponseCacheMaxAgeDays(): Int = state.openAi.responseCacheMaxAgeDays
+
+    fun getBatchMaxConcurrentRequests(): Int = state.openAi.batchMaxConcurrentRequests
+
+    /**
+     * Extract function requests are hedged when a backup model or a backup server is configured:
+     * the backup is asked too if the primary has not produced extractable candidates in [getHedgeDelayMillis].
+     */
+    fun isHedgingEnabled(): Boolean = getHedgeBackupModel().isNotEmpty() || getHedgeBackupApiBaseUrl().isNotEmpty()
+
+    fun getHedgeBackupModel(): String = state.openAi.hedgeBackupModel.orEmpty()
+
+    fun setHedgeBackupModel(model: String) {
+        state.openAi.hedgeBackupModel = model.trim()
+    }
+
+    fun getHedgeBackupApiBaseUrl(): String = state.openAi.hedgeBackupApiBaseUrl.orEmpty()
+
+    fun setHedgeBackupApiBaseUrl(url: String) {
+        state.openAi.hedgeBackupApiBaseUrl = url.trim().trimEnd('/')
+    }
+
+    fun getHedgeDelayMillis(): Int = state.openAi.hedgeDelayMillis
+
+    fun getRequestsPerMinute(): Int = state.openAi.requestsPerMinute.coerceAtLeast(1)
+
+    fun getTokensPerMinute(): Int = state.openAi.tokensPerMinute.coerceAtLeast(1)
+
+    fun getMaxInFlightRequests(): Int = state.openAi.maxInFlightRequests.coerceAtLeast(1)
+
+    fun getMaxRetries(): Int = state.openAi.maxRetries.coerceAtLeast(0)
+
+    /**
+     * Time after which a request is no longer retried, counted from when it was queued.
+     */
+    fun getRetryDeadlineMillis(): Int = state.openAi.retryDeadlineMillis
+
+    /**
+     * Tokens of function code sent in one extract function prompt; longer functions are split into several prompts.
+     */
+    fun getPromptTokenBudget(): Int = state.openAi.promptTokenBudget.coerceAtLeast(MIN_PROMPT_TOKEN_BUDGET)
+
 }
 
 class LLMSettings : BaseState() {
@@ -95,7 +151,13 @@ class LLMSettings : BaseState() {
     var openAi by property(OpenAISettings()) { it == OpenAISettings() }
 }
 
+const val DEFAULT_OPENAI_API_BASE_URL = "https://api.openai.com/v1"
+const val MIN_PROMPT_TOKEN_BUDGET = 256
+
 class OpenAISettings : BaseState() {
+    @get:OptionTag("api_base_url")
+    var apiBaseUrl by string(DEFAULT_OPENAI_API_BASE_URL)
+
     @get:OptionTag("temperature")
     var temperature by property(0.0f)
 
@@ -119,4 +181,49 @@ class OpenAISettings : BaseState() {
 
     @get:OptionTag("suffix_length")
     var suffixLength by property(256)
+
+    @get:OptionTag("connection_pool_size")
+    var connectionPoolSize by property(4)
+
+    @get:OptionTag("connect_timeout_millis")
+    var connectTimeoutMillis by property(10_000)
+
+    @get:OptionTag("request_timeout_millis")
+    var requestTimeoutMillis by property(120_000)
+
+    @get:OptionTag("response_cache_size_mb")
+    var responseCacheSizeMb by property(32)
+
+    @get:OptionTag("response_cache_max_age_days")
+    var responseCacheMaxAgeDays by property(14)
+
+    @get:OptionTag("batch_max_concurrent_requests")
+    var batchMaxConcurrentRequests by property(4)
+
+    @get:OptionTag("hedge_backup_model")
+    var hedgeBackupModel by string("")
+
+    @get:OptionTag("hedge_backup_api_base_url")
+    var hedgeBackupApiBaseUrl by string("")
+
+    @get:OptionTag("hedge_delay_millis")
+    var hedgeDelayMillis by property(3_000)
+
+    @get:OptionTag("requests_per_minute")
+    var requestsPerMinute by property(500)
+
+    @get:OptionTag("tokens_per_minute")
+    var tokensPerMinute by property(90_000)
+
+    @get:OptionTag("max_in_flight_requests")
+    var maxInFlightRequests by property(8)
+
+    @get:OptionTag("max_retries")
+    var maxRetries by property(3)
+
+    @get:OptionTag("retry_deadline_millis")
+    var retryDeadlineMillis by property(180_000)
+
+    @get:OptionTag("prompt_token_budget")
+    var promptTokenBudget by property(3_000)
 }
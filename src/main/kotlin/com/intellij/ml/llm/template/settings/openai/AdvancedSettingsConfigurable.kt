@@ -2,11 +2,13 @@ package com.intellij.ml.llm.template.settings.openai
 
 import com.intellij.ml.llm.template.LLMBundle
 import com.intellij.ml.llm.template.settings.LLMSettingsManager
+import com.intellij.ml.llm.template.settings.MIN_PROMPT_TOKEN_BUDGET
 import com.intellij.openapi.components.service
 import com.intellij.openapi.options.BoundConfigurable
 import com.intellij.openapi.ui.DialogPanel
 import com.intellij.ui.dsl.builder.bindIntText
 import com.intellij.ui.dsl.builder.bindIntValue
+import com.intellij.ui.dsl.builder.bindText
 import com.intellij.ui.dsl.builder.bindValue
 import com.intellij.ui.dsl.builder.panel
 
@@ -51,6 +53,68 @@ class AdvancedSettingsConfigurable : BoundConfigurable(LLMBundle.message("settin
                     settings::getFrequencyPenalty, settings::setFrequencyPenalty
                 )
             }
+            row(LLMBundle.message("settings.configurable.option.connection.pool.size.label")) {
+                intTextField(1..64)
+                    .bindIntText(settings.state.openAi::connectionPoolSize)
+            }
+            row(LLMBundle.message("settings.configurable.option.connect.timeout.label")) {
+                intTextField(100..600_000)
+                    .bindIntText(settings.state.openAi::connectTimeoutMillis)
+            }
+            row(LLMBundle.message("settings.configurable.option.request.timeout.label")) {
+                intTextField(100..600_000)
+                    .bindIntText(settings.state.openAi::requestTimeoutMillis)
+            }
+            row(LLMBundle.message("settings.configurable.option.response.cache.size.label")) {
+                intTextField(1..1024)
+                    .bindIntText(settings.state.openAi::responseCacheSizeMb)
+            }
+            row(LLMBundle.message("settings.configurable.option.response.cache.max.age.label")) {
+                intTextField(1..365)
+                    .bindIntText(settings.state.openAi::responseCacheMaxAgeDays)
+            }
+            row(LLMBundle.message("settings.configurable.option.batch.max.concurrent.requests.label")) {
+                intTextField(1..64)
+                    .bindIntText(settings.state.openAi::batchMaxConcurrentRequests)
+            }
+            row(LLMBundle.message("settings.configurable.option.hedge.backup.model.label")) {
+                textField().bindText(
+                    settings::getHedgeBackupModel, settings::setHedgeBackupModel
+                )
+            }
+            row(LLMBundle.message("settings.configurable.option.hedge.backup.api.base.url.label")) {
+                textField().bindText(
+                    settings::getHedgeBackupApiBaseUrl, settings::setHedgeBackupApiBaseUrl
+                )
+            }
+            row(LLMBundle.message("settings.configurable.option.hedge.delay.label")) {
+                intTextField(0..600_000)
+                    .bindIntText(settings.state.openAi::hedgeDelayMillis)
+            }
+            row(LLMBundle.message("settings.configurable.option.requests.per.minute.label")) {
+                intTextField(1..100_000)
+                    .bindIntText(settings.state.openAi::requestsPerMinute)
+            }
+            row(LLMBundle.message("settings.configurable.option.tokens.per.minute.label")) {
+                intTextField(1_000..100_000_000)
+                    .bindIntText(settings.state.openAi::tokensPerMinute)
+            }
+            row(LLMBundle.message("settings.configurable.option.max.in.flight.requests.label")) {
+                intTextField(1..64)
+                    .bindIntText(settings.state.openAi::maxInFlightRequests)
+            }
+            row(LLMBundle.message("settings.configurable.option.max.retries.label")) {
+                intTextField(0..10)
+                    .bindIntText(settings.state.openAi::maxRetries)
+            }
+            row(LLMBundle.message("settings.configurable.option.retry.deadline.label")) {
+                intTextField(1_000..600_000)
+                    .bindIntText(settings.state.openAi::retryDeadlineMillis)
+            }
+            row(LLMBundle.message("settings.configurable.option.prompt.token.budget.label")) {
+                intTextField(MIN_PROMPT_TOKEN_BUDGET..100_000)
+                    .bindIntText(settings.state.openAi::promptTokenBudget)
+            }
         }
     }
 }
\ No newline at end of file
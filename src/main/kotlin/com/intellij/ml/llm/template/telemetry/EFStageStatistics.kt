@@ -0,0 +1,83 @@
+package com.intellij.ml.llm.template.telemetry
+
+import com.intellij.openapi.components.Service
+import com.intellij.openapi.components.service
+import java.util.EnumMap
+import kotlin.math.ceil
+
+/**
+ * Latest stage times of the extract function sessions of this IDE run, from which the percentiles
+ * of each [EFPipelineStage] are computed. Only the last [SAMPLES_PER_STAGE] times of a stage are kept.
+ */
+@Service(Service.Level.APP)
+class EFStageStatistics {
+    companion object {
+        const val SAMPLES_PER_STAGE = 1_000
+
+        fun getInstance() = service<EFStageStatistics>()
+
+        /**
+         * @return the nearest-rank [percentile] of [sorted], which must not be empty
+         */
+        internal fun percentile(sorted: LongArray, percentile: Int): Long {
+            val rank = ceil(percentile / 100.0 * sorted.size).toInt()
+            return sorted[(rank - 1).coerceIn(0, sorted.size - 1)]
+        }
+    }
+
+    /**
+     * Percentiles of the kept times of [stage], in nanoseconds.
+     */
+    data class StagePercentiles(
+        val stage: EFPipelineStage,
+        val samples: Int,
+        val p50: Long,
+        val p90: Long,
+        val p95: Long,
+        val p99: Long,
+        val max: Long,
+    )
+
+    private class Samples {
+        val values = LongArray(SAMPLES_PER_STAGE)
+        var size = 0
+        var next = 0
+
+        fun add(value: Long) {
+            values[next] = value
+            next = (next + 1) % values.size
+            if (size < values.size) size++
+        }
+    }
+
+    private val samples = EnumMap<EFPipelineStage, Samples>(EFPipelineStage::class.java)
+
+    @Synchronized
+    fun record(stage: EFPipelineStage, nanos: Long) {
+        samples.getOrPut(stage) { Samples() }.add(nanos)
+    }
+
+    @Synchronized
+    fun reset() = samples.clear()
+
+    /**
+     * @return the percentiles of the stages measured so far, in the order of [EFPipelineStage]
+     */
+    fun getPercentiles(): List<StagePercentiles> {
+        val snapshot = synchronized(this) {
+            samples.mapValues { (_, stageSamples) -> stageSamples.values.copyOf(stageSamples.size) }
+        }
+        return snapshot.map { (stage, values) ->
+            values.sort()
+            StagePercentiles(
+                stage = stage,
+                samples = values.size,
+                p50 = percentile(values, 50),
+                p90 = percentile(values, 90),
+                p95 = percentile(values, 95),
+                p99 = percentile(values, 99),
+                max = values.last(),
+            )
+        }
+    }
+}
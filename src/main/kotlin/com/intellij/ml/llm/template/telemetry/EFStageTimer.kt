@@ -0,0 +1,89 @@
+package com.intellij.ml.llm.template.telemetry
+
+import com.intellij.ml.llm.template.models.LLMRequestStage
+import com.intellij.ml.llm.template.models.LLMRequestTimingListener
+import java.util.EnumMap
+
+/**
+ * Stages of an extract function session, in the order they run. The [key] names the stage in the telemetry data.
+ */
+enum class EFPipelineStage(val key: String) {
+    PROMPT_BUILD("promptBuild"),
+    HTTP_CONNECT("httpConnect"),
+    TIME_TO_FIRST_BYTE("timeToFirstByte"),
+    BODY_DOWNLOAD("bodyDownload"),
+    JSON_DECODE("jsonDecode"),
+    SUGGESTION_PARSE("suggestionParse"),
+    BUILD_CANDIDATES("buildCandidates"),
+    IS_CANDIDATE_EXTRACTABLE("isCandidateExtractable"),
+    SIGNATURE_COMPUTATION("signatureComputation"),
+    POPUP_SHOW("popupShow"),
+    APPLY_CANDIDATE("applyCandidate");
+
+    companion object {
+        fun of(stage: LLMRequestStage) = when (stage) {
+            LLMRequestStage.CONNECT -> HTTP_CONNECT
+            LLMRequestStage.TIME_TO_FIRST_BYTE -> TIME_TO_FIRST_BYTE
+            LLMRequestStage.BODY_DOWNLOAD -> BODY_DOWNLOAD
+            LLMRequestStage.JSON_DECODE -> JSON_DECODE
+        }
+    }
+}
+
+/**
+ * Sums the time spent in each [EFPipelineStage] of one session, and passes every measurement on to [statistics].
+ * Stages may be measured from any thread. As a [LLMRequestTimingListener] it also receives the phases of the
+ * LLM requests sent for the session. With [keepMeasurements], every measurement is kept as well, so that it can be
+ * added to another timer by [recordAll] later, e.g. only once the hedged request it was made for has won.
+ */
+class EFStageTimer(
+    private val statistics: EFStageStatistics? = EFStageStatistics.getInstance(),
+    keepMeasurements: Boolean = false,
+) : LLMRequestTimingListener {
+    private class StageTime(var totalTime: Long = 0, var count: Int = 0, var maxTime: Long = 0)
+
+    private val stageTimes = EnumMap<EFPipelineStage, StageTime>(EFPipelineStage::class.java)
+    private val measurements = if (keepMeasurements) mutableListOf<Pair<EFPipelineStage, Long>>() else null
+
+    fun record(stage: EFPipelineStage, nanos: Long) {
+        synchronized(stageTimes) {
+            val stageTime = stageTimes.getOrPut(stage) { StageTime() }
+            stageTime.totalTime += nanos
+            stageTime.count++
+            stageTime.maxTime = maxOf(stageTime.maxTime, nanos)
+            measurements?.add(stage to nanos)
+        }
+        statistics?.record(stage, nanos)
+    }
+
+    /**
+     * Records every measurement of [other], which must keep its measurements, in this timer.
+     */
+    fun recordAll(other: EFStageTimer) {
+        val otherMeasurements = synchronized(other.stageTimes) {
+            checkNotNull(other.measurements) { "The timer does not keep its measurements" }.toList()
+        }
+        otherMeasurements.forEach { (stage, nanos) -> record(stage, nanos) }
+    }
+
+    /**
+     * Runs [block] and records its time for [stage]. Runs that throw, e.g. read actions cancelled to be restarted,
+     * are not recorded.
+     */
+    inline fun <T> measure(stage: EFPipelineStage, block: () -> T): T {
+        val start = System.nanoTime()
+        val result = block()
+        record(stage, System.nanoTime() - start)
+        return result
+    }
+
+    override fun onRequestStage(stage: LLMRequestStage, nanos: Long) = record(EFPipelineStage.of(stage), nanos)
+
+    fun buildTelemetryData(): Map<String, EFStageTimeTelemetryData> {
+        return synchronized(stageTimes) {
+            stageTimes.entries.associate { (stage, time) ->
+                stage.key to EFStageTimeTelemetryData(time.totalTime, time.count, time.maxTime)
+            }
+        }
+    }
+}
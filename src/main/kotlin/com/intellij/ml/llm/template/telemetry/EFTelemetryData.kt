@@ -9,6 +9,7 @@ import com.intellij.openapi.util.TextRange
 import com.intellij.psi.PsiFile
 import com.intellij.psi.PsiWhiteSpace
 import com.intellij.psi.util.elementType
+import com.intellij.util.containers.ContainerUtil
 import org.jetbrains.kotlin.psi.psiUtil.elementsInRange
 import java.util.*
 
@@ -30,6 +31,41 @@ data class EFTelemetryData(
 
     @SerializedName("processingTime")
     lateinit var processingTime: EFTelemetryDataProcessingTime
+
+    fun hasHostFunctionTelemetryData() = this::hostFunctionTelemetryData.isInitialized
+
+    fun hasCandidatesTelemetryData() = this::candidatesTelemetryData.isInitialized
+
+    fun hasUserSelectionTelemetryData() = this::userSelectionTelemetryData.isInitialized
+
+    fun hasElapsedTime() = this::elapsedTime.isInitialized
+
+    fun hasProcessingTime() = this::processingTime.isInitialized
+
+    /**
+     * @return a copy of this data that shares no mutable object with it
+     */
+    fun deepCopy(): EFTelemetryData {
+        val copy = EFTelemetryData(id)
+        if (hasHostFunctionTelemetryData()) copy.hostFunctionTelemetryData = hostFunctionTelemetryData.copy()
+        if (hasCandidatesTelemetryData()) {
+            copy.candidatesTelemetryData = candidatesTelemetryData.copy(
+                candidates = candidatesTelemetryData.candidates.map { it.copy() }
+            )
+        }
+        if (hasUserSelectionTelemetryData()) {
+            copy.userSelectionTelemetryData = userSelectionTelemetryData.copy(
+                elementsType = userSelectionTelemetryData.elementsType.map { it.copy() }
+            )
+        }
+        if (hasElapsedTime()) copy.elapsedTime = elapsedTime.map { it.copy() }
+        if (hasProcessingTime()) {
+            copy.processingTime = processingTime.copy(
+                stageTimes = processingTime.stageTimes?.mapValues { (_, stageTime) -> stageTime.copy() }
+            )
+        }
+        return copy
+    }
 }
 
 data class EFHostFunctionTelemetryData(
@@ -46,7 +82,19 @@ data class EFHostFunctionTelemetryData(
     var bodyLineStart: Int,
 
     @SerializedName("language")
-    var language: String
+    var language: String,
+
+    /**
+     * Estimated tokens of the code sent in the prompts for this function, summed over all windows of a long function.
+     */
+    @SerializedName("promptTokens")
+    var promptTokens: Int = 0,
+
+    /**
+     * Estimated tokens the prompt minimization removed from the code sent for this function.
+     */
+    @SerializedName("promptTokensSaved")
+    var promptTokensSaved: Int = 0,
 )
 
 data class EFCandidatesTelemetryData(
@@ -135,45 +183,214 @@ data class EFTelemetryDataProcessingTime(
     var pluginProcessingTime: Long,
 
     @SerializedName("totalTime")
-    var totalTime: Long
+    var totalTime: Long,
+
+    /**
+     * Whether the backup request of a hedged request was sent; the share of such sessions is the hedge rate.
+     */
+    @SerializedName("hedged")
+    var hedged: Boolean = false,
+
+    /**
+     * `primary` or `backup` for the request whose candidates were shown, `null` if the request was not hedged
+     * or neither produced extractable candidates.
+     */
+    @SerializedName("hedgeWinner")
+    var hedgeWinner: String? = null,
+
+    /**
+     * Response time of the primary request, `null` if it did not answer, which is always the case when the backup
+     * won first, since the primary is then cancelled.
+     */
+    @SerializedName("primaryResponseTime")
+    var primaryResponseTime: Long? = null,
+
+    /**
+     * Time in milliseconds from sending the primary request until the backup request was sent, `null` if it was not.
+     * When the backup wins, [llmResponseTime] is its response time counted from the primary request, and the
+     * primary had not answered by then. The latency saved is the primary response time of comparable sessions
+     * slower than [hedgeSendTime] minus the [llmResponseTime] of the sessions won by the backup.
+     */
+    @SerializedName("hedgeSendTime")
+    var hedgeSendTime: Long? = null,
+
+    /**
+     * Requests sent again after transient failures, such as rate limiting or server errors.
+     */
+    @SerializedName("retries")
+    var retries: Int = 0,
+
+    /**
+     * Time in milliseconds spent waiting before the [retries], part of [llmResponseTime].
+     */
+    @SerializedName("backoffTime")
+    var backoffTime: Long = 0,
+
+    /**
+     * Time spent in each stage of the session, keyed by [EFPipelineStage.key]; stages that did not run are left out.
+     */
+    @SerializedName("stageTimes")
+    var stageTimes: Map<String, EFStageTimeTelemetryData>? = null,
+)
+
+/**
+ * Time spent in one [EFPipelineStage] during a session, in nanoseconds. Stages run per candidate or per request
+ * are summed over their [count] runs.
+ */
+data class EFStageTimeTelemetryData(
+    @SerializedName("totalTime")
+    var totalTime: Long,
+
+    @SerializedName("count")
+    var count: Int,
+
+    @SerializedName("maxTime")
+    var maxTime: Long,
 )
 
-class EFTelemetryDataManager {
+/**
+ * Telemetry data of the extract function sessions of one intention. A session is kept until its record has been
+ * written by [TelemetrySink] and a newer session has started. At most [maxSessions] sessions are kept: beyond that,
+ * the oldest ones are evicted even if their record was not written, which [getEvictedUnwrittenSessions] counts.
+ */
+class EFTelemetryDataManager(private val maxSessions: Int = DEFAULT_MAX_SESSIONS) {
+    companion object {
+        const val DEFAULT_MAX_SESSIONS = 16
+
+        private const val OBJECT_BYTES = 48L
+        private const val STRING_BYTES = 40L
+        private const val LIST_BYTES = 40L
+        private const val REFERENCE_BYTES = 4L
+
+        private val managers: MutableSet<EFTelemetryDataManager> = Collections.synchronizedSet(ContainerUtil.createWeakSet())
+
+        /**
+         * @return the number of sessions kept by all managers
+         */
+        fun getTotalLiveSessionCount(): Int = allManagers().sumOf { it.getLiveSessionCount() }
+
+        /**
+         * @return the estimated heap size of the sessions kept by all managers
+         */
+        fun getTotalRetainedBytes(): Long = allManagers().sumOf { it.getRetainedBytes() }
+
+        private fun allManagers() = synchronized(managers) { managers.toList() }
+
+        /**
+         * Roughly estimates the heap size of [data] from the number of objects, strings and list elements it holds.
+         */
+        private fun estimateRetainedBytes(data: EFTelemetryData): Long {
+            fun stringBytes(value: String) = STRING_BYTES + value.length
+            fun listBytes(size: Int) = LIST_BYTES + size * REFERENCE_BYTES
+
+            var bytes = OBJECT_BYTES + stringBytes(data.id)
+            if (data.hasHostFunctionTelemetryData()) {
+                bytes += OBJECT_BYTES + stringBytes(data.hostFunctionTelemetryData.language)
+            }
+            if (data.hasCandidatesTelemetryData()) {
+                val candidates = data.candidatesTelemetryData.candidates
+                bytes += OBJECT_BYTES + listBytes(candidates.size) + candidates.sumOf { OBJECT_BYTES + stringBytes(it.reason) }
+            }
+            if (data.hasUserSelectionTelemetryData()) {
+                val elementsType = data.userSelectionTelemetryData.elementsType
+                bytes += OBJECT_BYTES + listBytes(elementsType.size) + elementsType.sumOf { OBJECT_BYTES + stringBytes(it.type) }
+            }
+            if (data.hasElapsedTime()) {
+                bytes += listBytes(data.elapsedTime.size) + data.elapsedTime.size * OBJECT_BYTES
+            }
+            if (data.hasProcessingTime()) {
+                bytes += OBJECT_BYTES + (data.processingTime.hedgeWinner?.let { stringBytes(it) } ?: 0L)
+                // the stage keys are constants shared by all sessions, so only the map entries count
+                data.processingTime.stageTimes?.let { bytes += listBytes(it.size) + it.size * 2 * OBJECT_BYTES }
+            }
+            return bytes
+        }
+    }
+
     private var currentSessionId: String = ""
-    private val data: MutableMap<String, EFTelemetryData> = mutableMapOf()
+    private val data: LinkedHashMap<String, EFTelemetryData> = LinkedHashMap()
+    private val writtenSessions: MutableSet<String> = HashSet()
+    private var evictedUnwrittenSessions = 0
     private lateinit var currentTelemetryData: EFTelemetryData
 
+    init {
+        managers.add(this)
+    }
+
+    @Synchronized
     fun newSession(): String {
         currentSessionId = UUID.randomUUID().toString()
         currentTelemetryData = EFTelemetryData(currentSessionId)
         data[currentSessionId] = currentTelemetryData
+        evictSessions()
         return currentSessionId
     }
 
+    @Synchronized
     fun currentSession(): String {
         if (currentSessionId.isNotEmpty()) return currentSessionId
         return newSession()
     }
 
+    /**
+     * Lets the data of [sessionId] go, now that [TelemetrySink] has written its record.
+     */
+    @Synchronized
+    fun onSessionWritten(sessionId: String) {
+        if (data.containsKey(sessionId)) {
+            writtenSessions.add(sessionId)
+            evictSessions()
+        }
+    }
+
+    @Synchronized
     fun addHostFunctionTelemetryData(hostFunctionTelemetryData: EFHostFunctionTelemetryData): EFTelemetryDataManager {
         currentTelemetryData.hostFunctionTelemetryData = hostFunctionTelemetryData
         return this
     }
 
+    @Synchronized
     fun addCandidatesTelemetryData(candidatesTelemetryData: EFCandidatesTelemetryData): EFTelemetryDataManager {
         currentTelemetryData.candidatesTelemetryData = candidatesTelemetryData
         return this
     }
 
+    @Synchronized
     fun addUserSelectionTelemetryData(userSelectionTelemetryData: EFUserSelectionTelemetryData): EFTelemetryDataManager {
         currentTelemetryData.userSelectionTelemetryData = userSelectionTelemetryData
         return this
     }
 
+    @Synchronized
     fun getData(sessionId: String? = null): EFTelemetryData? {
         val sId = sessionId ?: currentSession()
         return data.getOrDefault(sId, null)
     }
+
+    @Synchronized
+    fun getLiveSessionCount(): Int = data.size
+
+    @Synchronized
+    fun getRetainedBytes(): Long = data.values.sumOf { estimateRetainedBytes(it) }
+
+    @Synchronized
+    fun getEvictedUnwrittenSessions(): Int = evictedUnwrittenSessions
+
+    /**
+     * Removes the written sessions except the current one, then the oldest sessions beyond [maxSessions].
+     */
+    private fun evictSessions() {
+        for (sessionId in writtenSessions.filter { it != currentSessionId }) {
+            data.remove(sessionId)
+            writtenSessions.remove(sessionId)
+        }
+        val sessionIds = data.keys.iterator()
+        while (data.size > maxSessions && sessionIds.hasNext()) {
+            if (sessionIds.next() == currentSessionId) continue
+            sessionIds.remove()
+            evictedUnwrittenSessions++
+        }
+    }
 }
 
 class EFTelemetryDataUtils {
@@ -0,0 +1,393 @@
+package com.intellij.ml.llm.template.telemetry
+
+import com.intellij.ml.llm.template.extractfunction.EfCandidateType
+import com.intellij.ml.llm.template.utils.EFApplicationResult
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.Closeable
+import java.io.EOFException
+import java.io.FilterInputStream
+import java.io.IOException
+import java.io.InputStream
+import java.nio.charset.StandardCharsets
+
+/**
+ * Compact binary encoding of [EFTelemetryData].
+ *
+ * A stream is a sequence of frames, each starting with its length as an unsigned varint. A frame of length 0
+ * is a header: the bytes of [MAGIC] and the format version as a varint. Every other frame is one record.
+ * A stream starts with a header, and may have more wherever a writer reopened the file.
+ *
+ * A record starts with its id and a bit set of the sections it has, followed by those sections in the order of
+ * the [EFTelemetryData] properties. Integers are zigzag varints. Repeated strings, such as element types, reasons
+ * and enum names, are dictionary coded: a varint `0` is followed by a new string, which gets the next number,
+ * and any other varint `n` refers to the string numbered `n - 1`. The dictionary starts empty at each header,
+ * so records must be read in order from the last header before them.
+ */
+class TelemetryBinaryCodec {
+    companion object {
+        val MAGIC = byteArrayOf('E'.code.toByte(), 'F'.code.toByte(), 'T'.code.toByte(), 'B'.code.toByte())
+        const val VERSION = 1
+
+        internal const val HOST_FUNCTION = 1
+        internal const val CANDIDATES = 1 shl 1
+        internal const val USER_SELECTION = 1 shl 2
+        internal const val ELAPSED_TIME = 1 shl 3
+        internal const val PROCESSING_TIME = 1 shl 4
+
+        internal const val HEDGED = 1
+        internal const val HAS_HEDGE_WINNER = 1 shl 1
+        internal const val HAS_PRIMARY_RESPONSE_TIME = 1 shl 2
+        internal const val HAS_STAGE_TIMES = 1 shl 3
+        internal const val HAS_HEDGE_SEND_TIME = 1 shl 4
+
+        fun writeVarLong(output: ByteArrayOutputStream, value: Long) {
+            var remaining = value
+            while (remaining and 0x7FL.inv() != 0L) {
+                output.write(((remaining and 0x7F) or 0x80).toInt())
+                remaining = remaining ushr 7
+            }
+            output.write(remaining.toInt())
+        }
+
+        /**
+         * @return the varint read from [input], or null if the stream ended before it
+         */
+        fun readVarLongOrNull(input: InputStream): Long? {
+            var result = 0L
+            var shift = 0
+            while (true) {
+                val byte = input.read()
+                if (byte < 0) {
+                    if (shift == 0) return null
+                    throw EOFException("Telemetry data ends within a number")
+                }
+                if (shift >= 64) throw IOException("Malformed number in telemetry data")
+                result = result or ((byte and 0x7F).toLong() shl shift)
+                if (byte and 0x80 == 0) return result
+                shift += 7
+            }
+        }
+
+        fun readVarLong(input: InputStream): Long {
+            return readVarLongOrNull(input) ?: throw EOFException("Telemetry data ends within a record")
+        }
+
+        fun zigzag(value: Long) = (value shl 1) xor (value shr 63)
+
+        fun unzigzag(value: Long) = (value ushr 1) xor -(value and 1)
+    }
+}
+
+/**
+ * Writes [EFTelemetryData] records in the [TelemetryBinaryCodec] format. One encoder is used per opened file,
+ * since the string dictionary is shared by all records after the header.
+ */
+class TelemetryBinaryEncoder : TelemetryRecordEncoder {
+    private val dictionary = HashMap<String, Int>()
+
+    override fun header(): ByteArray {
+        dictionary.clear()
+        val output = ByteArrayOutputStream()
+        TelemetryBinaryCodec.writeVarLong(output, 0)
+        output.write(TelemetryBinaryCodec.MAGIC)
+        TelemetryBinaryCodec.writeVarLong(output, TelemetryBinaryCodec.VERSION.toLong())
+        return output.toByteArray()
+    }
+
+    override fun encode(data: EFTelemetryData): ByteArray {
+        val record = ByteArrayOutputStream()
+        record.writeString(data.id)
+        var sections = 0
+        if (data.hasHostFunctionTelemetryData()) sections = sections or TelemetryBinaryCodec.HOST_FUNCTION
+        if (data.hasCandidatesTelemetryData()) sections = sections or TelemetryBinaryCodec.CANDIDATES
+        if (data.hasUserSelectionTelemetryData()) sections = sections or TelemetryBinaryCodec.USER_SELECTION
+        if (data.hasElapsedTime()) sections = sections or TelemetryBinaryCodec.ELAPSED_TIME
+        if (data.hasProcessingTime()) sections = sections or TelemetryBinaryCodec.PROCESSING_TIME
+        record.writeInt(sections)
+
+        if (data.hasHostFunctionTelemetryData()) {
+            val hostFunction = data.hostFunctionTelemetryData
+            record.writeInt(hostFunction.hostFunctionSize)
+            record.writeInt(hostFunction.lineStart)
+            record.writeInt(hostFunction.lineEnd)
+            record.writeInt(hostFunction.bodyLineStart)
+            record.writeDictionaryString(hostFunction.language)
+            record.writeInt(hostFunction.promptTokens)
+            record.writeInt(hostFunction.promptTokensSaved)
+        }
+        if (data.hasCandidatesTelemetryData()) {
+            val candidates = data.candidatesTelemetryData
+            record.writeInt(candidates.numberOfSuggestions)
+            record.writeInt(candidates.candidates.size)
+            for (candidate in candidates.candidates) {
+                record.writeInt(candidate.lineStart)
+                record.writeInt(candidate.lineEnd)
+                record.writeDictionaryString(candidate.candidateType.name)
+                record.writeDictionaryString(candidate.applicationResult.name)
+                record.writeDictionaryString(candidate.reason)
+            }
+        }
+        if (data.hasUserSelectionTelemetryData()) {
+            val userSelection = data.userSelectionTelemetryData
+            record.writeInt(userSelection.lineStart)
+            record.writeInt(userSelection.lineEnd)
+            record.writeInt(userSelection.functionSize)
+            record.writeInt(userSelection.positionInHostFunction)
+            record.writeInt(userSelection.selectedCandidateIndex)
+            record.writeDictionaryString(userSelection.candidateType.name)
+            record.writeInt(userSelection.elementsType.size)
+            for (elementType in userSelection.elementsType) {
+                record.writeDictionaryString(elementType.type)
+                record.writeInt(elementType.quantity)
+            }
+        }
+        if (data.hasElapsedTime()) {
+            record.writeInt(data.elapsedTime.size)
+            for (elapsedTime in data.elapsedTime) {
+                record.writeInt(elapsedTime.candidateIndex)
+                record.writeLong(elapsedTime.elapsedTime)
+            }
+        }
+        if (data.hasProcessingTime()) {
+            val processingTime = data.processingTime
+            record.writeLong(processingTime.llmResponseTime)
+            record.writeLong(processingTime.pluginProcessingTime)
+            record.writeLong(processingTime.totalTime)
+            var flags = 0
+            if (processingTime.hedged) flags = flags or TelemetryBinaryCodec.HEDGED
+            if (processingTime.hedgeWinner != null) flags = flags or TelemetryBinaryCodec.HAS_HEDGE_WINNER
+            if (processingTime.primaryResponseTime != null) flags = flags or TelemetryBinaryCodec.HAS_PRIMARY_RESPONSE_TIME
+            if (processingTime.hedgeSendTime != null) flags = flags or TelemetryBinaryCodec.HAS_HEDGE_SEND_TIME
+            val stageTimes = processingTime.stageTimes
+            if (stageTimes != null) flags = flags or TelemetryBinaryCodec.HAS_STAGE_TIMES
+            record.writeInt(flags)
+            processingTime.hedgeWinner?.let { record.writeDictionaryString(it) }
+            processingTime.primaryResponseTime?.let { record.writeLong(it) }
+            processingTime.hedgeSendTime?.let { record.writeLong(it) }
+            record.writeInt(processingTime.retries)
+            record.writeLong(processingTime.backoffTime)
+            if (stageTimes != null) {
+                record.writeInt(stageTimes.size)
+                for ((stage, stageTime) in stageTimes) {
+                    record.writeDictionaryString(stage)
+                    record.writeLong(stageTime.totalTime)
+                    record.writeInt(stageTime.count)
+                    record.writeLong(stageTime.maxTime)
+                }
+            }
+        }
+
+        val frame = ByteArrayOutputStream(record.size() + 5)
+        TelemetryBinaryCodec.writeVarLong(frame, record.size().toLong())
+        record.writeTo(frame)
+        return frame.toByteArray()
+    }
+
+    private fun ByteArrayOutputStream.writeInt(value: Int) = writeLong(value.toLong())
+
+    private fun ByteArrayOutputStream.writeLong(value: Long) {
+        TelemetryBinaryCodec.writeVarLong(this, TelemetryBinaryCodec.zigzag(value))
+    }
+
+    private fun ByteArrayOutputStream.writeString(value: String) {
+        val bytes = value.toByteArray(StandardCharsets.UTF_8)
+        TelemetryBinaryCodec.writeVarLong(this, bytes.size.toLong())
+        write(bytes)
+    }
+
+    private fun ByteArrayOutputStream.writeDictionaryString(value: String) {
+        val number = dictionary[value]
+        if (number != null) {
+            TelemetryBinaryCodec.writeVarLong(this, number + 1L)
+        } else {
+            dictionary[value] = dictionary.size
+            TelemetryBinaryCodec.writeVarLong(this, 0)
+            writeString(value)
+        }
+    }
+}
+
+/**
+ * Reads [EFTelemetryData] records in the [TelemetryBinaryCodec] format one by one from [input],
+ * which should be buffered.
+ */
+class TelemetryBinaryReader(input: InputStream) : Closeable {
+    private val input = PositionInputStream(input)
+    private val dictionary = ArrayList<String>()
+    private var version = 0
+
+    /**
+     * @return the next record, or null at the end of the stream
+     */
+    fun read(): EFTelemetryData? {
+        val record = readFrame() ?: return null
+        return decode(ByteArrayInputStream(record))
+    }
+
+    fun readAll(): Sequence<EFTelemetryData> = generateSequence { read() }
+
+    /**
+     * Counts the remaining records without decoding them.
+     */
+    fun countRecords(): Int {
+        var records = 0
+        while (readFrame() != null) records++
+        return records
+    }
+
+    /**
+     * Counts the remaining records without decoding them, up to a record or header cut off by the end of the stream,
+     * as left by a writer that was killed while appending it.
+     */
+    fun countCompleteRecords(): TelemetryRecordSpan {
+        var records = 0
+        var bytes = input.position
+        try {
+            while (readFrame() != null) {
+                records++
+                bytes = input.position
+            }
+            bytes = input.position
+        } catch (e: EOFException) {
+            // the rest is the incomplete frame
+        }
+        return TelemetryRecordSpan(records, bytes)
+    }
+
+    private fun readFrame(): ByteArray? {
+        while (true) {
+            val length = TelemetryBinaryCodec.readVarLongOrNull(input) ?: return null
+            if (length == 0L) {
+                readHeader()
+                continue
+            }
+            if (version == 0) throw IOException("Telemetry data does not start with a header")
+            if (length > Int.MAX_VALUE) throw IOException("Malformed telemetry record length $length")
+            return input.readFully(length.toInt())
+        }
+    }
+
+    private fun readHeader() {
+        if (!input.readFully(TelemetryBinaryCodec.MAGIC.size).contentEquals(TelemetryBinaryCodec.MAGIC)) {
+            throw IOException("Not a telemetry data stream")
+        }
+        val headerVersion = TelemetryBinaryCodec.readVarLong(input).toInt()
+        if (headerVersion != TelemetryBinaryCodec.VERSION) {
+            throw IOException("Unsupported telemetry data version $headerVersion")
+        }
+        version = headerVersion
+        dictionary.clear()
+    }
+
+    private fun decode(record: InputStream): EFTelemetryData {
+        val data = EFTelemetryData(record.readString())
+        val sections = record.readInt()
+        if (sections and TelemetryBinaryCodec.HOST_FUNCTION != 0) {
+            data.hostFunctionTelemetryData = EFHostFunctionTelemetryData(
+                hostFunctionSize = record.readInt(),
+                lineStart = record.readInt(),
+                lineEnd = record.readInt(),
+                bodyLineStart = record.readInt(),
+                language = record.readDictionaryString(),
+                promptTokens = record.readInt(),
+                promptTokensSaved = record.readInt(),
+            )
+        }
+        if (sections and TelemetryBinaryCodec.CANDIDATES != 0) {
+            val numberOfSuggestions = record.readInt()
+            data.candidatesTelemetryData = EFCandidatesTelemetryData(
+                numberOfSuggestions = numberOfSuggestions,
+                candidates = List(record.readInt()) {
+                    EFCandidateTelemetryData(
+                        lineStart = record.readInt(),
+                        lineEnd = record.readInt(),
+                        candidateType = EfCandidateType.valueOf(record.readDictionaryString()),
+                        applicationResult = EFApplicationResult.valueOf(record.readDictionaryString()),
+                        reason = record.readDictionaryString(),
+                    )
+                }
+            )
+        }
+        if (sections and TelemetryBinaryCodec.USER_SELECTION != 0) {
+            data.userSelectionTelemetryData = EFUserSelectionTelemetryData(
+                lineStart = record.readInt(),
+                lineEnd = record.readInt(),
+                functionSize = record.readInt(),
+                positionInHostFunction = record.readInt(),
+                selectedCandidateIndex = record.readInt(),
+                candidateType = EfCandidateType.valueOf(record.readDictionaryString()),
+                elementsType = List(record.readInt()) {
+                    EFPsiElementsTypesTelemetryData(type = record.readDictionaryString(), quantity = record.readInt())
+                },
+            )
+        }
+        if (sections and TelemetryBinaryCodec.ELAPSED_TIME != 0) {
+            data.elapsedTime = List(record.readInt()) {
+                CandidateElapsedTimeTelemetryData(candidateIndex = record.readInt(), elapsedTime = record.readLong())
+            }
+        }
+        if (sections and TelemetryBinaryCodec.PROCESSING_TIME != 0) {
+            val llmResponseTime = record.readLong()
+            val pluginProcessingTime = record.readLong()
+            val totalTime = record.readLong()
+            val flags = record.readInt()
+            data.processingTime = EFTelemetryDataProcessingTime(
+                llmResponseTime = llmResponseTime,
+                pluginProcessingTime = pluginProcessingTime,
+                totalTime = totalTime,
+                hedged = flags and TelemetryBinaryCodec.HEDGED != 0,
+                hedgeWinner = if (flags and TelemetryBinaryCodec.HAS_HEDGE_WINNER != 0) record.readDictionaryString() else null,
+                primaryResponseTime = if (flags and TelemetryBinaryCodec.HAS_PRIMARY_RESPONSE_TIME != 0) record.readLong() else null,
+                hedgeSendTime = if (flags and TelemetryBinaryCodec.HAS_HEDGE_SEND_TIME != 0) record.readLong() else null,
+                retries = record.readInt(),
+                backoffTime = record.readLong(),
+            )
+            if (flags and TelemetryBinaryCodec.HAS_STAGE_TIMES != 0) {
+                data.processingTime.stageTimes = (0 until record.readInt()).associate {
+                    record.readDictionaryString() to EFStageTimeTelemetryData(
+                        totalTime = record.readLong(), count = record.readInt(), maxTime = record.readLong()
+                    )
+                }
+            }
+        }
+        return data
+    }
+
+    private fun InputStream.readFully(length: Int): ByteArray {
+        val bytes = readNBytes(length)
+        if (bytes.size < length) throw EOFException("Telemetry data ends within a record")
+        return bytes
+    }
+
+    private fun InputStream.readInt() = readLong().toInt()
+
+    private fun InputStream.readLong() = TelemetryBinaryCodec.unzigzag(TelemetryBinaryCodec.readVarLong(this))
+
+    private fun InputStream.readString(): String {
+        val length = TelemetryBinaryCodec.readVarLong(this)
+        if (length > Int.MAX_VALUE) throw IOException("Malformed telemetry string length $length")
+        return String(readFully(length.toInt()), StandardCharsets.UTF_8)
+    }
+
+    private fun InputStream.readDictionaryString(): String {
+        val number = TelemetryBinaryCodec.readVarLong(this)
+        if (number == 0L) return readString().also { dictionary.add(it) }
+        return dictionary.getOrNull((number - 1).toInt()) ?: throw IOException("Unknown telemetry string $number")
+    }
+
+    override fun close() = input.close()
+
+    private class PositionInputStream(input: InputStream) : FilterInputStream(input) {
+        var position = 0L
+            private set
+
+        override fun read(): Int = super.read().also { if (it >= 0) position++ }
+
+        override fun read(b: ByteArray, off: Int, len: Int): Int = super.read(b, off, len).also { if (it > 0) position += it }
+
+        override fun skip(n: Long): Long = super.skip(n).also { position += it }
+
+        override fun markSupported() = false
+    }
+}
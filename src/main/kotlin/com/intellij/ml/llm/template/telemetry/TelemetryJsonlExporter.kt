@@ -0,0 +1,41 @@
+package com.intellij.ml.llm.template.telemetry
+
+import com.google.gson.Gson
+import java.io.BufferedInputStream
+import java.io.InputStream
+import java.io.Writer
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.zip.GZIPInputStream
+
+/**
+ * Converts binary telemetry logs into the JSON lines written by [TelemetryRecordFormat.JSON], one record at a time.
+ */
+class TelemetryJsonlExporter {
+    companion object {
+        private val gson = Gson()
+
+        /**
+         * Converts [source], a binary log file or a rotated segment ending with `.gz`, into JSON lines in [target].
+         *
+         * @return the number of records converted
+         */
+        fun export(source: Path, target: Path): Int {
+            val input = Files.newInputStream(source).let { if (source.fileName.toString().endsWith(".gz")) GZIPInputStream(it) else it }
+            return input.use {
+                Files.newBufferedWriter(target, StandardCharsets.UTF_8).use { output -> export(it, output) }
+            }
+        }
+
+        fun export(input: InputStream, output: Writer): Int {
+            var records = 0
+            TelemetryBinaryReader(BufferedInputStream(input)).readAll().forEach {
+                output.write(gson.toJson(it))
+                output.write("\n")
+                records++
+            }
+            return records
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.intellij.ml.llm.template.telemetry
+
+import com.google.gson.Gson
+import com.intellij.openapi.util.registry.Registry
+import java.io.BufferedInputStream
+import java.io.InputStream
+import java.nio.charset.StandardCharsets
+
+/**
+ * Encodes the telemetry records of one log file, in the order they are written.
+ */
+interface TelemetryRecordEncoder {
+    /**
+     * @return the bytes written when the file is opened, before any record
+     */
+    fun header(): ByteArray
+
+    fun encode(data: EFTelemetryData): ByteArray
+}
+
+/**
+ * The [records] complete records at the start of a log file and the [bytes] they take.
+ */
+data class TelemetryRecordSpan(val records: Int, val bytes: Long)
+
+/**
+ * Format of the telemetry log files, chosen with the `llm.for.code.telemetry.binary.format` registry key.
+ */
+enum class TelemetryRecordFormat(val fileExtension: String) {
+    /** One JSON object per line. */
+    JSON("log") {
+        override fun newEncoder() = object : TelemetryRecordEncoder {
+            override fun header() = ByteArray(0)
+
+            override fun encode(data: EFTelemetryData) = "${gson.toJson(data)}\n".toByteArray(StandardCharsets.UTF_8)
+        }
+
+        override fun countRecords(input: InputStream) = countCompleteRecords(input).records
+
+        override fun countCompleteRecords(input: InputStream): TelemetryRecordSpan {
+            var records = 0
+            var bytes = 0L
+            var position = 0L
+            val buffer = ByteArray(64 * 1024)
+            while (true) {
+                val read = input.read(buffer)
+                if (read < 0) return TelemetryRecordSpan(records, bytes)
+                for (i in 0 until read) {
+                    if (buffer[i] == '\n'.code.toByte()) {
+                        records++
+                        bytes = position + i + 1
+                    }
+                }
+                position += read
+            }
+        }
+    },
+
+    /** Length-prefixed binary records, see [TelemetryBinaryEncoder]. */
+    BINARY("bin") {
+        override fun newEncoder() = TelemetryBinaryEncoder()
+
+        override fun countRecords(input: InputStream) = TelemetryBinaryReader(BufferedInputStream(input)).countRecords()
+
+        override fun countCompleteRecords(input: InputStream) =
+            TelemetryBinaryReader(BufferedInputStream(input)).countCompleteRecords()
+    };
+
+    companion object {
+        private val gson = Gson()
+
+        fun fromRegistry() = if (Registry.`is`("llm.for.code.telemetry.binary.format", false)) BINARY else JSON
+    }
+
+    /**
+     * @return an encoder for a file that is opened for writing
+     */
+    abstract fun newEncoder(): TelemetryRecordEncoder
+
+    abstract fun countRecords(input: InputStream): Int
+
+    /**
+     * Counts the records up to one left incomplete at the end, e.g. by a writer that was killed while appending it.
+     *
+     * @throws java.io.IOException if the records cannot be read at all, e.g. in a file of a newer version
+     */
+    abstract fun countCompleteRecords(input: InputStream): TelemetryRecordSpan
+}
@@ -0,0 +1,98 @@
+package com.intellij.ml.llm.template.telemetry
+
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.openapi.util.registry.Registry
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+
+/**
+ * When [TelemetrySink] starts a new log file: once the active one reaches [maxFileBytes], or on the first write
+ * of a new day if [rotateDaily] is set. At most [maxSegments] rotated files are kept.
+ */
+data class TelemetryRollingPolicy(
+    val maxFileBytes: Long,
+    val rotateDaily: Boolean,
+    val maxSegments: Int,
+) {
+    companion object {
+        private const val BYTES_IN_MEGABYTE = 1024L * 1024L
+
+        fun fromRegistry() = TelemetryRollingPolicy(
+            maxFileBytes = Registry.intValue("llm.for.code.telemetry.rotation.size.mb", 10).coerceAtLeast(1) * BYTES_IN_MEGABYTE,
+            rotateDaily = Registry.`is`("llm.for.code.telemetry.rotation.daily", true),
+            maxSegments = Registry.intValue("llm.for.code.telemetry.rotation.keep.segments", 10).coerceAtLeast(1),
+        )
+    }
+}
+
+/**
+ * A rotated, gzipped log file of [records] records written between [firstRecordTime] and [lastRecordTime],
+ * in milliseconds since the epoch. [bytes] is its uncompressed size.
+ */
+data class TelemetrySegment(
+    val fileName: String,
+    val firstRecordTime: Long,
+    val lastRecordTime: Long,
+    val records: Int,
+    val bytes: Long,
+)
+
+/**
+ * Index of the rotated telemetry log files, oldest first, kept next to them as one tab separated line per segment.
+ * It lets tools find the segments of a time range without decompressing them. The active log file is not indexed.
+ */
+class TelemetrySegmentIndex(private val indexFile: Path) {
+    companion object {
+        const val INDEX_FILE_NAME = "ef_telemetry_data.index"
+
+        private val logger = Logger.getInstance(TelemetrySegmentIndex::class.java)
+    }
+
+    fun read(): List<TelemetrySegment> {
+        if (!Files.exists(indexFile)) return emptyList()
+        return Files.readAllLines(indexFile, StandardCharsets.UTF_8).mapNotNull { line ->
+            val fields = line.split('\t')
+            if (fields.size != 5) return@mapNotNull null
+            TelemetrySegment(
+                fileName = fields[0],
+                firstRecordTime = fields[1].toLongOrNull() ?: return@mapNotNull null,
+                lastRecordTime = fields[2].toLongOrNull() ?: return@mapNotNull null,
+                records = fields[3].toIntOrNull() ?: return@mapNotNull null,
+                bytes = fields[4].toLongOrNull() ?: return@mapNotNull null,
+            )
+        }
+    }
+
+    /**
+     * @return the segments holding records written between [from] and [to], in milliseconds since the epoch
+     */
+    fun segmentsBetween(from: Long, to: Long): List<TelemetrySegment> {
+        return read().filter { it.lastRecordTime >= from && it.firstRecordTime <= to }
+    }
+
+    /**
+     * Adds [segment] and deletes the oldest segments beyond [maxSegments], together with their files.
+     */
+    internal fun add(segment: TelemetrySegment, maxSegments: Int) {
+        val segments = read() + segment
+        val expired = segments.dropLast(maxSegments)
+        write(segments.takeLast(maxSegments))
+        for (expiredSegment in expired) {
+            try {
+                Files.deleteIfExists(indexFile.resolveSibling(expiredSegment.fileName))
+            } catch (e: Exception) {
+                logger.warn("Failed to delete telemetry segment ${expiredSegment.fileName}", e)
+            }
+        }
+    }
+
+    private fun write(segments: List<TelemetrySegment>) {
+        val temporaryFile = indexFile.resolveSibling("${indexFile.fileName}.tmp")
+        Files.write(temporaryFile, segments.map {
+            listOf(it.fileName, it.firstRecordTime, it.lastRecordTime, it.records, it.bytes).joinToString("\t")
+        }, StandardCharsets.UTF_8)
+        Files.move(temporaryFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+    }
+}
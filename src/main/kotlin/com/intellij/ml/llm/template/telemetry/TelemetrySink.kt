@@ -0,0 +1,268 @@
+package com.intellij.ml.llm.template.telemetry
+
+import com.intellij.openapi.Disposable
+import com.intellij.openapi.application.PathManager
+import com.intellij.openapi.components.Service
+import com.intellij.openapi.components.service
+import com.intellij.openapi.diagnostic.Logger
+import com.intellij.util.concurrency.AppExecutorUtil
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.nio.file.attribute.BasicFileAttributes
+import java.time.Instant
+import java.time.ZoneId
+import java.time.format.DateTimeFormatter
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.Future
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.zip.GZIPOutputStream
+
+/**
+ * Writes telemetry records to `ef_plugin_logs/ef_telemetry_data.log` in the IDE log directory, or to
+ * `ef_telemetry_data.bin` in the [TelemetryRecordFormat.BINARY] format.
+ *
+ * [record] only puts the record into a bounded lock-free queue, so it can be called from any thread, the EDT included.
+ * A single background writer drains the queue shortly afterwards, encodes the records it finds and appends them
+ * with one write to a file channel that stays open. Records arriving while the queue is full are dropped and counted.
+ * Records still queued when the application shuts down are written on disposal.
+ *
+ * The log file is rotated as the [TelemetryRollingPolicy] says: the full file is gzipped into a segment named after
+ * the time of its first record, the segment is added to the [TelemetrySegmentIndex], and the oldest segments
+ * beyond the limit are deleted.
+ */
+@Service(Service.Level.APP)
+class TelemetrySink internal constructor(
+    private val format: TelemetryRecordFormat,
+    private val logFile: Path = defaultLogFile(format),
+    private val rollingPolicy: () -> TelemetryRollingPolicy = TelemetryRollingPolicy::fromRegistry,
+) : Disposable {
+    companion object {
+        const val LOG_DIR_NAME = "ef_plugin_logs"
+        const val LOG_FILE_BASE_NAME = "ef_telemetry_data"
+        private const val QUEUE_CAPACITY = 10_000
+        private const val MAX_BATCH_RECORDS = 1_000
+        private const val BATCH_DELAY_MILLIS = 200L
+        private const val SHUTDOWN_TIMEOUT_SECONDS = 5L
+        private val SEGMENT_TIME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss")
+
+        private val logger = Logger.getInstance(TelemetrySink::class.java)
+
+        fun getInstance() = service<TelemetrySink>()
+
+        fun defaultLogFile(format: TelemetryRecordFormat): Path {
+            return PathManager.getLogDir().resolve(LOG_DIR_NAME).resolve("$LOG_FILE_BASE_NAME.${format.fileExtension}")
+        }
+    }
+
+    constructor() : this(TelemetryRecordFormat.fromRegistry())
+
+    private class QueuedRecord(val time: Long, val data: EFTelemetryData, val onWritten: () -> Unit)
+
+    val segmentIndex = TelemetrySegmentIndex(logFile.resolveSibling(TelemetrySegmentIndex.INDEX_FILE_NAME))
+
+    private val queue = ConcurrentLinkedQueue<QueuedRecord>()
+    private val queuedRecords = AtomicInteger()
+    private val droppedRecords = AtomicLong()
+    private val drainScheduled = AtomicBoolean()
+    private val writer = AppExecutorUtil.createBoundedScheduledExecutorService("Telemetry Writer", 1)
+
+    @Volatile
+    private var disposed = false
+
+    // accessed by the writer thread only
+    private var channel: FileChannel? = null
+    private var encoder: TelemetryRecordEncoder? = null
+    private var activeFirstRecordTime = 0L
+    private var activeLastRecordTime = 0L
+    private var activeBytes = 0L
+    private var activeRecords = 0
+
+    /**
+     * Queues [data] to be appended to the log file. It is encoded later, so a copy of it is queued, and the caller
+     * may go on changing [data]. [onWritten] is called on the writer thread once the record is written.
+     *
+     * @return false if the record was dropped because the queue is full or the sink has been disposed
+     */
+    fun record(data: EFTelemetryData, onWritten: () -> Unit = {}): Boolean {
+        if (disposed) return false
+        if (queuedRecords.incrementAndGet() > QUEUE_CAPACITY) {
+            queuedRecords.decrementAndGet()
+            droppedRecords.incrementAndGet()
+            return false
+        }
+        queue.offer(QueuedRecord(System.currentTimeMillis(), data.deepCopy(), onWritten))
+        if (drainScheduled.compareAndSet(false, true)) {
+            writer.schedule(::drain, BATCH_DELAY_MILLIS, TimeUnit.MILLISECONDS)
+        }
+        return true
+    }
+
+    /**
+     * Writes the queued records without waiting for the next batch.
+     *
+     * @return a future completed once the records queued so far are written
+     */
+    fun flush(): Future<*> = writer.submit(::drain)
+
+    fun getDroppedRecords(): Long = droppedRecords.get()
+
+    fun getQueuedRecords(): Int = queuedRecords.get()
+
+    private fun drain() {
+        drainScheduled.set(false)
+        try {
+            while (true) {
+                val batch = ArrayList<QueuedRecord>()
+                while (batch.size < MAX_BATCH_RECORDS) {
+                    batch.add(queue.poll() ?: break)
+                }
+                if (batch.isEmpty()) break
+                queuedRecords.addAndGet(-batch.size)
+                write(batch)
+                batch.forEach { it.onWritten() }
+            }
+        } catch (e: IOException) {
+            logger.warn("Failed to write telemetry data to $logFile", e)
+            closeChannel()
+        }
+    }
+
+    private fun write(batch: List<QueuedRecord>) {
+        if (channel == null) openChannel()
+        val policy = rollingPolicy()
+        val firstRecordTime = batch.first().time
+        if (activeRecords > 0 && (activeBytes >= policy.maxFileBytes || policy.rotateDaily && !isSameDay(activeFirstRecordTime, firstRecordTime))) {
+            rotate(policy)
+            openChannel()
+        }
+        if (activeRecords == 0) activeFirstRecordTime = firstRecordTime
+
+        val encoder = encoder!!
+        val bytes = ByteArrayOutputStream()
+        for (record in batch) {
+            bytes.write(encoder.encode(record.data))
+        }
+        writeFully(ByteBuffer.wrap(bytes.toByteArray()))
+        activeRecords += batch.size
+        activeLastRecordTime = batch.last().time
+    }
+
+    private fun writeFully(buffer: ByteBuffer) {
+        val target = channel!!
+        while (buffer.hasRemaining()) {
+            activeBytes += target.write(buffer)
+        }
+    }
+
+    /**
+     * Opens the active log file, which may be left from a previous run. Its records are then assumed to have been
+     * written between its creation and its last modification. A new encoder starts with writing its header.
+     */
+    private fun openChannel() {
+        Files.createDirectories(logFile.parent)
+        val existingRecords = if (Files.exists(logFile)) recoverExistingRecords() else null
+        if (existingRecords != null) {
+            val attributes = Files.readAttributes(logFile, BasicFileAttributes::class.java)
+            activeBytes = attributes.size()
+            activeRecords = existingRecords
+            activeFirstRecordTime = attributes.creationTime().toMillis()
+            activeLastRecordTime = attributes.lastModifiedTime().toMillis()
+        } else {
+            activeBytes = 0
+            activeRecords = 0
+        }
+        channel = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)
+        encoder = format.newEncoder().also { writeFully(ByteBuffer.wrap(it.header())) }
+    }
+
+    /**
+     * Counts the records of the log file left from a previous run. An incomplete last record, left by a run that was
+     * killed while writing it, is cut off so that new records can be appended after the complete ones. A file that
+     * cannot be read at all is moved aside, so that the log starts afresh instead of failing on every batch.
+     *
+     * @return the number of records, or null if the file was moved aside
+     */
+    private fun recoverExistingRecords(): Int? {
+        val span = try {
+            Files.newInputStream(logFile).use { format.countCompleteRecords(it) }
+        } catch (e: IOException) {
+            val damagedFile = logFile.resolveSibling("${logFile.fileName}.damaged-${System.currentTimeMillis()}")
+            logger.warn("Cannot read telemetry data in $logFile, moving it to $damagedFile", e)
+            Files.move(logFile, damagedFile)
+            return null
+        }
+        val size = Files.size(logFile)
+        if (span.bytes < size) {
+            logger.warn("Dropping an incomplete telemetry record of ${size - span.bytes} bytes at the end of $logFile")
+            FileChannel.open(logFile, StandardOpenOption.WRITE).use { it.truncate(span.bytes) }
+        }
+        return span.records
+    }
+
+    /**
+     * Compresses the active log file into a new segment and starts an empty one.
+     */
+    private fun rotate(policy: TelemetryRollingPolicy) {
+        closeChannel()
+        val segmentName = segmentName(activeFirstRecordTime)
+        val temporaryFile = logFile.resolveSibling("$segmentName.tmp")
+        GZIPOutputStream(Files.newOutputStream(temporaryFile)).use { Files.copy(logFile, it) }
+        Files.move(temporaryFile, logFile.resolveSibling(segmentName), StandardCopyOption.ATOMIC_MOVE)
+        segmentIndex.add(
+            TelemetrySegment(segmentName, activeFirstRecordTime, activeLastRecordTime, activeRecords, activeBytes),
+            policy.maxSegments
+        )
+        Files.delete(logFile)
+        activeBytes = 0
+        activeRecords = 0
+    }
+
+    private fun segmentName(firstRecordTime: Long): String {
+        val fileName = logFile.fileName.toString()
+        val baseName = "${fileName.substringBeforeLast('.')}." +
+                SEGMENT_TIME_FORMAT.format(Instant.ofEpochMilli(firstRecordTime).atZone(ZoneId.systemDefault()))
+        val extension = fileName.substringAfterLast('.')
+        return generateSequence(0) { it + 1 }
+            .map { if (it == 0) "$baseName.$extension.gz" else "$baseName-$it.$extension.gz" }
+            .first { !Files.exists(logFile.resolveSibling(it)) }
+    }
+
+    private fun isSameDay(firstTime: Long, secondTime: Long): Boolean {
+        val zone = ZoneId.systemDefault()
+        return Instant.ofEpochMilli(firstTime).atZone(zone).toLocalDate() == Instant.ofEpochMilli(secondTime).atZone(zone).toLocalDate()
+    }
+
+    private fun closeChannel() {
+        try {
+            channel?.close()
+        } catch (e: IOException) {
+            logger.debug(e)
+        }
+        channel = null
+        encoder = null
+    }
+
+    override fun dispose() {
+        disposed = true
+        try {
+            writer.submit {
+                drain()
+                closeChannel()
+            }.get(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+        } catch (e: TimeoutException) {
+            logger.warn("Telemetry data was not written within $SHUTDOWN_TIMEOUT_SECONDS seconds on shutdown")
+        } finally {
+            writer.shutdown()
+        }
+    }
+}
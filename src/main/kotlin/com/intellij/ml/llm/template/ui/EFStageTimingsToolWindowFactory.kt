@@ -0,0 +1,95 @@
+package com.intellij.ml.llm.template.ui
+
+import com.intellij.icons.AllIcons
+import com.intellij.ml.llm.template.LLMBundle
+import com.intellij.ml.llm.template.telemetry.EFStageStatistics
+import com.intellij.ml.llm.template.telemetry.EFTelemetryDataManager
+import com.intellij.ml.llm.template.telemetry.TelemetrySink
+import com.intellij.openapi.project.DumbAware
+import com.intellij.openapi.project.DumbAwareAction
+import com.intellij.openapi.project.Project
+import com.intellij.openapi.util.text.StringUtil
+import com.intellij.openapi.wm.ToolWindow
+import com.intellij.openapi.wm.ToolWindowFactory
+import com.intellij.ui.components.JBLabel
+import com.intellij.ui.components.JBScrollPane
+import com.intellij.ui.content.ContentFactory
+import com.intellij.ui.table.JBTable
+import com.intellij.util.ui.JBUI
+import java.awt.BorderLayout
+import javax.swing.JComponent
+import javax.swing.JPanel
+import javax.swing.table.DefaultTableModel
+
+/**
+ * Shows the percentiles of the time spent in each stage of the extract function sessions of this IDE run,
+ * together with the memory kept for telemetry and the telemetry records dropped so far.
+ */
+class EFStageTimingsToolWindowFactory : ToolWindowFactory, DumbAware {
+    override fun createToolWindowContent(project: Project, toolWindow: ToolWindow) {
+        val timingsPanel = EFStageTimingsPanel()
+        timingsPanel.refresh()
+        toolWindow.contentManager.addContent(
+            ContentFactory.getInstance().createContent(timingsPanel.component, "", false)
+        )
+        toolWindow.setTitleActions(
+            listOf(
+                DumbAwareAction.create(LLMBundle.message("ef.stage.timings.refresh.action"), AllIcons.Actions.Refresh) {
+                    timingsPanel.refresh()
+                },
+                DumbAwareAction.create(LLMBundle.message("ef.stage.timings.reset.action"), AllIcons.General.Reset) {
+                    EFStageStatistics.getInstance().reset()
+                    timingsPanel.refresh()
+                }
+            )
+        )
+    }
+}
+
+private class EFStageTimingsPanel {
+    private val tableModel = object : DefaultTableModel(
+        arrayOf(
+            LLMBundle.message("ef.stage.timings.column.stage"),
+            LLMBundle.message("ef.stage.timings.column.samples"),
+            LLMBundle.message("ef.stage.timings.column.percentile", 50),
+            LLMBundle.message("ef.stage.timings.column.percentile", 90),
+            LLMBundle.message("ef.stage.timings.column.percentile", 95),
+            LLMBundle.message("ef.stage.timings.column.percentile", 99),
+            LLMBundle.message("ef.stage.timings.column.max"),
+        ),
+        0
+    ) {
+        override fun isCellEditable(row: Int, column: Int) = false
+    }
+    private val summaryLabel = JBLabel()
+
+    val component: JComponent = JPanel(BorderLayout()).apply {
+        add(JBScrollPane(JBTable(tableModel)), BorderLayout.CENTER)
+        add(summaryLabel.apply { border = JBUI.Borders.empty(4) }, BorderLayout.SOUTH)
+    }
+
+    fun refresh() {
+        tableModel.rowCount = 0
+        EFStageStatistics.getInstance().getPercentiles().forEach {
+            tableModel.addRow(
+                arrayOf(
+                    it.stage.key,
+                    it.samples,
+                    toMillis(it.p50),
+                    toMillis(it.p90),
+                    toMillis(it.p95),
+                    toMillis(it.p99),
+                    toMillis(it.max)
+                )
+            )
+        }
+        summaryLabel.text = LLMBundle.message(
+            "ef.stage.timings.summary",
+            EFTelemetryDataManager.getTotalLiveSessionCount(),
+            StringUtil.formatFileSize(EFTelemetryDataManager.getTotalRetainedBytes()),
+            TelemetrySink.getInstance().getDroppedRecords()
+        )
+    }
+
+    private fun toMillis(nanos: Long) = "%.2f".format(nanos / 1_000_000.0)
+}
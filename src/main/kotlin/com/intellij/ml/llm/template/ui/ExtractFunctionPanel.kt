@@ -4,34 +4,41 @@ import com.intellij.codeInsight.unwrap.ScopeHighlighter
 import com.intellij.lang.java.JavaLanguage
 import com.intellij.ml.llm.template.LLMBundle
 import com.intellij.ml.llm.template.extractfunction.EFCandidate
-import com.intellij.ml.llm.template.models.FunctionNameProvider
-import com.intellij.ml.llm.template.models.MyMethodExtractor
+import com.intellij.ml.llm.template.telemetry.EFPipelineStage
+import com.intellij.ml.llm.template.telemetry.EFStageTimer
 import com.intellij.ml.llm.template.telemetry.EFTelemetryDataElapsedTimeNotificationPayload
 import com.intellij.ml.llm.template.telemetry.EFTelemetryDataManager
 import com.intellij.ml.llm.template.telemetry.EFTelemetryDataUtils
 import com.intellij.ml.llm.template.telemetry.TelemetryDataAction
 import com.intellij.ml.llm.template.utils.CodeTransformer
+import com.intellij.ml.llm.template.utils.EFAnalysisCache
 import com.intellij.ml.llm.template.utils.EFNotification
 import com.intellij.ml.llm.template.utils.Observable
 import com.intellij.ml.llm.template.utils.PsiUtils
 import com.intellij.openapi.actionSystem.ActionManager
+import com.intellij.openapi.application.ModalityState
+import com.intellij.openapi.application.ReadAction
 import com.intellij.openapi.diagnostic.Logger
 import com.intellij.openapi.editor.Editor
 import com.intellij.openapi.editor.LogicalPosition
 import com.intellij.openapi.editor.ScrollType
 import com.intellij.openapi.keymap.KeymapUtil
+import com.intellij.openapi.progress.ProcessCanceledException
 import com.intellij.openapi.project.Project
 import com.intellij.openapi.ui.popup.JBPopup
+import com.intellij.openapi.util.Disposer
 import com.intellij.openapi.util.TextRange
 import com.intellij.psi.PsiElement
 import com.intellij.psi.PsiFile
 import com.intellij.psi.PsiMethod
+import com.intellij.refactoring.extractMethod.newImpl.ExtractException
 import com.intellij.refactoring.extractMethod.newImpl.MethodExtractor
 import com.intellij.refactoring.ui.MethodSignatureComponent
 import com.intellij.ui.components.JBScrollPane
 import com.intellij.ui.dsl.builder.AlignX
 import com.intellij.ui.dsl.builder.panel
 import com.intellij.ui.table.JBTable
+import com.intellij.util.concurrency.AppExecutorUtil
 import com.intellij.util.ui.JBDimension
 import com.intellij.util.ui.JBUI
 import org.jetbrains.annotations.Nls
@@ -43,6 +50,7 @@ import org.jetbrains.kotlin.psi.psiUtil.elementsInRange
 import java.awt.Dimension
 import java.awt.event.KeyEvent
 import java.awt.event.MouseEvent
+import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.atomic.AtomicReference
 import javax.swing.JComponent
 import javax.swing.KeyStroke
@@ -57,44 +65,51 @@ class ExtractFunctionPanel(
     candidates: List<EFCandidate>,
     codeTransformer: CodeTransformer,
     highlighter: AtomicReference<ScopeHighlighter>,
-    efTelemetryDataManager: EFTelemetryDataManager? = null
+    efTelemetryDataManager: EFTelemetryDataManager? = null,
+    stageTimer: EFStageTimer? = null
 ) : Observable() {
     val myExtractFunctionsCandidateTable: JBTable
     private val myExtractFunctionsScrollPane: JBScrollPane
     private val myProject: Project = project
     private val myMethodSignaturePreview: MethodSignatureComponent
-    private val myCandidates = candidates
+    private val myCandidates = candidates.toMutableList()
+    private val myCandidateSignatures: MutableMap<EFCandidate, String> = ConcurrentHashMap()
+    private val myPendingSignatures: MutableSet<EFCandidate> = mutableSetOf()
+    private val myDisposable = Disposer.newDisposable()
     private val myEditor = editor
     private var myPopup: JBPopup? = null
     private val myCodeTransformer = codeTransformer
     private val myFile = file
     private val myHighlighter = highlighter
     private val myEFTelemetryDataManager = efTelemetryDataManager
+    private val myStageTimer = stageTimer
     private val logger = Logger.getInstance("#com.intellij.ml.llm")
     private var prevSelectedCandidateIndex = 0
 
+    companion object {
+        // how many rows around the selected one get their signature computed ahead of time
+        private const val SIGNATURE_PREFETCH_DISTANCE = 2
+    }
+
     init {
         val tableModel = buildTableModel(myCandidates)
-        val candidateSignatureMap = buildCandidateSignatureMap(myCandidates)
         myMethodSignaturePreview = buildMethodSignaturePreview()
-        myExtractFunctionsCandidateTable = buildExtractFunctionCandidateTable(tableModel, candidateSignatureMap)
+        myExtractFunctionsCandidateTable = buildExtractFunctionCandidateTable(tableModel)
         myExtractFunctionsScrollPane = buildExtractFunctionScrollPane()
     }
 
-    private fun buildCandidateSignatureMap(candidates: List<EFCandidate>): Map<EFCandidate, String> {
-        val candidateSignatureMap: MutableMap<EFCandidate, String> = mutableMapOf()
-
-        candidates.forEach { candidate ->
-            candidateSignatureMap[candidate] = generateFunctionSignature(candidate)
+    /**
+     * Appends candidates that are not shown yet, e.g. when they are discovered while the LLM reply is still streaming.
+     */
+    fun addCandidates(candidates: List<EFCandidate>) {
+        val tableModel = myExtractFunctionsCandidateTable.model as DefaultTableModel
+        candidates.filterNot { myCandidates.contains(it) }.forEach { candidate ->
+            myCandidates.add(candidate)
+            tableModel.addRow(buildTableRow(candidate))
         }
-
-        return candidateSignatureMap
     }
 
-    private fun buildExtractFunctionCandidateTable(
-        tableModel: DefaultTableModel,
-        candidateSignatureMap: Map<EFCandidate, String>
-    ): JBTable {
+    private fun buildExtractFunctionCandidateTable(tableModel: DefaultTableModel): JBTable {
         val extractFunctionCandidateTable = object : JBTable(tableModel) {
             override fun processKeyBinding(ks: KeyStroke, e: KeyEvent, condition: Int, pressed: Boolean): Boolean {
                 if (e.keyCode == KeyEvent.VK_ENTER) {
@@ -129,7 +144,7 @@ class ExtractFunctionPanel(
             val candidate = myCandidates[extractFunctionCandidateTable.selectedRow]
             myEditor.selectionModel.setSelection(candidate.offsetStart, candidate.offsetEnd)
 
-            myMethodSignaturePreview.setSignature(candidateSignatureMap[candidate])
+            showSignature(extractFunctionCandidateTable.selectedRow)
             val scopeHighlighter: ScopeHighlighter = myHighlighter.get()
             scopeHighlighter.dropHighlight()
             val range = TextRange(candidate.offsetStart, candidate.offsetEnd)
@@ -175,13 +190,17 @@ class ExtractFunctionPanel(
         }
         model.setColumnIdentifiers(columnNames)
         candidates.forEach { efCandidate ->
-            val functionLength = efCandidate.lineEnd - efCandidate.lineStart + 1
-            val functionName = String.format("${efCandidate.functionName}()")
-            model.addRow(arrayOf(functionLength, functionName))
+            model.addRow(buildTableRow(efCandidate))
         }
         return model
     }
 
+    private fun buildTableRow(efCandidate: EFCandidate): Array<Any> {
+        val functionLength = efCandidate.lineEnd - efCandidate.lineStart + 1
+        val functionName = String.format("${efCandidate.functionName}()")
+        return arrayOf(functionLength, functionName)
+    }
+
     private fun buildMethodSignaturePreview(): MethodSignatureComponent {
         val methodSignaturePreview =
             MethodSignatureComponent("", myProject, com.intellij.ide.highlighter.JavaFileType.INSTANCE)
@@ -222,6 +241,53 @@ class ExtractFunctionPanel(
 
     fun setDelegatePopup(jbPopup: JBPopup) {
         myPopup = jbPopup
+        Disposer.register(jbPopup, myDisposable)
+    }
+
+    /**
+     * Shows the signature of the candidate in [row], or a placeholder while it is computed in the background.
+     * Signatures of the neighbouring rows are computed ahead of time, so that moving through the table is instant.
+     */
+    private fun showSignature(row: Int) {
+        val candidate = myCandidates[row]
+        myMethodSignaturePreview.setSignature(
+            myCandidateSignatures[candidate]
+                ?: LLMBundle.message("ef.candidates.popup.computing.function.signature")
+        )
+        requestSignature(candidate)
+        for (distance in 1..SIGNATURE_PREFETCH_DISTANCE) {
+            myCandidates.getOrNull(row + distance)?.let { requestSignature(it) }
+            myCandidates.getOrNull(row - distance)?.let { requestSignature(it) }
+        }
+    }
+
+    private fun requestSignature(candidate: EFCandidate) {
+        if (myCandidateSignatures.containsKey(candidate) || !myPendingSignatures.add(candidate)) return
+
+        ReadAction.nonBlocking<String> {
+            val start = System.nanoTime()
+            // a failure still has to finish the request, or the row would show the placeholder forever
+            val signature = try {
+                generateFunctionSignature(candidate)
+            } catch (e: ProcessCanceledException) {
+                throw e
+            } catch (e: Exception) {
+                logger.info("Cannot compute signature for candidate:\n$candidate\n", e)
+                LLMBundle.message("ef.candidates.popup.cannot.compute.function.signature")
+            }
+            myStageTimer?.record(EFPipelineStage.SIGNATURE_COMPUTATION, System.nanoTime() - start)
+            signature
+        }
+            .expireWith(myDisposable)
+            .finishOnUiThread(ModalityState.any()) { signature ->
+                myCandidateSignatures[candidate] = signature
+                myPendingSignatures.remove(candidate)
+                val selectedRow = myExtractFunctionsCandidateTable.selectedRow
+                if (selectedRow >= 0 && myCandidates[selectedRow] == candidate) {
+                    myMethodSignaturePreview.setSignature(signature)
+                }
+            }
+            .submit(AppExecutorUtil.getAppExecutorService())
     }
 
     private fun generateFunctionSignature(psiMethod: PsiMethod): String {
@@ -252,16 +318,23 @@ class ExtractFunctionPanel(
     private fun generateFunctionSignature(efCandidate: EFCandidate): String {
         var signature = LLMBundle.message("ef.candidates.popup.cannot.compute.function.signature")
         when (myFile.language) {
-            JavaLanguage.INSTANCE ->
-                MyMethodExtractor(FunctionNameProvider(efCandidate.functionName)).findAndSelectExtractOption(
-                    myEditor,
-                    myFile,
-                    TextRange(efCandidate.offsetStart, efCandidate.offsetEnd)
-                )?.thenApply { options ->
-                    val elementsToReplace = MethodExtractor().prepareRefactoringElements(options)
-                    elementsToReplace.method.setName(efCandidate.functionName)
-                    signature = generateFunctionSignature(elementsToReplace.method)
+            JavaLanguage.INSTANCE -> {
+                // the default target class is used: choosing another one needs a popup, which is not an option here
+                try {
+                    val options = EFAnalysisCache.getJavaExtractOptions(
+                        myFile, TextRange(efCandidate.offsetStart, efCandidate.offsetEnd)
+                    ).firstOrNull()
+                    if (options != null) {
+                        val elementsToReplace = MethodExtractor().prepareRefactoringElements(options)
+                        elementsToReplace.method.setName(efCandidate.functionName)
+                        signature = generateFunctionSignature(elementsToReplace.method)
+                    }
+                } catch (e: ProcessCanceledException) {
+                    throw e
+                } catch (e: ExtractException) {
+                    logger.info("Cannot compute signature for candidate:\n$efCandidate\n", e)
                 }
+            }
 
             KotlinLanguage.INSTANCE -> {
                 fun computeKotlinFunctionSignature(
@@ -271,9 +344,12 @@ class ExtractFunctionPanel(
                     targetSibling: PsiElement
                 ): @Nls String {
                     var kotlinSignature = LLMBundle.message("ef.candidates.popup.cannot.compute.function.signature")
-                    val extractionData = ExtractionData(file, elements.toRange(false), targetSibling)
                     try {
-                        val analysisResult = extractionData.performAnalysis()
+                        val analysisResult = EFAnalysisCache.getKotlinAnalysisResult(
+                            file, TextRange(efCandidate.offsetStart, efCandidate.offsetEnd)
+                        ) {
+                            ExtractionData(file, elements.toRange(false), targetSibling).performAnalysis()
+                        }
                         if (analysisResult.status == AnalysisResult.Status.SUCCESS) {
                             val config = ExtractionGeneratorConfiguration(
                                 analysisResult.descriptor!!,
@@ -291,6 +367,8 @@ class ExtractFunctionPanel(
                             kotlinSignature = kotlinSignature.replace(",", ",\n\t")
                             kotlinSignature = kotlinSignature.replace("$0", "\t...")
                         }
+                    } catch (e: ProcessCanceledException) {
+                        throw e
                     } catch (t: Throwable) {
                         logger.error("Error computing signature for candidate:\n$efCandidate\n")
                         logger.error(t)
@@ -322,7 +400,9 @@ class ExtractFunctionPanel(
         val efCandidate = myCandidates[index]
         myPopup!!.cancel()
         val runnable = Runnable {
+            val start = System.nanoTime()
             myCodeTransformer.applyCandidate(efCandidate, myProject, myEditor, myFile)
+            myStageTimer?.record(EFPipelineStage.APPLY_CANDIDATE, System.nanoTime() - start)
         }
         runnable.run()
     }
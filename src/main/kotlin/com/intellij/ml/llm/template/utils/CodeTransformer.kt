@@ -5,15 +5,23 @@ import com.intellij.ml.llm.template.customextractors.MyInplaceExtractionHelper
 import com.intellij.ml.llm.template.extractfunction.EFCandidate
 import com.intellij.ml.llm.template.models.FunctionNameProvider
 import com.intellij.ml.llm.template.models.MyMethodExtractor
+import com.intellij.openapi.application.ReadAction
 import com.intellij.openapi.diagnostic.Logger
 import com.intellij.openapi.editor.Editor
 import com.intellij.openapi.editor.ex.EditorEx
+import com.intellij.openapi.progress.ProgressManager
 import com.intellij.openapi.project.Project
+import com.intellij.openapi.util.TextRange
+import com.intellij.openapi.util.ThrowableComputable
 import com.intellij.psi.PsiElement
 import com.intellij.psi.PsiFile
 import com.intellij.psi.util.PsiTreeUtil
 import org.jetbrains.kotlin.idea.KotlinLanguage
+import org.jetbrains.kotlin.idea.refactoring.introduce.extractFunction.EXTRACT_FUNCTION
 import org.jetbrains.kotlin.idea.refactoring.introduce.extractFunction.ExtractKotlinFunctionHandler
+import org.jetbrains.kotlin.idea.refactoring.introduce.extractionEngine.AnalysisResult
+import org.jetbrains.kotlin.idea.refactoring.introduce.extractionEngine.ExtractableCodeDescriptorWithConflicts
+import org.jetbrains.kotlin.idea.refactoring.introduce.extractionEngine.validate
 
 class CodeTransformer : Observable() {
     private val logger = Logger.getInstance("#com.intellij.ml.llm")
@@ -64,13 +72,46 @@ class CodeTransformer : Observable() {
                 val dataContext = (editor as EditorEx).dataContext
                 val allContainersEnabled = false
                 val inplaceExtractionHelper = MyInplaceExtractionHelper(allContainersEnabled, functionNameProvider)
-                ExtractKotlinFunctionHandler(allContainersEnabled, inplaceExtractionHelper).invoke(
-                    project, editor, file, dataContext
-                )
+                if (!extractWithCachedAnalysis(project, editor, file, inplaceExtractionHelper)) {
+                    ExtractKotlinFunctionHandler(allContainersEnabled, inplaceExtractionHelper).invoke(
+                        project, editor, file, dataContext
+                    )
+                }
             }
         }
     }
 
+    /**
+     * Runs the Kotlin extraction from the analysis computed when the candidate was validated, instead of letting
+     * [ExtractKotlinFunctionHandler] analyze the selection again. Returns false if there is no such analysis,
+     * or if the extraction has conflicts, which are left for the handler to report.
+     */
+    private fun extractWithCachedAnalysis(
+        project: Project,
+        editor: Editor,
+        file: PsiFile,
+        helper: MyInplaceExtractionHelper
+    ): Boolean {
+        val range = TextRange(editor.selectionModel.selectionStart, editor.selectionModel.selectionEnd)
+        val analysisResult = EFAnalysisCache.findKotlinAnalysisResult(file, range) ?: return false
+        if (analysisResult.status != AnalysisResult.Status.SUCCESS) return false
+
+        val descriptorWithConflicts = ProgressManager.getInstance().runProcessWithProgressSynchronously(
+            ThrowableComputable<ExtractableCodeDescriptorWithConflicts, RuntimeException> {
+                ReadAction.compute<ExtractableCodeDescriptorWithConflicts, RuntimeException> {
+                    analysisResult.descriptor!!.validate()
+                }
+            },
+            EXTRACT_FUNCTION,
+            true,
+            project
+        )
+        if (!descriptorWithConflicts.conflicts.isEmpty) return false
+
+        helper.configureAndRun(project, editor, descriptorWithConflicts) {}
+        return true
+    }
+
     private fun findSelectedPsiElements(editor: Editor?, file: PsiFile?): Array<PsiElement> {
         if (editor == null) {
             return emptyArray()
@@ -0,0 +1,75 @@
+package com.intellij.ml.llm.template.utils
+
+import com.intellij.openapi.util.Key
+import com.intellij.openapi.util.TextRange
+import com.intellij.psi.PsiFile
+import com.intellij.psi.util.CachedValue
+import com.intellij.psi.util.CachedValueProvider
+import com.intellij.psi.util.CachedValuesManager
+import com.intellij.refactoring.extractMethod.newImpl.ExtractMethodPipeline.findAllOptionsToExtract
+import com.intellij.refactoring.extractMethod.newImpl.ExtractSelector
+import com.intellij.refactoring.extractMethod.newImpl.structures.ExtractOptions
+import org.jetbrains.kotlin.idea.refactoring.introduce.extractionEngine.AnalysisResult
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Extraction analysis shared by candidate validation, the signature preview and the refactoring itself,
+ * so that the analysis of a candidate runs once per version of the file.
+ *
+ * Results are stored per offset range in a cached value of the file, which is dropped as soon as the file
+ * is modified. All methods must be called inside a read action.
+ */
+class EFAnalysisCache {
+    companion object {
+        private val JAVA_OPTIONS_KEY = Key.create<CachedValue<ConcurrentHashMap<TextRange, List<ExtractOptions>>>>("llm.ef.java.extract.options")
+        private val KOTLIN_ANALYSIS_KEY = Key.create<CachedValue<ConcurrentHashMap<TextRange, AnalysisResult>>>("llm.ef.kotlin.analysis.result")
+
+        /**
+         * Returns the options to extract the elements in [range] of a Java [file], computing them if needed.
+         * The list is empty if the range does not hold extractable elements.
+         */
+        fun getJavaExtractOptions(file: PsiFile, range: TextRange): List<ExtractOptions> {
+            return getOrCompute(file, JAVA_OPTIONS_KEY, range) {
+                val elements = ExtractSelector().suggestElementsToExtract(file, range)
+                if (elements.isEmpty()) emptyList() else findAllOptionsToExtract(elements)
+            }
+        }
+
+        /**
+         * Returns the result of the Kotlin extraction analysis of [range] in [file], running [analyze] if needed.
+         */
+        fun getKotlinAnalysisResult(file: PsiFile, range: TextRange, analyze: () -> AnalysisResult): AnalysisResult {
+            return getOrCompute(file, KOTLIN_ANALYSIS_KEY, range, analyze)
+        }
+
+        /**
+         * Returns the result of the Kotlin extraction analysis of [range] in [file] if it has already been computed
+         * for the current version of the file.
+         */
+        fun findKotlinAnalysisResult(file: PsiFile, range: TextRange): AnalysisResult? {
+            return getResults(file, KOTLIN_ANALYSIS_KEY)[range]
+        }
+
+        private fun <T : Any> getOrCompute(
+            file: PsiFile,
+            key: Key<CachedValue<ConcurrentHashMap<TextRange, T>>>,
+            range: TextRange,
+            compute: () -> T
+        ): T {
+            val results = getResults(file, key)
+            // computed outside the map, so a cancelled analysis leaves nothing behind and does not block other ranges
+            results[range]?.let { return it }
+            val result = compute()
+            return results.putIfAbsent(range, result) ?: result
+        }
+
+        private fun <T : Any> getResults(
+            file: PsiFile,
+            key: Key<CachedValue<ConcurrentHashMap<TextRange, T>>>
+        ): ConcurrentHashMap<TextRange, T> {
+            return CachedValuesManager.getCachedValue(file, key) {
+                CachedValueProvider.Result.create(ConcurrentHashMap(), file)
+            }
+        }
+    }
+}
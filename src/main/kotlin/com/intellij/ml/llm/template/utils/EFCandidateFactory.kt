@@ -4,45 +4,95 @@ import com.intellij.lang.Language
 import com.intellij.ml.llm.template.extractfunction.EFCandidate
 import com.intellij.ml.llm.template.extractfunction.EFSuggestion
 import com.intellij.ml.llm.template.extractfunction.EfCandidateType
+import com.intellij.openapi.editor.Document
 import com.intellij.openapi.editor.Editor
 import com.intellij.psi.*
 import com.intellij.psi.util.PsiTreeUtil
 import com.intellij.refactoring.suggested.endOffset
 import com.intellij.refactoring.suggested.startOffset
 import org.jetbrains.kotlin.idea.base.psi.getLineCount
-import org.jetbrains.kotlin.idea.base.psi.getLineNumber
 import org.jetbrains.kotlin.lexer.KtTokens
 import org.jetbrains.kotlin.psi.KtBlockExpression
 import org.jetbrains.kotlin.psi.KtExpression
 
 class EFCandidateFactory {
-    fun buildCandidates(efSuggestion: EFSuggestion, editor: Editor, file: PsiFile): HashSet<EFCandidate> {
+    /**
+     * @param lineOffset added to the lines of [efSuggestion] to get lines of the file.
+     * It is non-zero when the LLM was given lines numbered relative to the host function.
+     */
+    fun buildCandidates(
+        efSuggestion: EFSuggestion,
+        editor: Editor,
+        file: PsiFile,
+        lineOffset: Int = 0
+    ): HashSet<EFCandidate> = buildCandidates(efSuggestion, editor.document, file, lineOffset)
+
+    /**
+     * Builds the candidates from the [document] of [file] alone, so it can be called outside the EDT in a read action.
+     */
+    fun buildCandidates(
+        efSuggestion: EFSuggestion,
+        document: Document,
+        file: PsiFile,
+        lineOffset: Int = 0
+    ): HashSet<EFCandidate> = buildCandidates(efSuggestion, file, LineIndex(document, file), lineOffset)
+
+    fun buildCandidates(
+        efSuggestions: List<EFSuggestion>,
+        editor: Editor,
+        file: PsiFile,
+        lineOffset: Int = 0
+    ): HashSet<EFCandidate> = buildCandidates(efSuggestions, editor.document, file, lineOffset)
+
+    fun buildCandidates(
+        efSuggestions: List<EFSuggestion>,
+        document: Document,
+        file: PsiFile,
+        lineOffset: Int = 0
+    ): HashSet<EFCandidate> {
         val candidates = HashSet<EFCandidate>()
+        // one index for all suggestions: they usually point at the same lines of the same host function
+        val lineIndex = LineIndex(document, file)
 
-        if (!isValid(efSuggestion, file)) {
-            buildInvalidCandidate(efSuggestion).let { candidates.add(it) }
-            return candidates
+        efSuggestions.forEach {
+            candidates.apply { addAll(buildCandidates(it, file, lineIndex, lineOffset)) }
         }
 
-        buildCandidateAsIs(efSuggestion, editor, file)?.let { candidates.add(it) }
-        buildCandidateWithAdjustment(efSuggestion, editor, file)?.let { candidates.add(it) }
-
         return candidates
     }
 
-    fun buildCandidates(efSuggestions: List<EFSuggestion>, editor: Editor, file: PsiFile): HashSet<EFCandidate> {
+    private fun buildCandidates(
+        efSuggestion: EFSuggestion,
+        file: PsiFile,
+        lineIndex: LineIndex,
+        lineOffset: Int
+    ): HashSet<EFCandidate> {
+        if (lineOffset != 0) {
+            return buildCandidates(toAbsoluteLines(efSuggestion, lineOffset), file, lineIndex, 0)
+        }
         val candidates = HashSet<EFCandidate>()
 
-        efSuggestions.forEach {
-            candidates.apply { addAll(buildCandidates(it, editor, file)) }
+        if (!isValid(efSuggestion, file)) {
+            buildInvalidCandidate(efSuggestion).let { candidates.add(it) }
+            return candidates
         }
 
+        buildCandidateAsIs(efSuggestion, lineIndex)?.let { candidates.add(it) }
+        buildCandidateWithAdjustment(efSuggestion, file, lineIndex)?.let { candidates.add(it) }
+
         return candidates
     }
 
-    private fun buildCandidateAsIs(efSuggestion: EFSuggestion, editor: Editor, file: PsiFile): EFCandidate? {
-        val psiElementStart = getLeftmostPsiElement(efSuggestion.lineStart - 1, editor, file)
-        var psiElementEnd = getLeftmostPsiElement(efSuggestion.lineEnd - 1, editor, file)
+    private fun toAbsoluteLines(efSuggestion: EFSuggestion, lineOffset: Int): EFSuggestion {
+        return efSuggestion.copy(
+            lineStart = efSuggestion.lineStart + lineOffset,
+            lineEnd = efSuggestion.lineEnd + lineOffset
+        )
+    }
+
+    private fun buildCandidateAsIs(efSuggestion: EFSuggestion, lineIndex: LineIndex): EFCandidate? {
+        val psiElementStart = lineIndex.getLeftmostPsiElement(efSuggestion.lineStart - 1)
+        val psiElementEnd = lineIndex.getLeftmostPsiElement(efSuggestion.lineEnd - 1)
 
         if (psiElementStart == null || psiElementEnd == null) {
             return null
@@ -52,31 +102,33 @@ class EFCandidateFactory {
             functionName = efSuggestion.functionName,
             offsetStart = psiElementStart.startOffset,
             offsetEnd = psiElementEnd.endOffset,
-            lineStart = editor.document.getLineNumber(psiElementStart.startOffset) + 1,
-            lineEnd = editor.document.getLineNumber(psiElementEnd.endOffset) + 1,
+            lineStart = lineIndex.document.getLineNumber(psiElementStart.startOffset) + 1,
+            lineEnd = lineIndex.getEndLine(psiElementEnd) + 1,
         ).also {
             it.efSuggestion = efSuggestion
+            it.votes = efSuggestion.votes
             it.type = EfCandidateType.AS_IS
         }
     }
 
-    private fun buildCandidateWithAdjustment(efSuggestion: EFSuggestion, editor: Editor, file: PsiFile): EFCandidate? {
-        val psiElementStart = getLeftmostPsiElement(efSuggestion.lineStart - 1, editor, file)
-        val psiElementEnd = getLeftmostPsiElement(efSuggestion.lineEnd - 1, editor, file)
+    private fun buildCandidateWithAdjustment(efSuggestion: EFSuggestion, file: PsiFile, lineIndex: LineIndex): EFCandidate? {
+        val psiElementStart = lineIndex.getLeftmostPsiElement(efSuggestion.lineStart - 1)
+        val psiElementEnd = lineIndex.getLeftmostPsiElement(efSuggestion.lineEnd - 1)
 
         if (psiElementStart == null || psiElementEnd == null) {
             return null
         }
 
-        val adjustedRegion = adjustRegion(psiElementStart, psiElementEnd, file.language) ?: return null
+        val adjustedRegion = adjustRegion(psiElementStart, psiElementEnd, file.language, lineIndex) ?: return null
         return EFCandidate(
             functionName = efSuggestion.functionName,
             offsetStart = adjustedRegion.first.startOffset,
             offsetEnd = adjustedRegion.second.endOffset,
-            lineStart = editor.document.getLineNumber(adjustedRegion.first.startOffset) + 1,
-            lineEnd = editor.document.getLineNumber(adjustedRegion.second.endOffset) + 1,
+            lineStart = lineIndex.document.getLineNumber(adjustedRegion.first.startOffset) + 1,
+            lineEnd = lineIndex.getEndLine(adjustedRegion.second) + 1,
         ).also {
             it.efSuggestion = efSuggestion
+            it.votes = efSuggestion.votes
             it.type = EfCandidateType.ADJUSTED
         }
     }
@@ -97,7 +149,8 @@ class EFCandidateFactory {
     private fun adjustRegion(
         psiElementStart: PsiElement,
         psiElementEnd: PsiElement,
-        language: Language
+        language: Language,
+        lineIndex: LineIndex
     ): Pair<PsiElement, PsiElement>? {
         var start = psiElementStart
         var end = psiElementEnd
@@ -130,7 +183,7 @@ class EFCandidateFactory {
 
         // shift right to the first non-brace and non-white space element on the same line
         while ((start.node.elementType == KtTokens.LBRACE || start.node.elementType == JavaTokenType.LBRACE || start is PsiWhiteSpace) &&
-            (start.getLineNumber(false) == start.nextSibling?.getLineNumber(false))
+            (lineIndex.getEndLine(start) == lineIndex.getEndLineOrNull(start.nextSibling))
         ) {
             start = start.nextSibling
         }
@@ -186,37 +239,6 @@ class EFCandidateFactory {
         return result
     }
 
-    private fun getLeftmostPsiElement(lineNumber: Int, editor: Editor, file: PsiFile): PsiElement? {
-        // get the PsiElement on the given lineNumber
-        var psiElement: PsiElement = file.findElementAt(editor.document.getLineStartOffset(lineNumber)) ?: return null
-
-        // if there are multiple sibling PsiElements on the same line, look for the first one
-        while (psiElement.getLineNumber(false) == psiElement.prevSibling?.getLineNumber(false)) {
-            psiElement = psiElement.prevSibling
-        }
-
-        // if we are still on a PsiWhiteSpace, then go right
-        while (psiElement.getLineNumber(false) == psiElement.nextSibling?.getLineNumber(false) && psiElement is PsiWhiteSpace) {
-            psiElement = psiElement.nextSibling
-        }
-
-        // if there are multiple parent PsiElements on the same line, look for the top one
-        val psiElementLineNumber = psiElement.getLineNumber(false)
-        while (true) {
-            if (psiElement.parent == null) break
-            if (psiElement.parent is PsiCodeBlock || psiElement.parent is KtBlockExpression) break
-            if (psiElementLineNumber != psiElement.parent.getLineNumber(false)) break
-            psiElement = psiElement.parent
-        }
-
-        // move to next non-white space sibling
-        while (psiElement is PsiWhiteSpace) {
-            psiElement = psiElement.nextSibling
-        }
-
-        return psiElement
-    }
-
     private fun isValid(efSuggestion: EFSuggestion, file: PsiFile): Boolean {
         return (efSuggestion.lineStart in (1 until file.getLineCount())) && (efSuggestion.lineEnd in (1 until file.getLineCount()))
     }
@@ -230,7 +252,63 @@ class EFCandidateFactory {
             offsetEnd = -1,
         ).also {
             it.efSuggestion = efSuggestion
+            it.votes = efSuggestion.votes
             it.type = EfCandidateType.INVALID
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Line lookups shared by all candidates built from one document: the leftmost top-level element of a line,
+     * and the line an element ends on. Both are memoized, since the same lines and elements are looked up
+     * again and again while the candidates of several suggestions are built and adjusted.
+     */
+    private class LineIndex(val document: Document, private val file: PsiFile) {
+        private val leftmostElements = HashMap<Int, PsiElement?>()
+        private val endLines = HashMap<PsiElement, Int>()
+
+        fun getEndLine(psiElement: PsiElement): Int {
+            return endLines.getOrPut(psiElement) {
+                val offset = psiElement.endOffset
+                if (offset > document.textLength) 0 else document.getLineNumber(offset)
+            }
+        }
+
+        fun getEndLineOrNull(psiElement: PsiElement?): Int? = psiElement?.let { getEndLine(it) }
+
+        fun getLeftmostPsiElement(lineNumber: Int): PsiElement? {
+            if (lineNumber in leftmostElements) return leftmostElements[lineNumber]
+            return findLeftmostPsiElement(lineNumber).also { leftmostElements[lineNumber] = it }
+        }
+
+        private fun findLeftmostPsiElement(lineNumber: Int): PsiElement? {
+            // get the PsiElement on the given lineNumber
+            var psiElement: PsiElement = file.findElementAt(document.getLineStartOffset(lineNumber)) ?: return null
+
+            // if there are multiple sibling PsiElements on the same line, look for the first one
+            while (getEndLine(psiElement) == getEndLineOrNull(psiElement.prevSibling)) {
+                psiElement = psiElement.prevSibling
+            }
+
+            // if we are still on a PsiWhiteSpace, then go right
+            while (getEndLine(psiElement) == getEndLineOrNull(psiElement.nextSibling) && psiElement is PsiWhiteSpace) {
+                psiElement = psiElement.nextSibling
+            }
+
+            // if there are multiple parent PsiElements on the same line, look for the top one
+            val psiElementLineNumber = getEndLine(psiElement)
+            while (true) {
+                if (psiElement.parent == null) break
+                if (psiElement.parent is PsiCodeBlock || psiElement.parent is KtBlockExpression) break
+                if (psiElementLineNumber != getEndLine(psiElement.parent)) break
+                psiElement = psiElement.parent
+            }
+
+            // move to next non-white space sibling
+            while (psiElement is PsiWhiteSpace) {
+                psiElement = psiElement.nextSibling
+            }
+
+            return psiElement
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.intellij.ml.llm.template.utils
+
+import com.intellij.ml.llm.template.extractfunction.EFSuggestion
+import com.intellij.openapi.editor.Document
+import com.intellij.openapi.util.TextRange
+import com.intellij.psi.PsiCodeBlock
+import com.intellij.psi.PsiElement
+import com.intellij.psi.PsiFile
+import org.jetbrains.kotlin.psi.KtBlockExpression
+
+/**
+ * Lines [lineStart]..[lineEnd] of a function, numbered as in the prompt, that are sent to the LLM in one request.
+ * [codeSnippet] is the plain code of the lines and [text] the same code with line numbers, minimized if enabled.
+ * [savedTokens] is the estimated number of tokens the minimization saved.
+ */
+data class PromptWindow(
+    val codeSnippet: String,
+    val text: String,
+    val lineStart: Int,
+    val lineEnd: Int,
+    val savedTokens: Int = 0,
+)
+
+/**
+ * Splits functions too long for one prompt into windows of at most [tokenBudget] tokens, as estimated by
+ * [TokenEstimator]. Windows end between top-level statements of the function body, so every statement is seen whole,
+ * and consecutive windows share statements worth up to [overlapRatio] of the budget, so that a region spanning
+ * the end of one window is still seen whole in the next. A statement larger than the budget gets a window of its own.
+ * With a [minimizer], windows hold the minimized code and the budget applies to it.
+ */
+class FunctionChunker(
+    private val tokenBudget: Int,
+    private val overlapRatio: Double = 0.25,
+    private val minimizer: PromptMinimizer? = null,
+) {
+    companion object {
+        /**
+         * Joins the suggestions made for each window. Suggestions reaching outside their window are dropped,
+         * since the LLM did not see those lines. A region suggested for several overlapping windows is kept once,
+         * with the name of its first suggestion and the highest of their [EFSuggestion.votes].
+         */
+        fun stitchSuggestions(windowSuggestions: List<Pair<PromptWindow, List<EFSuggestion>>>): List<EFSuggestion> {
+            val stitched = linkedMapOf<Pair<Int, Int>, EFSuggestion>()
+            for ((window, suggestions) in windowSuggestions) {
+                suggestions
+                    .filter { it.lineStart >= window.lineStart && it.lineEnd <= window.lineEnd }
+                    .forEach { suggestion ->
+                        val existing = stitched.putIfAbsent(suggestion.lineStart to suggestion.lineEnd, suggestion)
+                        if (existing != null) existing.votes = maxOf(existing.votes, suggestion.votes)
+                    }
+            }
+            return stitched.values.toList()
+        }
+    }
+
+    /**
+     * Splits [function] into windows, or returns a single window with the whole function if it fits into the budget.
+     * The first line of the function is numbered [promptLineStart]. Must be called in a read action.
+     */
+    fun split(function: PsiElement, document: Document, promptLineStart: Int): List<PromptWindow> {
+        val functionStartLine = document.getLineNumber(function.textRange.startOffset)
+        val functionEndLine = document.getLineNumber(function.textRange.endOffset)
+        val lineShift = promptLineStart - functionStartLine
+        val buildWindow = { startLine: Int, endLine: Int ->
+            buildWindow(function.containingFile, document, startLine, endLine, lineShift)
+        }
+        val whole = buildWindow(functionStartLine, functionEndLine)
+        if (TokenEstimator.estimate(whole.text) <= tokenBudget) return listOf(whole)
+
+        val spans = statementSpans(function, document, functionStartLine, functionEndLine)
+        if (spans.size < 2) return listOf(whole)
+        val costs = spans.map { (start, end) -> TokenEstimator.estimate(buildWindow(start, end).text) }
+        val overlapBudget = tokenBudget * overlapRatio
+
+        val windows = mutableListOf<PromptWindow>()
+        var first = 0
+        while (true) {
+            var last = first
+            var tokens = costs[first]
+            while (last + 1 < spans.size && tokens + costs[last + 1] <= tokenBudget) {
+                last++
+                tokens += costs[last]
+            }
+            windows.add(buildWindow(spans[first].first, spans[last].second))
+            if (last == spans.lastIndex) break
+
+            var next = last + 1
+            var overlap = 0
+            while (next - 1 > first && overlap + costs[next - 1] <= overlapBudget) {
+                next--
+                overlap += costs[next]
+            }
+            first = next
+        }
+        return windows
+    }
+
+    /**
+     * Line ranges of the top-level statements of the function body. Lines between two statements, such as comments,
+     * belong to the next statement, the signature to the first one and the closing brace to the last one.
+     */
+    private fun statementSpans(
+        function: PsiElement,
+        document: Document,
+        functionStartLine: Int,
+        functionEndLine: Int
+    ): List<Pair<Int, Int>> {
+        val statements = when (val block = PsiUtils.getFunctionBlockOrNull(function)) {
+            is PsiCodeBlock -> block.statements.toList()
+            is KtBlockExpression -> block.statements
+            else -> emptyList()
+        }
+        val spans = mutableListOf<Pair<Int, Int>>()
+        var previousEnd = functionStartLine - 1
+        for (statement in statements) {
+            val statementStart = document.getLineNumber(statement.textRange.startOffset)
+            val statementEnd = document.getLineNumber(statement.textRange.endOffset)
+            val start = if (spans.isEmpty()) functionStartLine else minOf(statementStart, previousEnd + 1)
+            spans.add(start to maxOf(start, statementEnd))
+            previousEnd = maxOf(start, statementEnd)
+        }
+        if (spans.isNotEmpty()) spans[spans.lastIndex] = spans.last().first to functionEndLine
+        return spans
+    }
+
+    private fun buildWindow(
+        file: PsiFile,
+        document: Document,
+        startLine: Int,
+        endLine: Int,
+        lineShift: Int
+    ): PromptWindow {
+        val range = TextRange(document.getLineStartOffset(startLine), document.getLineEndOffset(endLine))
+        val codeSnippet = document.getText(range)
+        val minimizedPrompt = minimizer?.minimize(file, range, startLine + lineShift)
+        return PromptWindow(
+            codeSnippet = codeSnippet,
+            text = minimizedPrompt?.text ?: addLineNumbersToCodeSnippet(codeSnippet, startLine + lineShift),
+            lineStart = startLine + lineShift,
+            lineEnd = endLine + lineShift,
+            savedTokens = minimizedPrompt?.savedTokens ?: 0,
+        )
+    }
+}
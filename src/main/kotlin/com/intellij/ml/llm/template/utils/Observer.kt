@@ -14,10 +14,14 @@ data class EFNotification(
     val payload: Any
 )
 
+/**
+ * @param checkTime time in nanoseconds spent checking whether the candidate can be extracted, 0 if not measured
+ */
 data class EFCandidateApplicationPayload(
     var result: EFApplicationResult,
     var candidate: EFCandidate,
-    var reason: String
+    var reason: String,
+    var checkTime: Long = 0
 )
 
 interface Observer {
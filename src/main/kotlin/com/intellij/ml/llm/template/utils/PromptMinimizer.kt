@@ -0,0 +1,99 @@
+package com.intellij.ml.llm.template.utils
+
+import com.intellij.openapi.util.TextRange
+import com.intellij.openapi.util.registry.Registry
+import com.intellij.psi.PsiComment
+import com.intellij.psi.PsiElement
+import com.intellij.psi.PsiFile
+import com.intellij.psi.PsiLiteralExpression
+import com.intellij.psi.PsiWhiteSpace
+import com.intellij.psi.util.PsiTreeUtil
+import org.jetbrains.kotlin.psi.KtStringTemplateExpression
+
+/**
+ * Line-numbered code sent to the LLM. Every line of [text] is numbered as in the original code,
+ * so the lines the reply refers to need no translation.
+ * [originalTokens] and [tokens] are the estimated tokens of the numbered code before and after minimization.
+ */
+data class MinimizedPrompt(
+    val text: String,
+    val originalTokens: Int,
+    val tokens: Int,
+) {
+    val savedTokens: Int
+        get() = originalTokens - tokens
+}
+
+/**
+ * Shrinks the code of a prompt to what matters for extract function decisions: comments are removed, runs of spaces
+ * are collapsed, string literals longer than [maxLiteralLength] become a placeholder, and lines left blank are dropped.
+ * Every line that remains keeps its original line number, since nothing is moved between lines.
+ */
+class PromptMinimizer(private val maxLiteralLength: Int = 24) {
+    companion object {
+        private const val LITERAL_PLACEHOLDER = "\"...\""
+
+        fun isEnabled(): Boolean = Registry.`is`("llm.for.code.enable.prompt.minimization", true)
+    }
+
+    /**
+     * Minimizes the code of [file] in [range], whose first line is numbered [promptLineStart].
+     * Must be called in a read action.
+     */
+    fun minimize(file: PsiFile, range: TextRange, promptLineStart: Int): MinimizedPrompt {
+        val originalCode = range.subSequence(file.viewProvider.contents).toString()
+        val minimizedCode = StringBuilder()
+        var leaf = file.findElementAt(range.startOffset)
+        while (leaf != null && leaf.textRange.startOffset < range.endOffset) {
+            val element = findReplacedElement(leaf) ?: leaf
+            val elementRange = element.textRange.intersection(range) ?: break
+            val text = elementRange.shiftLeft(element.textRange.startOffset).substring(element.text)
+            minimizedCode.append(rewrite(element, text))
+            leaf = PsiTreeUtil.nextLeaf(element)
+        }
+
+        val lines = mutableListOf<String>()
+        minimizedCode.lines().forEachIndexed { index, line ->
+            if (line.isNotBlank()) {
+                lines.add("${promptLineStart + index}. ${line.trimEnd()}")
+            }
+        }
+        val text = lines.joinToString("\n")
+        return MinimizedPrompt(
+            text = text,
+            originalTokens = TokenEstimator.estimate(addLineNumbersToCodeSnippet(originalCode, promptLineStart)),
+            tokens = TokenEstimator.estimate(text)
+        )
+    }
+
+    /**
+     * @return the comment or long string literal [leaf] belongs to, which is rewritten as a whole
+     */
+    private fun findReplacedElement(leaf: PsiElement): PsiElement? {
+        PsiTreeUtil.getParentOfType(leaf, PsiComment::class.java, false)?.let { return it }
+
+        val javaLiteral = PsiTreeUtil.getParentOfType(leaf, PsiLiteralExpression::class.java, false)
+        if (javaLiteral != null && javaLiteral.text.startsWith("\"") && javaLiteral.textLength > maxLiteralLength) {
+            return javaLiteral
+        }
+        // interpolated expressions may use the variables a candidate has to pass, so such templates are kept
+        val kotlinTemplate = PsiTreeUtil.getParentOfType(leaf, KtStringTemplateExpression::class.java, false)
+        if (kotlinTemplate != null && !kotlinTemplate.hasInterpolation() && kotlinTemplate.textLength > maxLiteralLength) {
+            return kotlinTemplate
+        }
+        return null
+    }
+
+    /**
+     * Rewrites [text], the part of [element] inside the minimized range, keeping its line breaks.
+     */
+    private fun rewrite(element: PsiElement, text: String): String {
+        val lineBreaks = "\n".repeat(text.count { it == '\n' })
+        return when (element) {
+            is PsiComment -> lineBreaks
+            is PsiWhiteSpace -> if (lineBreaks.isEmpty()) " " else lineBreaks + text.substringAfterLast('\n')
+            is PsiLiteralExpression, is KtStringTemplateExpression -> LITERAL_PLACEHOLDER + lineBreaks
+            else -> text
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.intellij.ml.llm.template.utils
+
+/**
+ * Estimates how many tokens a text takes for the GPT models without loading their vocabulary.
+ *
+ * The text is split the way their byte pair encoders pre-tokenize it: words with a leading space, runs of digits,
+ * runs of punctuation and runs of white space. A piece rarely becomes more tokens than its characters allow:
+ * up to four letters, three digits or two punctuation characters per token, which this estimate assumes.
+ * For source code it errs on the high side, which is the safe side for budgets.
+ */
+class TokenEstimator {
+    companion object {
+        private const val CHARS_PER_WORD_TOKEN = 4
+        private const val DIGITS_PER_TOKEN = 3
+        private const val SYMBOLS_PER_TOKEN = 2
+        private const val SPACES_PER_TOKEN = 4
+
+        fun estimate(text: CharSequence): Int {
+            var tokens = 0
+            var index = 0
+            while (index < text.length) {
+                val c = text[index]
+                val start = index
+                when {
+                    c.isLetter() || (c == ' ' && index + 1 < text.length && text[index + 1].isLetter()) -> {
+                        index++
+                        while (index < text.length && (text[index].isLetter() || text[index] == '_')) index++
+                        tokens += ceilDiv(index - start, CHARS_PER_WORD_TOKEN)
+                    }
+
+                    c.isDigit() -> {
+                        while (index < text.length && text[index].isDigit()) index++
+                        tokens += ceilDiv(index - start, DIGITS_PER_TOKEN)
+                    }
+
+                    c.isWhitespace() -> {
+                        while (index < text.length && text[index].isWhitespace()) index++
+                        tokens += ceilDiv(index - start, SPACES_PER_TOKEN)
+                    }
+
+                    else -> {
+                        while (index < text.length && isSymbol(text[index])) index++
+                        tokens += ceilDiv(index - start, SYMBOLS_PER_TOKEN)
+                    }
+                }
+            }
+            return tokens
+        }
+
+        private fun isSymbol(c: Char): Boolean = !c.isLetterOrDigit() && !c.isWhitespace()
+
+        private fun ceilDiv(length: Int, divisor: Int): Int = (length + divisor - 1) / divisor
+    }
+}
@@ -6,17 +6,19 @@ import com.intellij.ml.llm.template.LLMBundle
 import com.intellij.ml.llm.template.extractfunction.EFCandidate
 import com.intellij.ml.llm.template.extractfunction.EFSuggestion
 import com.intellij.ml.llm.template.extractfunction.EFSuggestionList
+import com.intellij.ml.llm.template.models.LLMBaseResponse
+import com.intellij.openapi.application.ReadAction
 import com.intellij.openapi.diagnostic.Logger
 import com.intellij.openapi.editor.Editor
+import com.intellij.openapi.progress.ProcessCanceledException
 import com.intellij.openapi.util.TextRange
 import com.intellij.psi.*
 import com.intellij.psi.util.PsiTreeUtil
 import com.intellij.psi.util.PsiUtilBase
 import com.intellij.refactoring.extractMethod.newImpl.ExtractMethodHelper
-import com.intellij.refactoring.extractMethod.newImpl.ExtractMethodPipeline.findAllOptionsToExtract
-import com.intellij.refactoring.extractMethod.newImpl.ExtractSelector
 import com.intellij.refactoring.suggested.endOffset
 import com.intellij.refactoring.suggested.startOffset
+import com.intellij.util.concurrency.AppExecutorUtil
 import org.jetbrains.kotlin.idea.KotlinLanguage
 import org.jetbrains.kotlin.idea.base.psi.getLineNumber
 import org.jetbrains.kotlin.idea.base.psi.unifier.toRange
@@ -24,6 +26,7 @@ import org.jetbrains.kotlin.idea.refactoring.introduce.extractFunction.ExtractKo
 import org.jetbrains.kotlin.idea.refactoring.introduce.extractionEngine.*
 import org.jetbrains.kotlin.psi.*
 import org.jetbrains.kotlin.psi.psiUtil.elementsInRange
+import java.util.concurrent.CompletableFuture
 
 
 fun addLineNumbersToCodeSnippet(codeSnippet: String, startIndex: Int): String {
@@ -72,20 +75,225 @@ fun replaceGithubUrlLineRange(githubUrl: String, lineStart: Int, lineEnd: Int):
  *
  */
 fun identifyExtractFunctionSuggestions(input: String): EFSuggestionList {
-    val regex = """\{"function_name":\s*"([^"]+)",\s*"line_start":\s*(\d+),\s*"line_end":\s*(\d+)\}""".toRegex()
-    val matches = regex.findAll(input)
-    val efSuggestions = mutableListOf<EFSuggestion>()
-    for (match in matches) {
-        efSuggestions.add(
-            EFSuggestion(
-                functionName = match.groupValues[1],
-                lineStart = match.groupValues[2].toInt(),
-                lineEnd = match.groupValues[3].toInt(),
-            )
+    return EFSuggestionList(IncrementalEFSuggestionParser().append(input))
+}
+
+/**
+ * Parses the suggestions of every choice of [response]. When the reply holds several samples,
+ * they are merged with [mergeEFSuggestions], so the suggestions most samples agree on come first.
+ */
+fun identifyExtractFunctionSuggestions(response: LLMBaseResponse): List<EFSuggestion> {
+    val samples = response.getSuggestions().map { identifyExtractFunctionSuggestions(it.text).suggestionList }
+    return if (samples.size <= 1) samples.firstOrNull().orEmpty() else mergeEFSuggestions(samples)
+}
+
+// two ranges are the same suggestion if they share at least this part of the lines they cover together
+private const val SUGGESTION_AGREEMENT_RATIO = 0.7
+
+/**
+ * Merges the suggestions of several samples of the same prompt. Suggestions agree if their line ranges are
+ * identical or overlap by at least [SUGGESTION_AGREEMENT_RATIO] of their union. Each group of agreeing suggestions
+ * becomes one suggestion with the most frequent range and name of the group, whose [EFSuggestion.votes] is the
+ * number of samples in the group. The result is ordered by votes, then by first appearance.
+ */
+fun mergeEFSuggestions(samples: List<List<EFSuggestion>>): List<EFSuggestion> {
+    val groups = mutableListOf<MutableList<IndexedValue<EFSuggestion>>>()
+    samples.forEachIndexed { sampleIndex, efSuggestions ->
+        for (efSuggestion in efSuggestions) {
+            // compared with the first suggestion of a group only, so that groups do not drift along chains of overlaps
+            val group = groups.firstOrNull { suggestionsAgree(it.first().value, efSuggestion) }
+            if (group != null) {
+                group.add(IndexedValue(sampleIndex, efSuggestion))
+            } else {
+                groups.add(mutableListOf(IndexedValue(sampleIndex, efSuggestion)))
+            }
+        }
+    }
+    return groups.map { group ->
+        val efSuggestions = group.map { it.value }
+        val (lineStart, lineEnd) = mostFrequent(efSuggestions.map { it.lineStart to it.lineEnd })
+        EFSuggestion(
+            functionName = mostFrequent(efSuggestions.map { it.functionName }),
+            lineStart = lineStart,
+            lineEnd = lineEnd,
+            votes = group.map { it.index }.distinct().size
         )
+    }.sortedByDescending { it.votes }
+}
+
+private fun suggestionsAgree(first: EFSuggestion, second: EFSuggestion): Boolean {
+    val intersection = minOf(first.lineEnd, second.lineEnd) - maxOf(first.lineStart, second.lineStart) + 1
+    if (intersection <= 0) return false
+    val union = maxOf(first.lineEnd, second.lineEnd) - minOf(first.lineStart, second.lineStart) + 1
+    return intersection >= SUGGESTION_AGREEMENT_RATIO * union
+}
+
+private fun <T> mostFrequent(values: List<T>): T {
+    // ties go to the value seen first
+    return values.groupingBy { it }.eachCount().maxBy { it.value }.key
+}
+
+/**
+ * Single-pass scanner for the extract function suggestions of an LLM reply, which may arrive in pieces.
+ * Every call to [append] returns the suggestions whose JSON object was completed by the appended text,
+ * so each suggestion is reported exactly once, as soon as its closing brace is seen.
+ *
+ * The scanner is tolerant to what the models actually produce: objects may be nested in other objects or
+ * arrays, surrounded by prose or markdown fences, keys may come in any order and under several names
+ * (see [SuggestionKey]), and line numbers may be written as strings. Quotes outside of any object are prose,
+ * not JSON strings. Only the current string and the fields of the open objects are kept, not the reply itself.
+ */
+class IncrementalEFSuggestionParser {
+    private val openObjects = ArrayDeque<SuggestionFields>()
+    private val token = StringBuilder()
+    private var inString = false
+    private var escaped = false
+    private var unicodeDigitsLeft = 0
+    private var unicodeValue = 0
+    private var number = -1
+
+    fun append(text: CharSequence): List<EFSuggestion> {
+        val efSuggestions = mutableListOf<EFSuggestion>()
+        for (c in text) {
+            if (inString) {
+                scanString(c)
+                continue
+            }
+            if (number >= 0) {
+                if (c in '0'..'9') {
+                    number = appendDigit(number, c)
+                    continue
+                }
+                openObjects.lastOrNull()?.setValue(number)
+                number = -1
+            }
+            val fields = openObjects.lastOrNull() ?: run {
+                // prose around the JSON: only an opening brace matters
+                if (c == '{') openObjects.addLast(SuggestionFields())
+                continue
+            }
+            when (c) {
+                '"' -> {
+                    inString = true
+                    token.setLength(0)
+                }
+
+                ':' -> fields.expectingValue = fields.key != null
+                ',' -> fields.clearPending()
+                '{' -> openObjects.addLast(SuggestionFields())
+                '}' -> {
+                    openObjects.removeLast().toEFSuggestion()?.let { efSuggestions.add(it) }
+                    openObjects.lastOrNull()?.clearPending()
+                }
+
+                in '0'..'9' -> if (fields.expectingValue) number = c - '0'
+            }
+        }
+        return efSuggestions
+    }
+
+    private fun scanString(c: Char) {
+        when {
+            unicodeDigitsLeft > 0 -> {
+                unicodeValue = unicodeValue * 16 + Character.digit(c, 16).coerceAtLeast(0)
+                if (--unicodeDigitsLeft == 0) token.append(unicodeValue.toChar())
+            }
+
+            escaped -> {
+                escaped = false
+                when (c) {
+                    'u' -> {
+                        unicodeDigitsLeft = 4
+                        unicodeValue = 0
+                    }
+
+                    'n' -> token.append('\n')
+                    't' -> token.append('\t')
+                    else -> token.append(c)
+                }
+            }
+
+            c == '\\' -> escaped = true
+            c == '"' -> {
+                inString = false
+                openObjects.lastOrNull()?.acceptString(token)
+            }
+
+            else -> token.append(c)
+        }
     }
 
-    return EFSuggestionList(efSuggestions)
+    private fun appendDigit(value: Int, c: Char): Int {
+        // absurdly long numbers saturate instead of overflowing into valid looking lines
+        return if (value > (Int.MAX_VALUE - 9) / 10) Int.MAX_VALUE else value * 10 + (c - '0')
+    }
+
+    private class SuggestionFields {
+        var functionName: String? = null
+        var lineStart = -1
+        var lineEnd = -1
+        var key: SuggestionKey? = null
+        var expectingValue = false
+        private var keyRead = false
+
+        fun acceptString(text: CharSequence) {
+            if (!expectingValue) {
+                key = if (keyRead) null else SuggestionKey.of(text)
+                keyRead = true
+                return
+            }
+            when (key) {
+                SuggestionKey.FUNCTION_NAME -> functionName = text.toString()
+                SuggestionKey.LINE_START, SuggestionKey.LINE_END -> text.toString().trim().toIntOrNull()?.let { setValue(it) }
+                null -> {}
+            }
+            clearPending()
+        }
+
+        fun setValue(value: Int) {
+            if (!expectingValue) return
+            when (key) {
+                SuggestionKey.LINE_START -> lineStart = value
+                SuggestionKey.LINE_END -> lineEnd = value
+                else -> {}
+            }
+            clearPending()
+        }
+
+        fun clearPending() {
+            key = null
+            expectingValue = false
+            keyRead = false
+        }
+
+        fun toEFSuggestion(): EFSuggestion? {
+            val name = functionName ?: return null
+            if (lineStart < 0 || lineEnd < 0) return null
+            return EFSuggestion(functionName = name, lineStart = lineStart, lineEnd = lineEnd)
+        }
+    }
+
+    /**
+     * Fields of a suggestion, with the key names the models are known to use for them.
+     * Keys are compared ignoring case, underscores, dashes and spaces.
+     */
+    private enum class SuggestionKey(vararg val names: String) {
+        FUNCTION_NAME("functionname", "newfunctionname", "methodname", "newmethodname", "name"),
+        LINE_START("linestart", "startline", "start", "fromline"),
+        LINE_END("lineend", "endline", "end", "toline");
+
+        companion object {
+            private val byName = values().flatMap { key -> key.names.map { it to key } }.toMap()
+
+            fun of(text: CharSequence): SuggestionKey? {
+                val normalized = StringBuilder(text.length)
+                for (c in text) {
+                    if (c != '_' && c != '-' && c != ' ') normalized.append(c.lowercaseChar())
+                }
+                return byName[normalized.toString()]
+            }
+        }
+    }
 }
 
 
@@ -95,114 +303,151 @@ fun isCandidateExtractable(
     file: PsiFile,
     observerList: List<Observer> = emptyList()
 ): Boolean {
-    when (file.language) {
-        JavaLanguage.INSTANCE -> return isFunctionExtractableJava(efCandidate, editor, file, observerList)
-        KotlinLanguage.INSTANCE -> return isSelectionExtractableKotlin(efCandidate, editor, file, observerList)
+    val payload = when (file.language) {
+        JavaLanguage.INSTANCE -> checkExtractableJava(efCandidate, file) {
+            editor.selectionModel.setSelection(efCandidate.offsetStart, efCandidate.offsetEnd)
+            ExtractMethodHelper.findEditorSelection(editor)
+        }
+
+        KotlinLanguage.INSTANCE -> checkExtractableKotlin(efCandidate, file) {
+            canSelectElementsForExtractionKotlin(efCandidate, editor, file as KtFile)
+        }
+
+        else -> null
     }
-    return false
+    editor.selectionModel.removeSelection()
+    if (payload == null) return false
+    return notifyObservers(payload, observerList)
 }
 
-private fun isFunctionExtractableJava(
+/**
+ * Same check as [isCandidateExtractable], but without an editor: the candidate's range is analyzed directly,
+ * so the check only needs a read action and can run off the EDT.
+ */
+fun isCandidateExtractable(
     efCandidate: EFCandidate,
-    editor: Editor,
     file: PsiFile,
-    observerList: List<Observer>
+    observerList: List<Observer> = emptyList()
 ): Boolean {
-    var result = true
-    var reason = ""
-    var applicationResult = EFApplicationResult.OK
+    val payload = checkCandidateExtractable(efCandidate, file) ?: return false
+    return notifyObservers(payload, observerList)
+}
 
-    if (!efCandidate.isValid()) {
-        result = false
-        reason = LLMBundle.message("extract.function.invalid.candidate")
-        applicationResult = EFApplicationResult.FAIL
-    } else if (selectionIsEntireBodyFunctionJava(efCandidate, file)) {
-        result = false
-        reason = LLMBundle.message("extract.function.entire.function.selection.message")
-        applicationResult = EFApplicationResult.FAIL
-    } else {
-        editor.selectionModel.setSelection(efCandidate.offsetStart, efCandidate.offsetEnd)
-        val range = ExtractMethodHelper.findEditorSelection(editor)
-        val elements = ExtractSelector().suggestElementsToExtract(file, range!!)
-        if (elements.isEmpty()) {
-            result = false
-            applicationResult = EFApplicationResult.FAIL
-            reason = LLMBundle.message("extract.function.code.not.extractable.message")
-        } else {
-            try {
-                val allOptionsToExtract = findAllOptionsToExtract(elements)
-                if (allOptionsToExtract.isEmpty()) {
-                    result = false
-                    reason = LLMBundle.message("extract.function.code.not.extractable.message")
-                    applicationResult = EFApplicationResult.FAIL
-                }
-            } catch (e: Exception) {
-                logException(e)
-                result = false
-                reason = e.message ?: reason
-                applicationResult = EFApplicationResult.FAIL
-            }
+/**
+ * Checks all [candidates] concurrently, each in its own non-blocking read action, and completes with the
+ * extractable ones in their original order. Observers are notified once every candidate has been checked,
+ * in the order of [candidates], so a check restarted by a write action is never reported twice.
+ * The check time of a payload is that of its last, completed run.
+ */
+fun filterExtractableCandidatesAsync(
+    candidates: List<EFCandidate>,
+    file: PsiFile,
+    observerList: List<Observer> = emptyList()
+): CompletableFuture<List<EFCandidate>> {
+    val checks = candidates.map { candidate ->
+        val check = CompletableFuture<EFCandidateApplicationPayload?>()
+        ReadAction.nonBlocking<EFCandidateApplicationPayload?> {
+            val start = System.nanoTime()
+            checkCandidateExtractable(candidate, file)?.apply { checkTime = System.nanoTime() - start }
         }
+            .expireWith(file.project)
+            .submit(AppExecutorUtil.getAppExecutorService())
+            .onSuccess { check.complete(it) }
+            .onError { check.completeExceptionally(it) }
+        check
+    }
+    val result = CompletableFuture.allOf(*checks.toTypedArray()).thenApply {
+        checks.mapNotNull { check -> check.join()?.takeIf { notifyObservers(it, observerList) }?.candidate }
+    }
+    result.whenComplete { _, _ ->
+        if (result.isCancelled) checks.forEach { it.cancel(true) }
     }
-    editor.selectionModel.removeSelection()
-    buildEFNotificationAndNotifyObservers(efCandidate, applicationResult, reason, observerList)
     return result
 }
 
-private fun isSelectionExtractableKotlin(
+private fun checkCandidateExtractable(efCandidate: EFCandidate, file: PsiFile): EFCandidateApplicationPayload? {
+    return when (file.language) {
+        JavaLanguage.INSTANCE -> checkExtractableJava(efCandidate, file) {
+            TextRange(efCandidate.offsetStart, efCandidate.offsetEnd)
+        }
+
+        KotlinLanguage.INSTANCE -> checkExtractableKotlin(efCandidate, file) {
+            canSelectElementsForExtractionKotlin(efCandidate, file as KtFile)
+        }
+
+        else -> null
+    }
+}
+
+private fun checkExtractableJava(
     efCandidate: EFCandidate,
-    editor: Editor,
     file: PsiFile,
-    observerList: List<Observer>
-): Boolean {
-    var result = true
-    var reason = ""
-    var applicationResult = EFApplicationResult.OK
+    findRange: () -> TextRange?
+): EFCandidateApplicationPayload {
+    if (!efCandidate.isValid()) {
+        return failure(efCandidate, LLMBundle.message("extract.function.invalid.candidate"))
+    }
+    if (selectionIsEntireBodyFunctionJava(efCandidate, file)) {
+        return failure(efCandidate, LLMBundle.message("extract.function.entire.function.selection.message"))
+    }
+
+    try {
+        if (EFAnalysisCache.getJavaExtractOptions(file, findRange()!!).isEmpty()) {
+            return failure(efCandidate, LLMBundle.message("extract.function.code.not.extractable.message"))
+        }
+    } catch (e: ProcessCanceledException) {
+        throw e
+    } catch (e: Exception) {
+        logException(e)
+        return failure(efCandidate, e.message ?: "")
+    }
+    return EFCandidateApplicationPayload(EFApplicationResult.OK, efCandidate, "")
+}
 
-    if (file !is KtFile) return false
+private fun checkExtractableKotlin(
+    efCandidate: EFCandidate,
+    file: PsiFile,
+    canSelectElements: () -> Boolean
+): EFCandidateApplicationPayload? {
+    if (file !is KtFile) return null
     if (!efCandidate.isValid()) {
-        result = false
-        reason = LLMBundle.message("extract.function.invalid.candidate")
-        applicationResult = EFApplicationResult.FAIL
-    } else if (selectionIsEntireBodyFunctionKotlin(efCandidate, file)) {
-        result = false
-        reason = LLMBundle.message("extract.function.entire.function.selection.message")
-        applicationResult = EFApplicationResult.FAIL
-    } else if (!canSelectElementsForExtractionKotlin(efCandidate, editor, file)) {
-        result = false
-        reason = LLMBundle.message("extract.function.code.not.extractable.message")
-        applicationResult = EFApplicationResult.FAIL
-    } else {
-        try {
-            val elements = file.elementsInRange(TextRange(efCandidate.offsetStart, efCandidate.offsetEnd))
-            val targetSibling = PsiUtils.getParentFunctionOrNull(elements[0], file.language)
-            val extractionData = ExtractionData(file, elements.toRange(false), targetSibling!!)
-            val analysisResult = extractionData.performAnalysis()
-            if (analysisResult.status != AnalysisResult.Status.SUCCESS) {
-                result = false
-                reason = LLMBundle.message("extract.function.code.not.extractable.message")
-                applicationResult = EFApplicationResult.FAIL
-            } else {
-                ExtractionGeneratorConfiguration(
-                    analysisResult.descriptor!!,
-                    ExtractionGeneratorOptions(
-                        inTempFile = true,
-                        target = ExtractionTarget.FUNCTION,
-                        dummyName = efCandidate.functionName,
-                    )
-                ).generateDeclaration()
-            }
+        return failure(efCandidate, LLMBundle.message("extract.function.invalid.candidate"))
+    }
+    if (selectionIsEntireBodyFunctionKotlin(efCandidate, file)) {
+        return failure(efCandidate, LLMBundle.message("extract.function.entire.function.selection.message"))
+    }
+    if (!canSelectElements()) {
+        return failure(efCandidate, LLMBundle.message("extract.function.code.not.extractable.message"))
+    }
 
-        } catch (t: Throwable) {
-            result = false
-            reason = LLMBundle.message("extract.function.code.not.extractable.message")
-            applicationResult = EFApplicationResult.FAIL
+    try {
+        val range = TextRange(efCandidate.offsetStart, efCandidate.offsetEnd)
+        val elements = file.elementsInRange(range)
+        val targetSibling = PsiUtils.getParentFunctionOrNull(elements[0], file.language)
+        val analysisResult = EFAnalysisCache.getKotlinAnalysisResult(file, range) {
+            ExtractionData(file, elements.toRange(false), targetSibling!!).performAnalysis()
         }
+        if (analysisResult.status != AnalysisResult.Status.SUCCESS) {
+            return failure(efCandidate, LLMBundle.message("extract.function.code.not.extractable.message"))
+        }
+        ExtractionGeneratorConfiguration(
+            analysisResult.descriptor!!,
+            ExtractionGeneratorOptions(
+                inTempFile = true,
+                target = ExtractionTarget.FUNCTION,
+                dummyName = efCandidate.functionName,
+            )
+        ).generateDeclaration()
+    } catch (e: ProcessCanceledException) {
+        throw e
+    } catch (t: Throwable) {
+        return failure(efCandidate, LLMBundle.message("extract.function.code.not.extractable.message"))
     }
+    return EFCandidateApplicationPayload(EFApplicationResult.OK, efCandidate, "")
+}
 
-    buildEFNotificationAndNotifyObservers(efCandidate, applicationResult, reason, observerList)
-    editor.selectionModel.removeSelection()
-    return result
+private fun failure(efCandidate: EFCandidate, reason: String): EFCandidateApplicationPayload {
+    return EFCandidateApplicationPayload(EFApplicationResult.FAIL, efCandidate, reason)
 }
 
 fun canSelectElementsForExtractionKotlin(efCandidate: EFCandidate, editor: Editor, file: KtFile): Boolean {
@@ -220,10 +465,59 @@ fun canSelectElementsForExtractionKotlin(efCandidate: EFCandidate, editor: Edito
     return result
 }
 
+/**
+ * Editor-free counterpart of [canSelectElementsForExtractionKotlin]. As with the selection of
+ * [ExtractKotlinFunctionHandler], the range without the whitespace and comments at its ends must be one expression
+ * or whole consecutive statements of a block, so a range cutting through a statement cannot be selected.
+ */
+fun canSelectElementsForExtractionKotlin(efCandidate: EFCandidate, file: KtFile): Boolean {
+    return findElementsForExtractionKotlin(file, TextRange(efCandidate.offsetStart, efCandidate.offsetEnd)).isNotEmpty()
+}
+
+private fun findElementsForExtractionKotlin(file: KtFile, range: TextRange): List<PsiElement> {
+    if (range.isEmpty) return emptyList()
+    val isWhitespaceOrComment = { leaf: PsiElement ->
+        leaf is PsiWhiteSpace || PsiTreeUtil.getParentOfType(leaf, PsiComment::class.java, false) != null
+    }
+    var first = file.findElementAt(range.startOffset)
+    while (first != null && first.startOffset < range.endOffset && isWhitespaceOrComment(first)) {
+        first = PsiTreeUtil.nextLeaf(first)
+    }
+    var last = file.findElementAt(range.endOffset - 1)
+    while (last != null && last.endOffset > range.startOffset && isWhitespaceOrComment(last)) {
+        last = PsiTreeUtil.prevLeaf(last)
+    }
+    if (first == null || last == null || first.startOffset >= last.endOffset) return emptyList()
+    val trimmedRange = TextRange(first.startOffset, last.endOffset)
+    if (!range.contains(trimmedRange)) return emptyList()
+
+    val commonParent = PsiTreeUtil.findCommonParent(first, last) ?: return emptyList()
+    generateSequence(commonParent) { it.parent }
+        .takeWhile { it !is PsiFile && it.textRange == trimmedRange }
+        .lastOrNull { it is KtExpression }
+        ?.let { return listOf(it) }
+
+    val statements = (commonParent as? KtBlockExpression)?.statements
+        ?.filter { trimmedRange.contains(it.textRange) }
+        ?: return emptyList()
+    if (statements.isEmpty() || statements.first().startOffset != trimmedRange.startOffset ||
+        statements.last().endOffset != trimmedRange.endOffset
+    ) {
+        return emptyList()
+    }
+    return statements
+}
+
+private fun notifyObservers(payload: EFCandidateApplicationPayload, observers: List<Observer>): Boolean {
+    buildEFNotificationAndNotifyObservers(payload.candidate, payload.result, payload.reason, payload.checkTime, observers)
+    return payload.result == EFApplicationResult.OK
+}
+
 private fun buildEFNotificationAndNotifyObservers(
     efCandidate: EFCandidate,
     result: EFApplicationResult,
     reason: String,
+    checkTime: Long,
     observers: List<Observer>
 ) {
     observers.forEach {
@@ -232,7 +526,8 @@ private fun buildEFNotificationAndNotifyObservers(
                 EFCandidateApplicationPayload(
                     result = result,
                     candidate = efCandidate,
-                    reason = reason
+                    reason = reason,
+                    checkTime = checkTime
                 )
             )
         )
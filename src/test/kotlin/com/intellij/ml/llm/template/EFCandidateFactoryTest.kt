@@ -81,6 +81,26 @@ class EFCandidateFactoryTest : LightPlatformCodeInsightTestCase() {
         TestCase.assertEquals(EfCandidateType.AS_IS, efCandidates.get(0).type)
     }
 
+    fun `test suggestion with relative line numbers is remapped to file lines`() {
+        configureByFile("/testdata/KafkaAdminClientTest.java")
+
+        val efSuggestion = EFSuggestion(
+            functionName = "createPartitionMetadata",
+            lineStart = 1,
+            lineEnd = 15
+        )
+        val efCandidates = EFCandidateFactory().buildCandidates(efSuggestion, editor, file, 49).toTypedArray()
+
+        TestCase.assertEquals(1, efCandidates.size)
+        TestCase.assertEquals(50, efCandidates.get(0).lineStart)
+        TestCase.assertEquals(64, efCandidates.get(0).lineEnd)
+        TestCase.assertEquals(50, efCandidates.get(0).efSuggestion.lineStart)
+        TestCase.assertEquals(64, efCandidates.get(0).efSuggestion.lineEnd)
+        TestCase.assertEquals(3589, efCandidates.get(0).offsetStart)
+        TestCase.assertEquals(4940, efCandidates.get(0).offsetEnd)
+        TestCase.assertEquals(EfCandidateType.AS_IS, efCandidates.get(0).type)
+    }
+
     fun `test filter out extract function candidates that don't work`() {
         configureByFile("/testdata/KafkaAdminClientTest.java")
         val efs1 = EFSuggestion(
@@ -163,6 +183,19 @@ class EFCandidateFactoryTest : LightPlatformCodeInsightTestCase() {
         TestCase.assertTrue(isCandidateExtractable(candidates.get(0), editor, file))
     }
 
+    fun `test candidate is extractable without editor in Java code`() {
+        configureByFile("/testdata/KafkaAdminClientTest.java")
+        val efs = EFSuggestion(
+            functionName = "createPartitionMetadata",
+            lineStart = 113,
+            lineEnd = 120
+        )
+        val candidates = EFCandidateFactory().buildCandidates(efs, editor.document, file).toList()
+        TestCase.assertEquals(1, candidates.size)
+        TestCase.assertTrue(isCandidateExtractable(candidates.get(0), file))
+        TestCase.assertFalse(editor.selectionModel.hasSelection())
+    }
+
     fun `test candidate is not extractable in Java code`() {
         configureByFile("/testdata/KafkaAdminClientTest.java")
         val efs = EFSuggestion(
@@ -218,6 +251,18 @@ class EFCandidateFactoryTest : LightPlatformCodeInsightTestCase() {
         TestCase.assertEquals(1, candidates.size)
     }
 
+    fun `test candidate is extractable without editor in Kotlin code`() {
+        configureByFile("/testdata/RodCuttingProblem.kt")
+        val efs = EFSuggestion(
+            functionName = "createPartitionMetadata",
+            lineStart = 12,
+            lineEnd = 17
+        )
+        val candidates = EFCandidateFactory().buildCandidates(efs, editor.document, file).toTypedArray()
+            .filter { it.type == EfCandidateType.AS_IS && isCandidateExtractable(it, file) }
+        TestCase.assertEquals(1, candidates.size)
+    }
+
     fun `test candidate is not extractable in Kotlin code`() {
         configureByFile("/testdata/RodCuttingProblem.kt")
         val efs = EFSuggestion(
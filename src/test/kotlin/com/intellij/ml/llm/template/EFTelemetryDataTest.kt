@@ -1,14 +1,24 @@
 package com.intellij.ml.llm.template
 
+import com.google.gson.Gson
 import com.intellij.ml.llm.template.extractfunction.EFCandidate
 import com.intellij.ml.llm.template.extractfunction.EfCandidateType
+import com.intellij.ml.llm.template.models.LLMRequestStage
 import com.intellij.ml.llm.template.telemetry.*
 import com.intellij.ml.llm.template.utils.EFApplicationResult
 import com.intellij.ml.llm.template.utils.EFCandidateApplicationPayload
 import com.intellij.ml.llm.template.utils.EFCandidatesApplicationTelemetryObserver
 import com.intellij.ml.llm.template.utils.EFNotification
+import com.intellij.openapi.util.Disposer
+import com.intellij.openapi.util.io.FileUtil
 import com.intellij.testFramework.LightPlatformCodeInsightTestCase
 import junit.framework.TestCase
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.StringWriter
+import java.nio.file.Files
+import java.util.concurrent.TimeUnit
+import java.util.zip.GZIPInputStream
 
 class EFTelemetryDataTest : LightPlatformCodeInsightTestCase() {
     private var projectPath = "src/test"
@@ -25,6 +35,28 @@ class EFTelemetryDataTest : LightPlatformCodeInsightTestCase() {
         TestCase.assertEquals(secondSessionId, manager.currentSession())
     }
 
+    fun `test telemetry data manager evicts written and excess sessions`() {
+        val manager = EFTelemetryDataManager(maxSessions = 3)
+        val firstSessionId = manager.newSession()
+        manager.onSessionWritten(firstSessionId)
+        // the current session is kept even when written
+        TestCase.assertEquals(1, manager.getLiveSessionCount())
+
+        val secondSessionId = manager.newSession()
+        TestCase.assertNull(manager.getData(firstSessionId))
+        TestCase.assertEquals(1, manager.getLiveSessionCount())
+        val bytes = manager.getRetainedBytes()
+        manager.addHostFunctionTelemetryData(EFTelemetryDataUtils.buildHostFunctionTelemetryData("foo()", 1, 2, "java"))
+        TestCase.assertTrue(manager.getRetainedBytes() > bytes)
+
+        repeat(3) { manager.newSession() }
+        TestCase.assertEquals(3, manager.getLiveSessionCount())
+        TestCase.assertNull(manager.getData(secondSessionId))
+        TestCase.assertEquals(1, manager.getEvictedUnwrittenSessions())
+        TestCase.assertNotNull(manager.getData())
+        TestCase.assertTrue(EFTelemetryDataManager.getTotalLiveSessionCount() >= 3)
+    }
+
     fun `test host function telemetry data added successfully`() {
         val manager = EFTelemetryDataManager()
         val sessionId = manager.newSession()
@@ -146,4 +178,181 @@ class EFTelemetryDataTest : LightPlatformCodeInsightTestCase() {
         TestCase.assertTrue(psiElementsTelemetryData.contains(EFPsiElementsTypesTelemetryData("BINARY_EXPRESSION", 1)))
         TestCase.assertTrue(psiElementsTelemetryData.contains(EFPsiElementsTypesTelemetryData("FOR", 1)))
     }
-}
\ No newline at end of file
+
+    fun `test telemetry sink writes queued records in batches`() {
+        val logFile = FileUtil.createTempDirectory("telemetry", null).toPath().resolve("${TelemetrySink.LOG_FILE_BASE_NAME}.log")
+        val sink = TelemetrySink(TelemetryRecordFormat.JSON, logFile) { TelemetryRollingPolicy(Long.MAX_VALUE, false, 1) }
+        try {
+            (1..100).forEach { TestCase.assertTrue(sink.record(EFTelemetryData("$it"))) }
+            sink.flush().get(10, TimeUnit.SECONDS)
+
+            val lines = Files.readAllLines(logFile)
+            TestCase.assertEquals((1..100).map { """{"id":"$it"}""" }, lines)
+            TestCase.assertEquals(0, sink.getQueuedRecords())
+        } finally {
+            Disposer.dispose(sink)
+        }
+        TestCase.assertFalse(sink.record(EFTelemetryData("late")))
+    }
+
+    fun `test telemetry sink writes records as they were when recorded`() {
+        val logFile = FileUtil.createTempDirectory("telemetry", null).toPath().resolve("${TelemetrySink.LOG_FILE_BASE_NAME}.log")
+        val sink = TelemetrySink(TelemetryRecordFormat.JSON, logFile) { TelemetryRollingPolicy(Long.MAX_VALUE, false, 1) }
+        try {
+            val data = EFTelemetryData("1").apply {
+                processingTime = EFTelemetryDataProcessingTime(
+                    llmResponseTime = 10,
+                    pluginProcessingTime = 20,
+                    totalTime = 30,
+                    stageTimes = mapOf("popupShow" to EFStageTimeTelemetryData(5, 1, 5))
+                )
+            }
+            sink.record(data)
+            data.processingTime.llmResponseTime = 100
+            data.processingTime.stageTimes!!.getValue("popupShow").count = 2
+            data.elapsedTime = listOf(CandidateElapsedTimeTelemetryData(0, 1))
+            sink.flush().get(10, TimeUnit.SECONDS)
+
+            val line = Files.readAllLines(logFile).single()
+            TestCase.assertTrue(line.contains("\"llmResponseTime\":10,"))
+            TestCase.assertTrue(line.contains("\"count\":1,"))
+            TestCase.assertFalse(line.contains("elapsedTime"))
+        } finally {
+            Disposer.dispose(sink)
+        }
+    }
+
+    fun `test telemetry sink rotates full log files into indexed segments`() {
+        val logFile = FileUtil.createTempDirectory("telemetry", null).toPath().resolve("${TelemetrySink.LOG_FILE_BASE_NAME}.log")
+        val sink = TelemetrySink(TelemetryRecordFormat.JSON, logFile) {
+            TelemetryRollingPolicy(maxFileBytes = 10, rotateDaily = false, maxSegments = 2)
+        }
+        try {
+            for (batch in 1..4) {
+                sink.record(EFTelemetryData("$batch"))
+                sink.flush().get(10, TimeUnit.SECONDS)
+            }
+
+            val segments = sink.segmentIndex.read()
+            TestCase.assertEquals(2, segments.size)
+            TestCase.assertTrue(segments.all { it.records == 1 && it.firstRecordTime <= it.lastRecordTime })
+            val segmentFiles = Files.list(logFile.parent).use { files ->
+                files.map { it.fileName.toString() }.filter { it.endsWith(".log.gz") }.sorted().toList()
+            }
+            TestCase.assertEquals(segments.map { it.fileName }.sorted(), segmentFiles)
+            val lastSegment = GZIPInputStream(Files.newInputStream(logFile.resolveSibling(segments.last().fileName)))
+                .use { String(it.readAllBytes()) }
+            TestCase.assertEquals("{\"id\":\"3\"}\n", lastSegment)
+            TestCase.assertEquals(listOf("""{"id":"4"}"""), Files.readAllLines(logFile))
+            TestCase.assertEquals(segments, sink.segmentIndex.segmentsBetween(0, Long.MAX_VALUE))
+        } finally {
+            Disposer.dispose(sink)
+        }
+    }
+
+    fun `test telemetry sink resumes a binary log cut off within a record`() {
+        val logFile = FileUtil.createTempDirectory("telemetry", null).toPath().resolve("${TelemetrySink.LOG_FILE_BASE_NAME}.bin")
+        val encoder = TelemetryBinaryEncoder()
+        val complete = encoder.header() + encoder.encode(EFTelemetryData("1"))
+        Files.write(logFile, complete + encoder.encode(EFTelemetryData("2")).copyOf(3))
+
+        val sink = TelemetrySink(TelemetryRecordFormat.BINARY, logFile) { TelemetryRollingPolicy(Long.MAX_VALUE, false, 1) }
+        try {
+            TestCase.assertTrue(sink.record(EFTelemetryData("3")))
+            sink.flush().get(10, TimeUnit.SECONDS)
+        } finally {
+            Disposer.dispose(sink)
+        }
+        val ids = Files.newInputStream(logFile).use { input ->
+            TelemetryBinaryReader(input.buffered()).readAll().map { it.id }.toList()
+        }
+        TestCase.assertEquals(listOf("1", "3"), ids)
+    }
+
+    fun `test binary telemetry records round trip and export to json lines`() {
+        val gson = Gson()
+        val data = EFTelemetryData("session").apply {
+            hostFunctionTelemetryData = EFHostFunctionTelemetryData(30, 5, 34, 6, "kotlin", promptTokens = 420)
+            candidatesTelemetryData = EFCandidatesTelemetryData(
+                numberOfSuggestions = 2,
+                candidates = listOf(
+                    EFCandidateTelemetryData(7, 12, EfCandidateType.AS_IS, EFApplicationResult.OK, ""),
+                    EFCandidateTelemetryData(14, 20, EfCandidateType.ADJUSTED, EFApplicationResult.FAIL, "invalid range"),
+                )
+            )
+            userSelectionTelemetryData = EFUserSelectionTelemetryData(
+                7, 12, 6, 1, 0, EfCandidateType.AS_IS,
+                listOf(EFPsiElementsTypesTelemetryData("FOR", 1), EFPsiElementsTypesTelemetryData("BINARY_EXPRESSION", 2))
+            )
+            elapsedTime = listOf(CandidateElapsedTimeTelemetryData(0, 1500))
+            processingTime = EFTelemetryDataProcessingTime(
+                2300, 120, 2420, hedged = true, hedgeWinner = "backup", hedgeSendTime = 1500, retries = 1,
+                stageTimes = mapOf(
+                    EFPipelineStage.PROMPT_BUILD.key to EFStageTimeTelemetryData(1_250_000, 1, 1_250_000),
+                    EFPipelineStage.IS_CANDIDATE_EXTRACTABLE.key to EFStageTimeTelemetryData(9_400_000, 2, 6_100_000),
+                )
+            )
+        }
+        val partial = EFTelemetryData("partial").apply {
+            candidatesTelemetryData = EFCandidatesTelemetryData(0, emptyList())
+        }
+
+        val bytes = ByteArrayOutputStream()
+        val encoder = TelemetryBinaryEncoder()
+        bytes.write(encoder.header())
+        bytes.write(encoder.encode(data))
+        bytes.write(encoder.encode(data))
+        // a writer reopening the file starts a new header and dictionary
+        val reopenedEncoder = TelemetryBinaryEncoder()
+        bytes.write(reopenedEncoder.header())
+        bytes.write(reopenedEncoder.encode(partial))
+        bytes.write(reopenedEncoder.encode(data))
+
+        val expected = listOf(data, data, partial, data).map { gson.toJson(it) }
+        val decoded = TelemetryBinaryReader(ByteArrayInputStream(bytes.toByteArray())).readAll().toList()
+        TestCase.assertEquals(expected, decoded.map { gson.toJson(it) })
+        TestCase.assertEquals(4, TelemetryRecordFormat.BINARY.countRecords(ByteArrayInputStream(bytes.toByteArray())))
+        TestCase.assertTrue(bytes.size() < expected.sumOf { it.length } / 3)
+
+        val jsonLines = StringWriter()
+        TestCase.assertEquals(4, TelemetryJsonlExporter.export(ByteArrayInputStream(bytes.toByteArray()), jsonLines))
+        TestCase.assertEquals(expected.joinToString("") { "$it\n" }, jsonLines.toString())
+    }
+
+    fun `test stage timer sums stages and feeds percentiles`() {
+        val statistics = EFStageStatistics()
+        val timer = EFStageTimer(statistics)
+        for (millis in 1L..100L) {
+            timer.record(EFPipelineStage.IS_CANDIDATE_EXTRACTABLE, TimeUnit.MILLISECONDS.toNanos(millis))
+        }
+        timer.onRequestStage(LLMRequestStage.CONNECT, 500)
+        TestCase.assertEquals("parsed", timer.measure(EFPipelineStage.SUGGESTION_PARSE) { "parsed" })
+
+        val stageTimes = timer.buildTelemetryData()
+        TestCase.assertEquals(
+            setOf("isCandidateExtractable", "httpConnect", "suggestionParse"), stageTimes.keys
+        )
+        TestCase.assertEquals(
+            EFStageTimeTelemetryData(TimeUnit.MILLISECONDS.toNanos(5050), 100, TimeUnit.MILLISECONDS.toNanos(100)),
+            stageTimes["isCandidateExtractable"]
+        )
+        TestCase.assertEquals(EFStageTimeTelemetryData(500, 1, 500), stageTimes["httpConnect"])
+
+        val percentiles = statistics.getPercentiles()
+        TestCase.assertEquals(
+            listOf(EFPipelineStage.HTTP_CONNECT, EFPipelineStage.SUGGESTION_PARSE, EFPipelineStage.IS_CANDIDATE_EXTRACTABLE),
+            percentiles.map { it.stage }
+        )
+        val checks = percentiles.last()
+        TestCase.assertEquals(100, checks.samples)
+        TestCase.assertEquals(TimeUnit.MILLISECONDS.toNanos(50), checks.p50)
+        TestCase.assertEquals(TimeUnit.MILLISECONDS.toNanos(99), checks.p99)
+        TestCase.assertEquals(TimeUnit.MILLISECONDS.toNanos(100), checks.max)
+
+        // only the latest samples are kept
+        repeat(EFStageStatistics.SAMPLES_PER_STAGE) { statistics.record(EFPipelineStage.IS_CANDIDATE_EXTRACTABLE, 7) }
+        TestCase.assertEquals(7L, statistics.getPercentiles().last().max)
+        statistics.reset()
+        TestCase.assertTrue(statistics.getPercentiles().isEmpty())
+    }
+}
@@ -0,0 +1,71 @@
+package com.intellij.ml.llm.template
+
+import com.google.gson.Gson
+import com.intellij.ml.llm.template.models.HttpClientTransport
+import com.intellij.ml.llm.template.models.LLMRequestGovernor
+import com.intellij.ml.llm.template.models.openai.OpenAIChatResponse
+import com.intellij.ml.llm.template.models.openai.OpenAIChatStreamChunk
+import com.intellij.ml.llm.template.models.stub.LLMStubConfig
+import com.intellij.ml.llm.template.models.stub.LLMStubServer
+import com.intellij.ml.llm.template.models.stub.LatencyDistribution
+import com.intellij.testFramework.LightPlatformCodeInsightTestCase
+import junit.framework.TestCase
+import java.util.concurrent.TimeUnit
+
+class LLMStubServerTest : LightPlatformCodeInsightTestCase() {
+    private val gson = Gson()
+    private val requestBody = """{"model": "gpt-3.5-turbo", "messages": [{"role": "user", "content": "hi"}], "n": 2}"""
+
+    fun `test latency distributions are parsed`() {
+        TestCase.assertEquals(LatencyDistribution.Fixed(100), LatencyDistribution.parse("fixed:100"))
+        TestCase.assertEquals(LatencyDistribution.Uniform(200, 800), LatencyDistribution.parse("uniform:200:800"))
+        TestCase.assertEquals(LatencyDistribution.LogNormal(400, 0.6), LatencyDistribution.parse("lognormal:400:0.6"))
+        TestCase.assertTrue(runCatching { LatencyDistribution.parse("uniform:800:200") }.exceptionOrNull() is IllegalArgumentException)
+    }
+
+    fun `test stub server replies in turn`() {
+        LLMStubServer(LLMStubConfig(replies = listOf("first", "second", "third"))).use { server ->
+            val response = HttpClientTransport.getInstance()
+                .postAsync("${server.baseUrl}/chat/completions", emptyMap(), requestBody)
+                .get(10, TimeUnit.SECONDS)
+
+            TestCase.assertEquals(200, response.statusCode)
+            val chatResponse = gson.fromJson(response.body, OpenAIChatResponse::class.java)
+            TestCase.assertEquals(listOf("first", "second"), chatResponse.getSuggestions().map { it.text })
+            TestCase.assertTrue(chatResponse.usage.totalTokens > 0)
+        }
+    }
+
+    fun `test stub server streams replies`() {
+        val reply = "a reply long enough to be streamed in several chunks"
+        LLMStubServer(LLMStubConfig(replies = listOf(reply), streamChunkDelayMillis = 0)).use { server ->
+            val lines = mutableListOf<String>()
+            val response = HttpClientTransport.getInstance()
+                .postStreaming(
+                    "${server.baseUrl}/chat/completions",
+                    emptyMap(),
+                    requestBody.replace("\"n\": 2", "\"stream\": true")
+                ) { synchronized(lines) { lines.add(it) } }
+                .get(10, TimeUnit.SECONDS)
+
+            TestCase.assertEquals(200, response.statusCode)
+            val data = lines.filter { it.startsWith("data: ") }.map { it.removePrefix("data: ") }
+            TestCase.assertEquals("[DONE]", data.last())
+            val streamed = data.dropLast(1)
+                .flatMap { gson.fromJson(it, OpenAIChatStreamChunk::class.java).choices }
+                .joinToString("") { it.delta.content ?: "" }
+            TestCase.assertEquals(reply, streamed)
+        }
+    }
+
+    fun `test stub server injects rate limiting`() {
+        LLMStubServer(LLMStubConfig(rateLimitRate = 1.0, retryAfterSeconds = 3)).use { server ->
+            val response = HttpClientTransport.getInstance()
+                .postAsync("${server.baseUrl}/chat/completions", emptyMap(), requestBody)
+                .get(10, TimeUnit.SECONDS)
+
+            TestCase.assertEquals(LLMRequestGovernor.HTTP_TOO_MANY_REQUESTS, response.statusCode)
+            TestCase.assertEquals("3", response.header("Retry-After"))
+        }
+    }
+}
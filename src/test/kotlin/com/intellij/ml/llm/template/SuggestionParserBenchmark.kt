@@ -0,0 +1,68 @@
+package com.intellij.ml.llm.template
+
+import com.intellij.ml.llm.template.extractfunction.EFSuggestion
+import com.intellij.ml.llm.template.utils.identifyExtractFunctionSuggestions
+import junit.framework.TestCase
+
+/**
+ * Compares the suggestion scanner with the regex it replaced on large replies of several choices.
+ * It is left out of the unit tests; run it with `./gradlew benchmark`.
+ */
+class SuggestionParserBenchmark : TestCase() {
+    companion object {
+        private const val WARMUP_ROUNDS = 20
+        private const val MEASURED_ROUNDS = 50
+
+        // the regex that used to parse the replies
+        private val baselineRegex =
+            """\{"function_name":\s*"([^"]+)",\s*"line_start":\s*(\d+),\s*"line_end":\s*(\d+)\}""".toRegex()
+    }
+
+    fun `test scanner and regex baseline on large multi-choice replies`() {
+        for ((numberOfChoices, suggestionsPerChoice) in listOf(1 to 100, 5 to 100, 5 to 1000, 10 to 5000)) {
+            val choices = List(numberOfChoices) { buildReply(suggestionsPerChoice) }
+            val regexNanos = measure(choices) { parseWithRegex(it) }
+            val scannerNanos = measure(choices) { identifyExtractFunctionSuggestions(it).suggestionList }
+            println(
+                "%d choices x %d suggestions (%d chars): regex %.3f ms, scanner %.3f ms, speedup x%.2f".format(
+                    numberOfChoices,
+                    suggestionsPerChoice,
+                    choices.sumOf { it.length },
+                    regexNanos / 1_000_000.0,
+                    scannerNanos / 1_000_000.0,
+                    regexNanos.toDouble() / scannerNanos
+                )
+            )
+        }
+    }
+
+    /**
+     * @return the median time in nanoseconds [parse] takes to parse all [choices]
+     */
+    private fun measure(choices: List<String>, parse: (String) -> List<EFSuggestion>): Long {
+        var parsedSuggestions = 0
+        repeat(WARMUP_ROUNDS) { choices.forEach { parsedSuggestions += parse(it).size } }
+        val times = LongArray(MEASURED_ROUNDS) {
+            val start = System.nanoTime()
+            choices.forEach { parsedSuggestions += parse(it).size }
+            System.nanoTime() - start
+        }
+        // uses the results, so that the parsing is not optimized away
+        assertTrue(parsedSuggestions > 0)
+        times.sort()
+        return times[times.size / 2]
+    }
+
+    private fun parseWithRegex(reply: String): List<EFSuggestion> {
+        return baselineRegex.findAll(reply).map {
+            EFSuggestion(it.groupValues[1], it.groupValues[2].toInt(), it.groupValues[3].toInt())
+        }.toList()
+    }
+
+    private fun buildReply(numberOfSuggestions: Int): String {
+        val suggestions = (1..numberOfSuggestions).joinToString(",\n") { index ->
+            """    {"function_name": "extracted$index", "line_start": ${index * 10}, "line_end": ${index * 10 + 5}}"""
+        }
+        return "I would suggest the following extract method refactorings:\n\n```\n[\n$suggestions\n]\n```"
+    }
+}
@@ -1,15 +1,18 @@
 package com.intellij.ml.llm.template
 
+import com.intellij.ml.llm.template.extractfunction.EFCandidate
 import com.intellij.ml.llm.template.extractfunction.EFSuggestion
 import com.intellij.ml.llm.template.models.ExtractFunctionLLMRequestProvider
 import com.intellij.ml.llm.template.models.LLMRequestProvider
 import com.intellij.ml.llm.template.models.sendChatRequest
 import com.intellij.ml.llm.template.utils.*
 import com.intellij.psi.PsiMethod
+import com.intellij.psi.util.PsiTreeUtil
 import com.intellij.psi.util.PsiUtilBase
 import com.intellij.testFramework.LightPlatformCodeInsightTestCase
 import junit.framework.TestCase
 import org.jetbrains.kotlin.idea.core.moveCaret
+import org.jetbrains.kotlin.psi.KtFile
 import org.jetbrains.kotlin.psi.KtNamedFunction
 
 class UtilsTest : LightPlatformCodeInsightTestCase() {
@@ -104,6 +107,84 @@ class UtilsTest : LightPlatformCodeInsightTestCase() {
         TestCase.assertEquals(0, efSuggestionList.suggestionList.size)
     }
 
+    fun `test identify extract function suggestions with reordered keys and aliases`() {
+        val input = """
+            Here's my suggested splitting for the given Java function:
+            ```json
+            {
+              "suggestions": [
+                {"new_function_name": "convertToUnixMillis", "line_start": 8, "line_end": 14},
+                {"line_end": "30", "startLine": 21, "name": "validate\u0054imeFields"},
+                {"function_name": "missingEnd", "line_start": 40}
+              ]
+            }
+            ```
+            The reasons for splitting the function are: "readability".
+            """.trimIndent()
+
+        val efSuggestions = identifyExtractFunctionSuggestions(input).suggestionList
+
+        TestCase.assertEquals(
+            listOf(
+                EFSuggestion("convertToUnixMillis", 8, 14),
+                EFSuggestion("validateTimeFields", 21, 30)
+            ),
+            efSuggestions
+        )
+    }
+
+    fun `test incremental suggestion parser gives the same suggestions for any chunking`() {
+        val reply = buildLargeReply(20)
+        val expected = identifyExtractFunctionSuggestions(reply).suggestionList
+
+        for (chunkSize in listOf(1, 3, 7, 64)) {
+            val parser = IncrementalEFSuggestionParser()
+            val efSuggestions = reply.chunked(chunkSize).flatMap { parser.append(it) }
+            TestCase.assertEquals(expected, efSuggestions)
+        }
+    }
+
+    fun `test suggestion parser finds the suggestions of the regex baseline in large replies`() {
+        // the regex that used to parse the replies, kept as a correctness baseline
+        val baselineRegex =
+            """\{"function_name":\s*"([^"]+)",\s*"line_start":\s*(\d+),\s*"line_end":\s*(\d+)\}""".toRegex()
+        val reply = (1..10).joinToString("\n\n") { buildLargeReply(500) }
+
+        val baseline = baselineRegex.findAll(reply).map {
+            EFSuggestion(it.groupValues[1], it.groupValues[2].toInt(), it.groupValues[3].toInt())
+        }.toList()
+        val efSuggestions = identifyExtractFunctionSuggestions(reply).suggestionList
+
+        TestCase.assertEquals(5000, baseline.size)
+        TestCase.assertEquals(baseline, efSuggestions)
+    }
+
+    private fun buildLargeReply(numberOfSuggestions: Int): String {
+        val suggestions = (1..numberOfSuggestions).joinToString(",\n") { index ->
+            """    {"function_name": "extracted$index", "line_start": ${index * 10}, "line_end": ${index * 10 + 5}}"""
+        }
+        return "I would suggest the following extract method refactorings:\n\n```\n[\n$suggestions\n]\n```"
+    }
+
+    fun `test suggestions of several samples are merged and ranked by votes`() {
+        val samples = listOf(
+            listOf(EFSuggestion("readConfig", 10, 20), EFSuggestion("handleError", 40, 45)),
+            listOf(EFSuggestion("loadConfig", 10, 20), EFSuggestion("validate", 60, 70)),
+            listOf(EFSuggestion("readConfig", 11, 20), EFSuggestion("handleError", 40, 45)),
+        )
+
+        val efSuggestions = mergeEFSuggestions(samples)
+
+        TestCase.assertEquals(
+            listOf(
+                EFSuggestion("readConfig", 10, 20, votes = 3),
+                EFSuggestion("handleError", 40, 45, votes = 2),
+                EFSuggestion("validate", 60, 70, votes = 1)
+            ),
+            efSuggestions
+        )
+    }
+
     fun `test replace github url line range`() {
         val url =
             "https://github.com/apache/kafka/blob/trunk/clients/src/test/java/org/apache/kafka/common/requests/UpdateMetadataRequestTest.java#L81-L212"
@@ -133,6 +214,25 @@ class UtilsTest : LightPlatformCodeInsightTestCase() {
         TestCase.assertEquals(EFApplicationResult.FAIL, secondNotifPayload.result)
     }
 
+    fun `test Kotlin range cutting through a statement cannot be selected without an editor`() {
+        configureByFile("/testdata/RodCuttingProblem.kt")
+        val document = editor.document
+        val candidate = { lineStart: Int, lineEnd: Int ->
+            EFCandidate(
+                functionName = "foo",
+                offsetStart = document.getLineStartOffset(lineStart - 1),
+                offsetEnd = document.getLineEndOffset(lineEnd - 1),
+                lineStart = lineStart,
+                lineEnd = lineEnd
+            )
+        }
+
+        TestCase.assertTrue(canSelectElementsForExtractionKotlin(candidate(13, 15), file as KtFile))
+        TestCase.assertTrue(canSelectElementsForExtractionKotlin(candidate(14, 15), file as KtFile))
+        TestCase.assertFalse(canSelectElementsForExtractionKotlin(candidate(13, 14), file as KtFile))
+        TestCase.assertFalse(canSelectElementsForExtractionKotlin(candidate(15, 16), file as KtFile))
+    }
+
     fun `test parent function correctly determined for caret position in Java code`() {
         configureByFile("/testdata/KafkaAdminClientTest.java")
         editor.moveCaret(638)
@@ -144,6 +244,67 @@ class UtilsTest : LightPlatformCodeInsightTestCase() {
         TestCase.assertEquals(expectedFunctionName, (funPsi as PsiMethod).name)
     }
 
+    fun `test long function is split into overlapping windows covering all of its lines`() {
+        configureByFile("/testdata/KafkaAdminClientTest.java")
+        editor.moveCaret(638)
+        val function = PsiUtils.getParentFunctionOrNull(editor, file.language)!!
+        val functionLineStart = editor.document.getLineNumber(function.textRange.startOffset) + 1
+        val functionLineEnd = editor.document.getLineNumber(function.textRange.endOffset) + 1
+
+        val windows = FunctionChunker(tokenBudget = 256).split(function, editor.document, functionLineStart)
+
+        TestCase.assertTrue(windows.size > 1)
+        TestCase.assertEquals(functionLineStart, windows.first().lineStart)
+        TestCase.assertEquals(functionLineEnd, windows.last().lineEnd)
+        windows.zipWithNext().forEach { (previous, next) ->
+            TestCase.assertTrue(next.lineStart > previous.lineStart)
+            TestCase.assertTrue(next.lineStart <= previous.lineEnd + 1)
+        }
+        TestCase.assertEquals(
+            listOf(functionLineStart),
+            FunctionChunker(tokenBudget = 100_000).split(function, editor.document, functionLineStart).map { it.lineStart }
+        )
+    }
+
+    fun `test suggestions of windows are stitched without duplicates`() {
+        val first = PromptWindow("", "", 1, 50)
+        val second = PromptWindow("", "", 40, 90)
+
+        val efSuggestions = FunctionChunker.stitchSuggestions(
+            listOf(
+                first to listOf(EFSuggestion("setUp", 2, 10), EFSuggestion("check", 42, 48)),
+                second to listOf(EFSuggestion("verify", 42, 48, votes = 2), EFSuggestion("outside", 20, 45))
+            )
+        )
+
+        TestCase.assertEquals(
+            listOf(EFSuggestion("setUp", 2, 10), EFSuggestion("check", 42, 48, votes = 2)),
+            efSuggestions
+        )
+    }
+
+    fun `test minimized prompt keeps original line numbers`() {
+        configureByFile("/testdata/RodCuttingProblem.kt")
+        val functions = PsiTreeUtil.findChildrenOfType(file, KtNamedFunction::class.java)
+
+        val replaceQueries = functions.first { it.name == "replaceReflektQueries" }
+        val minimizedPrompt = PromptMinimizer().minimize(file, replaceQueries.textRange, 39)
+        val lineNumbers = minimizedPrompt.text.lines().map { it.substringBefore('.').toInt() }
+        TestCase.assertEquals(39, lineNumbers.first())
+        TestCase.assertEquals(62, lineNumbers.last())
+        TestCase.assertFalse(44 in lineNumbers)
+        TestCase.assertFalse(53 in lineNumbers)
+        TestCase.assertFalse(minimizedPrompt.text.contains("//"))
+        TestCase.assertTrue(minimizedPrompt.text.contains("\n45.     IrGenerationExtension.registerExtension(\n"))
+        TestCase.assertTrue(minimizedPrompt.savedTokens > 0)
+
+        val checkLocalClass = functions.first { it.name == "checkLocalClass" }
+        val minimizedLiterals = PromptMinimizer().minimize(file, checkLocalClass.textRange, 64)
+        TestCase.assertTrue(
+            minimizedLiterals.text.contains("\n89.             throw ExtractException(JavaRefactoringBundle.message(\"...\"), extractedReferences)\n")
+        )
+    }
+
     fun `test parent function correctly determined for caret position in Kotlin code`() {
         configureByFile("/testdata/RodCuttingProblem.kt")
         editor.moveCaret(469)